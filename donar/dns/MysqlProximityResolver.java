@@ -50,6 +50,7 @@ import com.protomatter.syslog.Syslog;
 import donar.update.UpdateInfo;
 import donar.update.util.CraqBackend;
 import donar.update.util.DNSRecord;
+import donar.update.util.LogBackend;
 import donar.update.util.MySQLBackend;
 import donar.update.util.DONARBackend;
 
@@ -72,8 +73,11 @@ public class MysqlProximityResolver extends UnicastRemoteObject implements Resol
 				String craqHost = config.getProperty("CRAQ_HOST");
 				backend = new CraqBackend(craqHost, craqPort);
 			}
+			else if (config.getProperty("BACKEND").equals("LOG")) {
+				backend = LogBackend.open(config, true);
+			}
 			else {
-				backend = new MySQLBackend();
+				backend = new MySQLBackend(config, true);
 			}
 		} catch (Exception e) {
 			System.out.println(e);
@@ -22,6 +22,9 @@ package donar.dns.attrs;
 import java.io.DataOutputStream;
 import java.io.IOException;
 
+import donar.update.util.XDRReader;
+import donar.update.util.XDRWriter;
+
 /* Attribute whose data is a list of doubles */
 public class DoubleListRecordAttribute extends RecordAttribute {
 	public DoubleListRecordAttribute(short typeID, double[] data) {
@@ -33,11 +36,24 @@ public class DoubleListRecordAttribute extends RecordAttribute {
 	public short getDataLength() { 
 		return (short) (8 * data.length); 
 	}
+	public int getKind() { return KIND_DOUBLE_LIST; }
 	public void writeData(DataOutputStream out) throws IOException {
 		for (double d : data) {
 			out.writeDouble(d);
 		}
 	}
+	public void writeData(XDRWriter out) {
+		for (double d : data) {
+			out.writeDouble(d);
+		}
+	}
+	public void readData(XDRReader in, int length) throws IOException {
+		this.data = new double[length / 8];
+		for (int i = 0; i < this.data.length; i++) {
+			this.data[i] = in.readDouble();
+		}
+		in.skip(length % 8);
+	}
 	public String toString() {
 		return "Attribute " + this.typeID + "\t" + this.data;
 	}
@@ -22,6 +22,9 @@ package donar.dns.attrs;
 import java.io.DataOutputStream;
 import java.io.IOException;
 
+import donar.update.util.XDRReader;
+import donar.update.util.XDRWriter;
+
 /* Attribute whose data is a double */
 public class DoubleRecordAttribute extends RecordAttribute {
 	public DoubleRecordAttribute(short typeID, double data) {
@@ -31,9 +34,16 @@ public class DoubleRecordAttribute extends RecordAttribute {
 	public DoubleRecordAttribute() {}
 	public double data;
 	public short getDataLength() { return 8; }
+	public int getKind() { return KIND_DOUBLE; }
 	public void writeData(DataOutputStream out) throws IOException {
 		out.writeDouble(data);
 	}
+	public void writeData(XDRWriter out) {
+		out.writeDouble(data);
+	}
+	public void readData(XDRReader in, int length) throws IOException {
+		this.data = in.readDouble();
+	}
 	public String toString() {
 		return "Attribute " + this.typeID + "\t" + this.data;
 	}
@@ -22,6 +22,9 @@ package donar.dns.attrs;
 import java.io.DataOutputStream;
 import java.io.IOException;
 
+import donar.update.util.XDRReader;
+import donar.update.util.XDRWriter;
+
 /* Attribute whose data is an integer */
 public class IntegerRecordAttribute extends RecordAttribute {
 	public IntegerRecordAttribute(short typeID, int data) {
@@ -31,9 +34,16 @@ public class IntegerRecordAttribute extends RecordAttribute {
 	public IntegerRecordAttribute() {}
 	public int data;
 	public short getDataLength() { return 4; }
+	public int getKind() { return KIND_INT; }
 	public void writeData(DataOutputStream out) throws IOException {
 		out.writeInt(data);
 	}
+	public void writeData(XDRWriter out) {
+		out.writeInt(data);
+	}
+	public void readData(XDRReader in, int length) throws IOException {
+		this.data = in.readInt();
+	}
 	public String toString() {
 		return "Attribute " + this.typeID + "\t" + this.data;
 	}
@@ -22,20 +22,95 @@ package donar.dns.attrs;
 import java.io.DataOutputStream;
 import java.io.IOException;
 
+import donar.update.util.XDRReader;
+import donar.update.util.XDRWriter;
+
 /* Class to store attributes for records */
 public abstract class RecordAttribute {
+	
+	// Kind tags written with each attribute in tagged XDR
+	public static final int KIND_SHORT = 1;
+	public static final int KIND_INT = 2;
+	public static final int KIND_DOUBLE = 3;
+	public static final int KIND_DOUBLE_LIST = 4;
+	
 	public short typeID;
 	
 	public abstract short getDataLength();
 	
+	public abstract int getKind();
+	
 	protected abstract void writeData(DataOutputStream out) throws IOException;
 	
+	protected abstract void writeData(XDRWriter out);
+	
+	/* Reads length bytes of data, as written by writeData or a NUP client */
+	public abstract void readData(XDRReader in, int length)
+		throws IOException;
+	
 	public void writeXDR(DataOutputStream out) throws IOException {
 		out.writeInt(typeID);
 		out.writeInt((int) getDataLength());
 		writeData(out);
 	}
 	
+	/*
+	 * Writes the attribute with its kind, so readers need not guess the
+	 * class from the data length.
+	 */
+	public void writeTaggedXDR(XDRWriter out) {
+		out.writeInt(typeID);
+		out.writeInt(getKind());
+		out.writeInt((int) getDataLength());
+		writeData(out);
+	}
+	
+	/*
+	 * The kind untagged XDR implies for data of length bytes, or 0 if
+	 * none does.
+	 */
+	public static int kindForLength(int length) {
+		switch (length) {
+			case 2: return KIND_SHORT;
+			case 4: return KIND_INT;
+			case 8: return KIND_DOUBLE;
+			default: return 0;
+		}
+	}
+	
+	/*
+	 * Reads an attribute written by writeTaggedXDR, or by writeXDR if not
+	 * tagged, in which case the data length decides the class. Returns
+	 * null, having skipped the data, for kinds this version does not know
+	 * and for untagged lengths that match none.
+	 */
+	public static RecordAttribute readXDR(XDRReader in, boolean tagged)
+		throws IOException {
+		int type = in.readInt();
+		int kind;
+		int length;
+		if (tagged) {
+			kind = in.readInt();
+			length = in.readInt();
+		} else {
+			length = in.readInt();
+			kind = kindForLength(length);
+		}
+		RecordAttribute att;
+		switch (kind) {
+			case KIND_SHORT: att = new ShortRecordAttribute(); break;
+			case KIND_INT: att = new IntegerRecordAttribute(); break;
+			case KIND_DOUBLE: att = new DoubleRecordAttribute(); break;
+			case KIND_DOUBLE_LIST: att = new DoubleListRecordAttribute(); break;
+			default:
+				in.skip(length);
+				return null;
+		}
+		att.typeID = (short) type;
+		att.readData(in, length);
+		return att;
+	}
+	
 	public void writeRecord(DataOutputStream out) throws IOException {
 		out.writeShort(typeID);
 		out.writeShort(getDataLength());
@@ -22,13 +22,23 @@ package donar.dns.attrs;
 import java.io.DataOutputStream;
 import java.io.IOException;
 
+import donar.update.util.XDRReader;
+import donar.update.util.XDRWriter;
+
 /* Attribute whose data is a short */
 public class ShortRecordAttribute extends RecordAttribute {
 	public short data;
 	public short getDataLength() { return 2; }
+	public int getKind() { return KIND_SHORT; }
 	public void writeData(DataOutputStream out) throws IOException {
 		out.writeShort(data);
 	}
+	public void writeData(XDRWriter out) {
+		out.writeShort(data);
+	}
+	public void readData(XDRReader in, int length) throws IOException {
+		this.data = in.readShort();
+	}
 	public String toString() {
 		return "Attribute " + this.typeID + "\t" + this.data;
 	}
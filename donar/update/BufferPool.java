@@ -0,0 +1,89 @@
+package donar.update;
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fixed set of direct ByteBuffers for receiving update packets into. A
+ * listener takes a buffer, receives into it and hands it to the packet
+ * handler, which returns it once the packet has been verified.
+ *
+ * The pool is sized to cover every buffer that can be in flight at once
+ * (see UpdatePipeline.getMaxPacketsHeld, plus one per socket), so
+ * in steady state nothing is allocated. Should it ever run dry a new
+ * buffer is allocated rather than blocking the listener; buffers
+ * released while the pool is full are left to the garbage collector.
+ */
+public class BufferPool {
+
+	private ArrayBlockingQueue<ByteBuffer> free;
+	private int bufferSize;
+	private AtomicLong numAllocated = new AtomicLong();
+
+	public BufferPool(int buffers, int bufferSize) {
+		this.free = new ArrayBlockingQueue<ByteBuffer>(buffers);
+		this.bufferSize = bufferSize;
+		for (int i = 0; i < buffers; i++) {
+			free.add(allocate());
+		}
+	}
+
+	/*
+	 * Returns a cleared buffer of bufferSize bytes.
+	 */
+	public ByteBuffer acquire() {
+		ByteBuffer buf = free.poll();
+		return buf != null ? buf : allocate();
+	}
+
+	public void release(ByteBuffer buf) {
+		buf.clear();
+		free.offer(buf);
+	}
+
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	public int getNumFree() {
+		return free.size();
+	}
+
+	/*
+	 * Buffers allocated since the pool was created, including the
+	 * initial ones. Growth past the pool size means it is too small.
+	 */
+	public long getNumAllocated() {
+		return numAllocated.get();
+	}
+
+	private ByteBuffer allocate() {
+		numAllocated.incrementAndGet();
+		return ByteBuffer.allocateDirect(bufferSize);
+	}
+
+	public String toString() {
+		return "free=" + getNumFree() + " allocated=" + getNumAllocated();
+	}
+}
@@ -21,6 +21,9 @@ package donar.update;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Properties;
 
@@ -38,74 +41,186 @@ public class ListenerThread implements Runnable  {
 	Properties config;
 	private String stringRep; // String representation
 	private BackupStorage bs;
+	private UpdatePipeline pipeline;
+	private BufferPool bufferPool;
+	private KeyCache keyCache;
+	private ReplayWindow replayWindow;
 	
 	
-	public ListenerThread(InetAddress laddr, int port, List<String>  liveSockets, Properties config)
+	public ListenerThread(InetAddress laddr, int port, List<String>  liveSockets, Properties config,
+			UpdatePipeline pipeline, BufferPool bufferPool, KeyCache keyCache,
+			ReplayWindow replayWindow)
 		throws IOException
 	{
 		this.port = port;
+		this.pipeline = pipeline;
+		this.bufferPool = bufferPool;
+		this.keyCache = keyCache;
+		this.replayWindow = replayWindow;
 		this.laddr = laddr;
 		this.config = config;
+		this.backend = openBackend(config);
+		this.bs = openBackupStorage(config);
+		this.liveSockets = liveSockets;
+		this.stringRep = laddr.getHostAddress() + ":" + port;
+	}
+	
+	/*
+	 * Opens the backend named by the BACKEND setting.
+	 */
+	static DONARBackend openBackend(Properties config)
+		throws IOException
+	{
 		String backendString = config.getProperty("BACKEND", "CRAQ");
 		if (backendString.equals("CRAQ")) {
-			this.backend = new CraqBackend(config.getProperty("CRAQ_HOST"), Integer.parseInt(
+			return new CraqBackend(config.getProperty("CRAQ_HOST"), Integer.parseInt(
 					config.getProperty("CRAQ_PORT")));
-			this.bs = new BackupStorage();
 		}
 		else if (backendString.equals("MYSQL")) {
-			this.backend = new MySQLBackend();
+			return new MySQLBackend(config, false);
 		}
-		this.liveSockets = liveSockets;
-		this.stringRep = laddr.getHostAddress() + ":" + port;
+		else if (backendString.equals("LOG")) {
+			return LogBackend.open(config, false);
+		}
+		return null;
+	}
+	
+	/*
+	 * Backup storage to keep alongside the backend, or null if the
+	 * backend needs none.
+	 */
+	static BackupStorage openBackupStorage(Properties config)
+		throws IOException
+	{
+		if (config.getProperty("BACKEND", "CRAQ").equals("CRAQ")) {
+			return new BackupStorage(config);
+		}
+		return null;
 	}
 	
 	/*
 	 * Listen on specified address and port, and wait for NUP requests. When
 	 * request is received dispatch handler thread to deal with request.
+	 * With LISTENER_SOCKETS > 1, that many channels are bound to the same
+	 * address with SO_REUSEPORT so the kernel spreads packets across
+	 * them, and each gets its own receive thread.
 	 */
 	public void run()
 	{
 		Syslog.debug(this, "Beginning listener thread for " + stringRep);
+		List<DatagramChannel> channels;
+		try {
+			channels = openChannels(Integer.parseInt(
+					config.getProperty("LISTENER_SOCKETS", "1")));
+		} catch (IOException e) {
+			Syslog.error(UpdateServer.class, "Error running listner thread:" +
+					e.getMessage());
+			return;
+		}
+		Syslog.info(UpdateServer.class, "Listening for update requests on" +
+			stringRep + " with " + channels.size() + " socket(s)");
+		
+		for (int i = 1; i < channels.size(); i++) {
+			final DatagramChannel channel = channels.get(i);
+			Thread t = new Thread(new Runnable() {
+				public void run() {
+					receive(channel);
+				}
+			}, "Listener-" + stringRep + "-" + i);
+			t.start();
+		}
+		receive(channels.get(0));
+	}
+	
+	/*
+	 * Binds count channels to this listener's address. Falls back to a
+	 * single channel if the platform does not support SO_REUSEPORT.
+	 */
+	private List<DatagramChannel> openChannels(int count)
+		throws IOException
+	{
+		List<DatagramChannel> channels = new ArrayList<DatagramChannel>(count);
+		InetSocketAddress local = new InetSocketAddress(laddr, port);
+		if (count <= 1) {
+			channels.add(DatagramChannel.open().bind(local));
+			return channels;
+		}
+		try {
+			for (int i = 0; i < count; i++) {
+				DatagramChannel channel = DatagramChannel.open();
+				channels.add(channel);
+				channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+				channel.bind(local);
+			}
+		} catch (UnsupportedOperationException e) {
+			Syslog.warning(this, "SO_REUSEPORT not supported, using one " +
+					"socket for " + stringRep);
+			closeAll(channels);
+			channels.clear();
+			channels.add(DatagramChannel.open().bind(local));
+		} catch (IOException e) {
+			closeAll(channels);
+			throw e;
+		}
+		return channels;
+	}
+	
+	private static void closeAll(List<DatagramChannel> channels)
+	{
+		for (DatagramChannel channel : channels) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				// Already failing; nothing more to do
+			}
+		}
+	}
+	
+	/*
+	 * Receive loop for one channel. Each packet is received into a
+	 * buffer from the pool, which the handler returns once it has
+	 * replied, so receiving allocates nothing.
+	 */
+	private void receive(DatagramChannel channel)
+	{
+		ByteBuffer buf = bufferPool.acquire();
 		try {
-			
-			DatagramSocket socket = new DatagramSocket(port, laddr);
-			Syslog.info(UpdateServer.class, "Listening for update requests on" +
-				stringRep);
 			while (true) {
 				
-		    	byte[] packetBuf = new byte[UpdateInfo.NUP_MAX_PACKET_LENGTH];
-				DatagramPacket packet =
-					new DatagramPacket(packetBuf, packetBuf.length);
-				socket.receive(packet);
+				SocketAddress sender = channel.receive(buf);
+				buf.flip();
 
 				/*
 				if (!(liveSockets.contains(stringRep))) { 
 					Syslog.info(this, "Thread listening on " + stringRep + 
 							" is self terminating.");
-					socket.close();
+					channel.close();
 					return; // Kill this thread
 				}
 				*/
 				
-				// Start new handler thread when packet is received
+				// Hand packet to the pipeline when received
 				Syslog.debug(UpdateServer.class, "Received packet. " +
-						"Spawning handler.");
+						"Dispatching handler.");
 				
-				if (Thread.activeCount() > 100) {
-				  Syslog.debug(UpdateServer.class, 
-				      "Too many active threads, ignoring packet.");
-				}
-				else {
-  				UpdateServerThread packetHandler =
-  					new UpdateServerThread(packet, socket, backend, bs);
-  				Thread packetHandlerThread = new Thread(packetHandler);
-  				packetHandlerThread.start();
+				UpdateServerThread handler = new UpdateServerThread(buf, sender,
+						channel, bufferPool, keyCache, replayWindow, backend, bs);
+				try {
+					pipeline.submit(handler);
+				} catch (RuntimeException e) {
+					// Parsing runs on this thread; one bad packet must not
+					// stop the listener
+					Syslog.error(UpdateServer.class, "Dropping packet from " +
+							sender + ": " + e);
+					handler.releasePacket();
 				}
+				buf = bufferPool.acquire();
 			}
 			
 		} catch (IOException e) {
 			Syslog.error(UpdateServer.class, "Error running listner thread:" +
 					e.getMessage());
+			bufferPool.release(buf);
 			return;
 		}
 	}
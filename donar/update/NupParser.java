@@ -0,0 +1,290 @@
+package donar.update;
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import donar.dns.attrs.*;
+import donar.update.util.*;
+
+/**
+ * Reads an update request straight out of the buffer it was received
+ * into. validate() walks the whole packet with absolute reads, checking
+ * every length field against the bytes actually there, without
+ * allocating anything; only a packet that passes is decoded into keys,
+ * strings and RequestElements.
+ *
+ * Layout after the magic string and version:
+ *
+ *   short keyLen | key | long seq | short reCount | RE * reCount |
+ *   short sigLen | sig
+ *   RE: short opcode | short subLen | sub | short typeLen | type |
+ *       int dataLen | data | int ttl | short numAttrs |
+ *       (short attType | short attLen | attData) * numAttrs
+ *
+ * Length fields are unsigned. Strings are ISO-8859-1, as the client
+ * writes them.
+ */
+public class NupParser {
+
+	public static final int HEADER_BYTES = UpdateInfo.NUP_MAGIC_STRING.length + 2;
+
+	// For decoding strings out of direct buffers
+	private static final ThreadLocal<byte[]> SCRATCH = new ThreadLocal<byte[]>() {
+		protected byte[] initialValue() {
+			return new byte[UpdateInfo.NUP_MAX_PACKET_LENGTH];
+		}
+	};
+
+	private ByteBuffer buf;
+	private int start;
+
+	// Set by validate()
+	private int keyOffset;
+	private int keyLength;
+	private int reCount;
+	private int reOffset;
+	private int signatureOffset;
+	private int signatureLength;
+
+	public NupParser(ByteBuffer buf) {
+		this.buf = buf;
+		this.start = buf.position();
+	}
+
+	public boolean hasMagic() {
+		byte[] magic = UpdateInfo.NUP_MAGIC_STRING;
+		if (buf.limit() - start < magic.length) {
+			return false;
+		}
+		for (int i = 0; i < magic.length; i++) {
+			if (buf.get(start + i) != magic[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/*
+	 * The packet's NUP version, or -1 if it is too short to have one.
+	 */
+	public short getVersion() {
+		if (buf.limit() - start < HEADER_BYTES) {
+			return -1;
+		}
+		return buf.getShort(start + HEADER_BYTES - 2);
+	}
+
+	/*
+	 * Checks the structure of the packet after the header. Returns
+	 * PACKET_SUCCESS, or the PACKET_MALFORMED code to reply with.
+	 */
+	public short validate() {
+		int end = buf.limit();
+		int p = start + HEADER_BYTES;
+		if (p + 2 > end) return UpdateInfo.PACKET_MALFORMED_TOO_SHORT;
+		keyLength = unsignedShort(p);
+		keyOffset = p + 2;
+		p = keyOffset + keyLength;
+		if (p + 8 + 2 > end) return UpdateInfo.PACKET_MALFORMED_TOO_SHORT;
+		reCount = unsignedShort(p + 8);
+		reOffset = p + 10;
+
+		p = reOffset;
+		for (int i = 0; i < reCount; i++) {
+			// Opcode, subdomain
+			if (p + 4 > end) return UpdateInfo.PACKET_MALFORMED_TOO_SHORT;
+			p += 4 + unsignedShort(p + 2);
+			// Type
+			if (p + 2 > end) return UpdateInfo.PACKET_MALFORMED_TOO_SHORT;
+			p += 2 + unsignedShort(p);
+			// Data
+			if (p + 4 > end) return UpdateInfo.PACKET_MALFORMED_TOO_SHORT;
+			int dataLength = buf.getInt(p);
+			p += 4;
+			if (dataLength < 0) return UpdateInfo.PACKET_MALFORMED;
+			if (dataLength > end - p) return UpdateInfo.PACKET_MALFORMED_TOO_SHORT;
+			p += dataLength;
+			// TTL, attributes
+			if (p + 6 > end) return UpdateInfo.PACKET_MALFORMED_TOO_SHORT;
+			int numAttrs = unsignedShort(p + 4);
+			p += 6;
+			for (int j = 0; j < numAttrs; j++) {
+				if (p + 4 > end) return UpdateInfo.PACKET_MALFORMED_TOO_SHORT;
+				short attType = buf.getShort(p);
+				int attLength = unsignedShort(p + 2);
+				p += 4;
+				if (attLength > end - p) return UpdateInfo.PACKET_MALFORMED_TOO_SHORT;
+				if (!isValidAttributeLength(attType, attLength)) {
+					return UpdateInfo.PACKET_MALFORMED;
+				}
+				p += attLength;
+			}
+		}
+
+		if (p + 2 > end) return UpdateInfo.PACKET_MALFORMED_TOO_SHORT;
+		signatureLength = unsignedShort(p);
+		signatureOffset = p + 2;
+		p = signatureOffset + signatureLength;
+		if (p > end) return UpdateInfo.PACKET_MALFORMED_TOO_SHORT;
+		// Bytes left over mean reCount does not match what was sent
+		if (p < end) return UpdateInfo.PACKET_MALFORMED_WRONG_REQ_ELEM_NUMBER;
+		return UpdateInfo.PACKET_SUCCESS;
+	}
+
+	// The rest may only be used after validate() has succeeded
+
+	public byte[] getPublicKey() {
+		return bytes(keyOffset, keyLength);
+	}
+
+	public long getSequenceNum() {
+		return buf.getLong(keyOffset + keyLength);
+	}
+
+	public byte[] getSignature() {
+		return bytes(signatureOffset, signatureLength);
+	}
+
+	/*
+	 * Absolute position in the buffer where the signed bytes end; they
+	 * start at the beginning of the packet.
+	 */
+	public int getSignedEnd() {
+		return signatureOffset - 2;
+	}
+
+	/*
+	 * Decodes the request elements. DONAR TTL attributes become
+	 * expiration times relative to now (ms since the epoch); attributes
+	 * of unknown types are dropped.
+	 */
+	public RequestElement[] getRequestElements(long now) throws IOException {
+		RequestElement[] elements = new RequestElement[reCount];
+		XDRReader in = new XDRReader(buf.duplicate());
+		int p = reOffset;
+		for (int i = 0; i < reCount; i++) {
+			short opcode = buf.getShort(p);
+			int subdomainLength = unsignedShort(p + 2);
+			String subdomain = string(p + 4, subdomainLength);
+			p += 4 + subdomainLength;
+			int rrTypeLength = unsignedShort(p);
+			String rrType = rrType(p + 2, rrTypeLength);
+			p += 2 + rrTypeLength;
+			int rrDataLength = buf.getInt(p);
+			String rrData = string(p + 4, rrDataLength);
+			p += 4 + rrDataLength;
+			int ttl = buf.getInt(p);
+			int numAttrs = unsignedShort(p + 4);
+			p += 6;
+
+			RequestElement re = new RequestElement(opcode, subdomain,
+					rrType, rrData, ttl);
+			for (int j = 0; j < numAttrs; j++) {
+				short attType = buf.getShort(p);
+				int attLength = unsignedShort(p + 2);
+				p += 4;
+				RecordAttribute att = newAttribute(attType);
+				if (att != null) {
+					in.position(p);
+					att.readData(in, attLength);
+					att.typeID = attType;
+					if (attType == UpdateInfo.DONAR_TTL) {
+						// Convert TTL into absolute time
+						IntegerRecordAttribute expires =
+							(IntegerRecordAttribute) att;
+						expires.data = (int) (now / 1000 + expires.data);
+						expires.typeID = UpdateInfo.EXPIRATION_TIME;
+					}
+					re.attributes.add(att);
+				}
+				p += attLength;
+			}
+			elements[i] = re;
+		}
+		return elements;
+	}
+
+	private static RecordAttribute newAttribute(short attType) {
+		switch (attType) {
+			case UpdateInfo.DONAR_TTL:
+				return new IntegerRecordAttribute();
+			case UpdateInfo.SPLIT_PROPORTION:
+			case UpdateInfo.SPLIT_EPSILON:
+			case UpdateInfo.BANDWIDTH_CAP:
+				return new DoubleRecordAttribute();
+			case UpdateInfo.DIST_ADJUSTMENT:
+				return new DoubleListRecordAttribute();
+			default:
+				return null;
+		}
+	}
+
+	private static boolean isValidAttributeLength(short attType, int length) {
+		switch (attType) {
+			case UpdateInfo.DONAR_TTL:
+				return length == 4;
+			case UpdateInfo.SPLIT_PROPORTION:
+			case UpdateInfo.SPLIT_EPSILON:
+			case UpdateInfo.BANDWIDTH_CAP:
+				return length == 8;
+			case UpdateInfo.DIST_ADJUSTMENT:
+				return length % 8 == 0;
+			default:
+				return true; // Skipped
+		}
+	}
+
+	private int unsignedShort(int offset) {
+		return buf.getShort(offset) & 0xFFFF;
+	}
+
+	private byte[] bytes(int offset, int length) {
+		byte[] out = new byte[length];
+		buf.get(offset, out, 0, length);
+		return out;
+	}
+
+	private String string(int offset, int length) {
+		if (buf.hasArray()) {
+			return new String(buf.array(), buf.arrayOffset() + offset, length,
+					XDRReader.LATIN1);
+		}
+		byte[] scratch = SCRATCH.get();
+		buf.get(offset, scratch, 0, length);
+		return new String(scratch, 0, length, XDRReader.LATIN1);
+	}
+
+	/*
+	 * Returns the shared constant for supported record types, so the
+	 * common case allocates nothing.
+	 */
+	private String rrType(int offset, int length) {
+		for (String type : Verifiers.RR_TYPES) {
+			if (type.length() != length) continue;
+			int i = 0;
+			while (i < length && buf.get(offset + i) == type.charAt(i)) i++;
+			if (i == length) return type;
+		}
+		return string(offset, length);
+	}
+}
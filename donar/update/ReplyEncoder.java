@@ -0,0 +1,110 @@
+package donar.update;
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+import java.nio.ByteBuffer;
+
+import donar.update.util.AccountInfo;
+
+/**
+ * Encodes NUP replies into a direct buffer kept by each sending thread,
+ * ready for DatagramChannel.send. The buffer returned is only valid
+ * until the same thread encodes its next reply. Replies to stream
+ * batches can be larger than any datagram; the buffer grows to fit.
+ *
+ * Reply layout:
+ *
+ *   magic | short version | short keyLen | key | long seq | long nextSeq |
+ *   short reCount | short packetCode | short reCode * reCount
+ *
+ * With NUP_FLAG_COMPACT_REPLY set in the version, the key field holds
+ * the 20 byte SHA-1 of the client's key instead of the key itself.
+ */
+public class ReplyEncoder {
+
+	// Largest reply: a full size request's key plus two bytes for each
+	// of the request elements that could fit alongside it
+	private static final int MAX_REPLY_LENGTH =
+		2 * UpdateInfo.NUP_MAX_PACKET_LENGTH;
+
+	private static final ThreadLocal<ByteBuffer> BUFFERS =
+		new ThreadLocal<ByteBuffer>() {
+			protected ByteBuffer initialValue() {
+				return ByteBuffer.allocateDirect(MAX_REPLY_LENGTH);
+			}
+		};
+
+	/*
+	 * Reply with no key or sequence number, for packets rejected before
+	 * the key was known.
+	 */
+	public static ByteBuffer encode(short version, short errorCode) {
+		ByteBuffer buf = header(version, 2);
+		buf.putShort((short) 0); // No public key
+		buf.putLong(-1); // No sequence number
+		buf.putLong(-1);
+		buf.putShort((short) 0); // No RE codes
+		buf.putShort(errorCode);
+		buf.flip();
+		return buf;
+	}
+
+	/*
+	 * Full reply. codes holds the packet code followed by one code per
+	 * request element. The key field is publicKey, or keyHash as bytes if
+	 * version has NUP_FLAG_COMPACT_REPLY set.
+	 */
+	public static ByteBuffer encode(short version, byte[] publicKey,
+			String keyHash, long sequenceNum, long nextSequenceNum,
+			short[] codes) {
+		byte[] key = (version & UpdateInfo.NUP_FLAG_COMPACT_REPLY) != 0 ?
+				AccountInfo.hex2Bytes(keyHash) : publicKey;
+		ByteBuffer buf = header(version, key.length + 2 * codes.length);
+		buf.putShort((short) key.length);
+		buf.put(key);
+		buf.putLong(sequenceNum);
+		buf.putLong(nextSequenceNum);
+		buf.putShort((short) (codes.length - 1));
+		for (short code : codes) {
+			buf.putShort(code);
+		}
+		buf.flip();
+		return buf;
+	}
+
+	/*
+	 * Starts a reply with variable bytes of key and codes; the fixed
+	 * fields are version, keyLen, seq, nextSeq and reCount.
+	 */
+	private static ByteBuffer header(short version, int variable) {
+		int length = UpdateInfo.NUP_MAGIC_STRING.length + 2 + 2 + 8 + 8 + 2 +
+			variable;
+		ByteBuffer buf = BUFFERS.get();
+		if (buf.capacity() < length) {
+			buf = ByteBuffer.allocateDirect(length);
+			BUFFERS.set(buf);
+		}
+		buf.clear();
+		buf.put(UpdateInfo.NUP_MAGIC_STRING);
+		buf.putShort(version);
+		return buf;
+	}
+}
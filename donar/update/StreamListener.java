@@ -0,0 +1,115 @@
+package donar.update;
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+import java.io.*;
+import java.net.*;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Properties;
+import java.util.concurrent.Semaphore;
+
+import com.protomatter.syslog.*;
+
+import donar.update.util.*;
+
+
+/**
+ * Accepts NUP stream connections on one address and port, running each
+ * as a StreamSession on its own thread. Like ListenerThread, it owns the
+ * backend its sessions apply updates through.
+ */
+public class StreamListener implements Runnable {
+
+	private int port;			// Port to listen on
+	private InetAddress laddr;	// Local address to bind to
+	private DONARBackend backend;
+	private BackupStorage bs;
+	private KeyCache keyCache;
+	private ReplayWindow replayWindow;
+	private Semaphore sessions; // Sessions that may still be opened
+	private long authTimeout;	// ms to complete authentication
+	private long idleTimeout;	// ms to wait for each batch after that
+	private String stringRep; // String representation
+	
+	public StreamListener(InetAddress laddr, int port, Properties config,
+			KeyCache keyCache, ReplayWindow replayWindow)
+		throws IOException
+	{
+		this.laddr = laddr;
+		this.port = port;
+		this.keyCache = keyCache;
+		this.replayWindow = replayWindow;
+		this.backend = ListenerThread.openBackend(config);
+		this.bs = ListenerThread.openBackupStorage(config);
+		this.sessions = new Semaphore(Integer.parseInt(
+				config.getProperty("STREAM_MAX_SESSIONS")));
+		this.authTimeout = 1000 * Long.parseLong(
+				config.getProperty("STREAM_AUTH_TIMEOUT"));
+		this.idleTimeout = 1000 * Long.parseLong(
+				config.getProperty("STREAM_IDLE_TIMEOUT"));
+		this.stringRep = laddr.getHostAddress() + ":" + port;
+	}
+	
+	/*
+	 * Accept connections until the socket fails. Connections beyond
+	 * STREAM_MAX_SESSIONS are closed straight away; the client can retry
+	 * or fall back to sending datagrams. Sessions that do not authenticate
+	 * within STREAM_AUTH_TIMEOUT, or then sit idle for STREAM_IDLE_TIMEOUT,
+	 * are closed so they cannot hold a slot forever.
+	 */
+	public void run()
+	{
+		ServerSocketChannel server;
+		try {
+			server = ServerSocketChannel.open();
+			server.bind(new InetSocketAddress(laddr, port));
+		} catch (IOException e) {
+			Syslog.error(UpdateServer.class, "Error running stream listener:" +
+					e.getMessage());
+			return;
+		}
+		Syslog.info(UpdateServer.class, "Listening for update streams on " +
+				stringRep);
+		
+		try {
+			while (true) {
+				SocketChannel channel = server.accept();
+				if (!sessions.tryAcquire()) {
+					Syslog.warning(this, "Too many stream sessions on " +
+							stringRep + "; refusing " +
+							channel.socket().getRemoteSocketAddress());
+					channel.close();
+					continue;
+				}
+				Thread t = new Thread(new StreamSession(channel, keyCache,
+						replayWindow, backend, bs, sessions, authTimeout,
+						idleTimeout),
+						"StreamSession-" + channel.socket().getRemoteSocketAddress());
+				t.setDaemon(true);
+				t.start();
+			}
+		} catch (IOException e) {
+			Syslog.error(UpdateServer.class, "Error running stream listener:" +
+					e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,382 @@
+package donar.update;
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+import java.io.*;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.security.*;
+import java.util.concurrent.Semaphore;
+
+import com.protomatter.syslog.*;
+
+import donar.update.util.*;
+
+
+/**
+ * One NUP stream connection. A client authenticates once, then sends any
+ * number of batches of request elements, each applied as a single
+ * backend update. Each batch is signed, but needs no sequence number
+ * from the account.
+ *
+ * Every message is a frame: int length | payload. The exchange is
+ *
+ *   server: magic | short version | short nonceLen | nonce
+ *   client: an update request with no request elements, signed over
+ *           its bytes up to the signature followed by the nonce
+ *   server: reply with the request's sequence number and PACKET_SUCCESS
+ *   client: batch, as an update request with an empty key and the batch
+ *           number in place of the sequence number, signed over its
+ *           bytes up to the signature, the nonce and the batch number
+ *   server: reply to the batch, with codes as for a packet
+ *   ... more batches, until the client closes the connection.
+ *
+ * The nonce makes each authentication and batch good for one connection
+ * only, and batch numbers must increase within it, so a batch cannot be
+ * replayed or altered by anyone on the path. Batch replies carry
+ * the key or, if the authentication asked for compact replies, its hash.
+ * Any error other than a malformed batch ends the session, as does taking
+ * longer than authTimeout to authenticate or idleTimeout to send each
+ * batch. Until it has authenticated a client may send no more than a
+ * packet's worth of bytes.
+ */
+public class StreamSession implements Runnable {
+
+	private static final SecureRandom random = new SecureRandom();
+	
+	private SocketChannel channel;
+	private KeyCache keyCache;
+	private ReplayWindow replayWindow;
+	private DONARBackend backend;
+	private BackupStorage bs;
+	private Semaphore sessions;
+	private long authTimeout;	// ms
+	private long idleTimeout;	// ms
+	
+	// The channel is non-blocking; reads and writes wait on selector
+	// until deadline
+	private Selector selector;
+	private SelectionKey selectionKey;
+	private long deadline;
+	
+	private ByteBuffer lengthBuf = ByteBuffer.allocate(4);
+	private ByteBuffer frame = ByteBuffer.allocate(UpdateInfo.NUP_MAX_PACKET_LENGTH);
+	
+	// Set by authenticate()
+	private short version;
+	private short replyFlags;
+	private byte[] publicKey;
+	private PublicKey verifyKey;
+	private String keyHash;
+	private boolean authenticated;
+	private byte[] nonce;
+	private long lastBatchNum = -1;
+	
+	public StreamSession(SocketChannel channel, KeyCache keyCache,
+			ReplayWindow replayWindow, DONARBackend backend, BackupStorage bs,
+			Semaphore sessions, long authTimeout, long idleTimeout)
+	{
+		this.channel = channel;
+		this.keyCache = keyCache;
+		this.replayWindow = replayWindow;
+		this.backend = backend;
+		this.bs = bs;
+		this.sessions = sessions;
+		this.authTimeout = authTimeout;
+		this.idleTimeout = idleTimeout;
+	}
+	
+	public void run()
+	{
+		try {
+			channel.configureBlocking(false);
+			selector = Selector.open();
+			selectionKey = channel.register(selector, 0);
+			
+			// The whole handshake shares one deadline
+			deadline = System.currentTimeMillis() + authTimeout;
+			nonce = new byte[UpdateInfo.NUP_STREAM_NONCE_LENGTH];
+			random.nextBytes(nonce);
+			sendChallenge(nonce);
+			if (!authenticate(nonce)) {
+				return;
+			}
+			Syslog.debug(this, "Stream session authenticated for " + keyHash);
+			while (true) {
+				deadline = System.currentTimeMillis() + idleTimeout;
+				if (!readFrame() || !applyBatch()) {
+					break;
+				}
+			}
+		} catch (IOException e) {
+			Syslog.warning(this, "Stream session ended: " + e.getMessage());
+		} finally {
+			try {
+				channel.close();
+				if (selector != null) {
+					selector.close();
+				}
+			} catch (IOException e) {
+				// Closing anyway
+			}
+			sessions.release();
+		}
+	}
+	
+	private void sendChallenge(byte[] nonce) throws IOException
+	{
+		ByteBuffer challenge = ByteBuffer.allocate(
+				NupParser.HEADER_BYTES + 2 + nonce.length);
+		challenge.put(UpdateInfo.NUP_MAGIC_STRING);
+		challenge.putShort(UpdateInfo.NUP_VERSION);
+		challenge.putShort((short) nonce.length);
+		challenge.put(nonce);
+		challenge.flip();
+		writeFrame(challenge);
+	}
+	
+	/*
+	 * Reads the client's signed answer to the challenge and replies to
+	 * it. Returns true if the client may send batches.
+	 */
+	private boolean authenticate(byte[] nonce) throws IOException
+	{
+		if (!readFrame()) {
+			return false;
+		}
+		NupParser parser = new NupParser(frame);
+		if (!parser.hasMagic()) {
+			Syslog.debug(this, "Aborting: stream not NUP");
+			return false;
+		}
+		short packetVersion = (short) (parser.getVersion() &
+				UpdateInfo.NUP_VERSION_MASK);
+		if (!UpdateInfo.isSupportedVersion(packetVersion)) {
+			writeFrame(ReplyEncoder.encode(UpdateInfo.NUP_VERSION_DSA,
+					UpdateInfo.PACKET_NUP_VERSION_UNSUPPORTED));
+			return false;
+		}
+		version = packetVersion;
+		replyFlags = (short) (parser.getVersion() &
+				UpdateInfo.NUP_FLAG_COMPACT_REPLY);
+		short status = parser.validate();
+		if (status != UpdateInfo.PACKET_SUCCESS) {
+			writeFrame(ReplyEncoder.encode(replyVersion(), status));
+			return false;
+		}
+		
+		publicKey = parser.getPublicKey();
+		long sequenceNum = parser.getSequenceNum();
+		KeyCache.CachedKey key = keyCache.get(publicKey, version);
+		keyHash = key != null ? key.hash : KeyUtil.getHashString(publicKey);
+		if (key == null || !verifySignature(key.publicKey,
+				parser.getSignature(), parser.getSignedEnd(), nonce)) {
+			Syslog.debug(this, "Stream authentication invalid for " + keyHash);
+			reply(sequenceNum, replayWindow.peek(keyHash), new short[] {
+					UpdateInfo.PACKET_INVALID_SIGNATURE });
+			return false;
+		}
+		
+		backend.assureKey(keyHash);
+		verifyKey = key.publicKey;
+		authenticated = true;
+		reply(sequenceNum, new short[] { UpdateInfo.PACKET_SUCCESS });
+		return true;
+	}
+	
+	/*
+	 * Checks signature over the frame up to signedEnd followed by each of
+	 * trailers.
+	 */
+	private boolean verifySignature(PublicKey pubKey, byte[] signature,
+			int signedEnd, byte[]... trailers)
+	{
+		try {
+			Signature verifier = KeyUtil.getVerifier(version);
+			verifier.initVerify(pubKey);
+			ByteBuffer range = frame.duplicate();
+			range.limit(signedEnd).position(0);
+			verifier.update(range);
+			for (byte[] trailer : trailers) {
+				verifier.update(trailer);
+			}
+			return verifier.verify(signature);
+		} catch (InvalidKeyException e) {
+			// Fail to verify on exception
+			return false;
+		} catch (SignatureException e) {
+			return false;
+		}
+	}
+	
+	/*
+	 * Applies the batch in frame and replies with its codes. A batch that
+	 * cannot be decoded gets an error reply but leaves the session open;
+	 * one with a bad signature or a batch number already used ends it,
+	 * returning false.
+	 */
+	private boolean applyBatch() throws IOException
+	{
+		NupParser parser = new NupParser(frame);
+		short status;
+		if (!parser.hasMagic()) {
+			status = UpdateInfo.PACKET_MALFORMED;
+		} else if ((parser.getVersion() & UpdateInfo.NUP_VERSION_MASK) != version) {
+			status = UpdateInfo.PACKET_NUP_VERSION_UNSUPPORTED;
+		} else {
+			status = parser.validate();
+		}
+		if (status != UpdateInfo.PACKET_SUCCESS) {
+			Syslog.debug(this, "Batch malformed (" + status + ")");
+			writeFrame(ReplyEncoder.encode(replyVersion(), status));
+			return true;
+		}
+		
+		long batchNum = parser.getSequenceNum();
+		byte[] batchNumBytes = ByteBuffer.allocate(8).putLong(batchNum).array();
+		if (!verifySignature(verifyKey, parser.getSignature(),
+				parser.getSignedEnd(), nonce, batchNumBytes)) {
+			Syslog.warning(this, "Batch " + batchNum + " signature invalid for " +
+					keyHash);
+			reply(batchNum, new short[] { UpdateInfo.PACKET_INVALID_SIGNATURE });
+			return false;
+		}
+		if (batchNum <= lastBatchNum) {
+			Syslog.warning(this, "Batch " + batchNum + " already used by " +
+					keyHash);
+			reply(batchNum, new short[] { UpdateInfo.PACKET_INVALID_SEQNUM });
+			return false;
+		}
+		lastBatchNum = batchNum;
+		
+		short[] codes;
+		try {
+			RequestElement[] reArray =
+				parser.getRequestElements(System.currentTimeMillis());
+			codes = UpdateServerThread.processRequest(backend, bs, keyHash,
+					reArray, -1);
+		} catch (IOException e) {
+			Syslog.error(this, "Failure processing batch: " + e.getMessage());
+			codes = new short[] { UpdateInfo.PACKET_FAILURE };
+		}
+		reply(batchNum, codes);
+		return true;
+	}
+	
+	private void reply(long sequenceNum, short[] codes) throws IOException
+	{
+		reply(sequenceNum, replayWindow.next(keyHash, backend), codes);
+	}
+	
+	private void reply(long sequenceNum, long nextSequenceNum, short[] codes)
+		throws IOException
+	{
+		writeFrame(ReplyEncoder.encode(replyVersion(), publicKey, keyHash,
+				sequenceNum, nextSequenceNum, codes));
+	}
+	
+	private short replyVersion()
+	{
+		return (short) (version | replyFlags);
+	}
+	
+	/*
+	 * Reads the next frame into frame, ready for parsing. Returns false
+	 * if the client closed the connection between frames. Only a batch
+	 * may be larger than a packet.
+	 */
+	private boolean readFrame() throws IOException
+	{
+		lengthBuf.clear();
+		if (!readFully(lengthBuf, true)) {
+			return false;
+		}
+		int length = lengthBuf.getInt(0);
+		int maxLength = authenticated ? UpdateInfo.NUP_MAX_FRAME_LENGTH :
+			UpdateInfo.NUP_MAX_PACKET_LENGTH;
+		if (length < 0 || length > maxLength) {
+			throw new IOException("Frame length " + length + " out of range");
+		}
+		if (frame.capacity() < length) {
+			frame = ByteBuffer.allocate(Math.max(length, frame.capacity() * 2));
+		}
+		frame.clear();
+		frame.limit(length);
+		readFully(frame, false);
+		frame.flip();
+		return true;
+	}
+	
+	private boolean readFully(ByteBuffer buf, boolean eofAllowed)
+		throws IOException
+	{
+		while (buf.hasRemaining()) {
+			int n = channel.read(buf);
+			if (n < 0) {
+				if (eofAllowed && buf.position() == 0) {
+					return false;
+				}
+				throw new EOFException("Connection closed mid-frame");
+			}
+			if (n == 0) {
+				await(SelectionKey.OP_READ, deadline);
+			}
+		}
+		return true;
+	}
+	
+	private void writeFrame(ByteBuffer payload) throws IOException
+	{
+		lengthBuf.clear();
+		lengthBuf.putInt(payload.remaining());
+		lengthBuf.flip();
+		ByteBuffer[] parts = { lengthBuf, payload };
+		
+		// A client that stops reading replies is as idle as one that
+		// stops sending batches
+		long writeDeadline = authenticated ?
+			System.currentTimeMillis() + idleTimeout : deadline;
+		while (payload.hasRemaining()) {
+			if (channel.write(parts) == 0) {
+				await(SelectionKey.OP_WRITE, writeDeadline);
+			}
+		}
+	}
+	
+	/*
+	 * Waits until the channel may be ready for ops, or throws if
+	 * deadline has passed.
+	 */
+	private void await(int ops, long deadline) throws IOException
+	{
+		long wait = deadline - System.currentTimeMillis();
+		if (wait <= 0) {
+			throw new SocketTimeoutException(authenticated ?
+					"Idle timeout" : "Authentication timeout");
+		}
+		selectionKey.interestOps(ops);
+		selector.select(wait);
+		selector.selectedKeys().clear();
+	}
+}
@@ -0,0 +1,130 @@
+package donar.update;
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.protomatter.syslog.*;
+
+/**
+ * Runs update tasks on a fixed pool of worker threads fed by a bounded
+ * queue. UpdatePipeline uses one to apply verified packets to storage.
+ * Bursts of update packets wait in the queue; once it is full, the
+ * packet is answered with PACKET_SERVER_BUSY rather than dropped, and
+ * the client can retry.
+ *
+ * Configured by UPDATE_THREADS and UPDATE_QUEUE_SIZE.
+ */
+public class UpdateDispatcher {
+
+	private ThreadPoolExecutor pool;
+
+	// Counters
+	private AtomicLong numDispatched = new AtomicLong();
+	private AtomicLong numRejected = new AtomicLong();
+	private AtomicLong numFailed = new AtomicLong();
+
+	public UpdateDispatcher(Properties config) {
+		this(Integer.parseInt(config.getProperty("UPDATE_THREADS")),
+				Integer.parseInt(config.getProperty("UPDATE_QUEUE_SIZE")));
+	}
+
+	public UpdateDispatcher(int threads, int queueSize) {
+		final AtomicInteger threadNum = new AtomicInteger();
+		this.pool = new ThreadPoolExecutor(threads, threads,
+				0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(queueSize),
+				new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r,
+								"UpdateWorker-" + threadNum.incrementAndGet());
+						t.setDaemon(true);
+						return t;
+					}
+				},
+				new ThreadPoolExecutor.AbortPolicy());
+		this.pool.prestartAllCoreThreads();
+	}
+
+	/*
+	 * Queues task to run on a worker. Returns false, without running
+	 * it, if the queue is full.
+	 */
+	public boolean dispatch(final Runnable task) {
+		try {
+			pool.execute(new Runnable() {
+				public void run() {
+					try {
+						task.run();
+					} catch (RuntimeException e) {
+						numFailed.incrementAndGet();
+						Syslog.error(UpdateDispatcher.class,
+								"Update handler failed: " + e);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			numRejected.incrementAndGet();
+			return false;
+		}
+		numDispatched.incrementAndGet();
+		return true;
+	}
+
+	public long getNumDispatched() {
+		return numDispatched.get();
+	}
+
+	public long getNumRejected() {
+		return numRejected.get();
+	}
+
+	public long getNumFailed() {
+		return numFailed.get();
+	}
+
+	public long getNumCompleted() {
+		return pool.getCompletedTaskCount();
+	}
+
+	public int getQueueLength() {
+		return pool.getQueue().size();
+	}
+
+	public int getActiveCount() {
+		return pool.getActiveCount();
+	}
+
+	public String toString() {
+		return "dispatched=" + getNumDispatched() +
+			" completed=" + getNumCompleted() +
+			" rejected=" + getNumRejected() +
+			" failed=" + getNumFailed() +
+			" queued=" + getQueueLength() +
+			" active=" + getActiveCount();
+	}
+}
@@ -27,7 +27,17 @@ public class UpdateInfo {
 	public static final int SHA1_HASH_BYTES = 160 / 8;
 	public static final byte[] NUP_MAGIC_STRING =
 		{68, 79, 78, 65, 82}; // "DONAR" 
-	public static final short NUP_VERSION = 0;
+	public static final short NUP_VERSION_DSA = 0; // 1024-bit DSA, SHA-1
+	public static final short NUP_VERSION_ED25519 = 1;
+	public static final short NUP_VERSION = NUP_VERSION_ED25519; // Newest
+	// The version field's low byte is the version, the high byte flags
+	public static final short NUP_VERSION_MASK = 0x00FF;
+	// Reply with the SHA-1 of the key instead of the key itself
+	public static final short NUP_FLAG_COMPACT_REPLY = 0x0100;
+	// Key and signature algorithms, indexed by NUP version
+	public static final String[] NUP_KEY_ALGORITHMS = {"DSA", "Ed25519"};
+	public static final String[] NUP_SIGNATURE_ALGORITHMS =
+		{"SHA1withDSA", "Ed25519"};
 	public static final short NUP_OPCODE_ADD = 0;
 	public static final short NUP_OPCODE_DELETE = 1;
 	public static final short NUP_OPCODE_VALIDATE = 2;
@@ -36,6 +46,15 @@ public class UpdateInfo {
 	public static final int NUP_MIN_SUBDOMAIN_PART_LEN = 1;
 	public static final int NUP_MAX_PACKET_LENGTH = 1500;
 	public static final int NUP_DEFAULT_SERVER_PORT = 21001;
+	// Stream transport: length-prefixed frames over TCP (see StreamSession)
+	public static final int NUP_MAX_FRAME_LENGTH = 1 << 20;
+	public static final int NUP_STREAM_NONCE_LENGTH = 32;
+	public static final int NUP_DEFAULT_STREAM_PORT = 21101;
+	
+	public static boolean isSupportedVersion(short version)
+	{
+		return version >= 0 && version < NUP_KEY_ALGORITHMS.length;
+	}
 	
 	// Enumaration for attribute types
 	public static final short DONAR_TTL = 1;
@@ -66,6 +85,7 @@ public class UpdateInfo {
 	public static final short PACKET_MALFORMED = 500;
 	public static final short PACKET_MALFORMED_TOO_SHORT = 501;
 	public static final short PACKET_MALFORMED_WRONG_REQ_ELEM_NUMBER = 502;
+	public static final short PACKET_SERVER_BUSY = 600;
 	
 	public static final short RE_SUCCESS = 0;
 	public static final short RE_INVALID_OPCODE = 100;
@@ -112,6 +132,8 @@ public class UpdateInfo {
 		packetCodeDescriptionMap.put(PACKET_MALFORMED_WRONG_REQ_ELEM_NUMBER,
 				"Error: update request packet malformed: wrong number " +
 				"of request elements");
+		packetCodeDescriptionMap.put(PACKET_SERVER_BUSY,
+				"Error: update server busy, try again later");
 		
 		// RE error codes
 		reCodeDescriptionMap.put(RE_SUCCESS, "Success");
@@ -174,9 +196,34 @@ public class UpdateInfo {
 		defaults.setProperty("CONFIG_RELOAD_INTERVAL", "100");
 		defaults.setProperty("LOG_DIR", "/var/log/namecast/");
 		defaults.setProperty("LOG_LEVEL", "DEBUG");
-		defaults.setProperty("BACKEND", "MYSQL"); // Alternatives: {CRAQ, MYSQL}
+		defaults.setProperty("BACKEND", "MYSQL"); // Alternatives: {CRAQ, MYSQL, LOG}
 		defaults.setProperty("CRAQ_HOST", "localhost");
 		defaults.setProperty("CRAQ_PORT", "2727");
+		defaults.setProperty("MYSQL_WRITE_SERVER", "localhost");
+		defaults.setProperty("MYSQL_READ_SERVERS", ""); // e.g. "db1,db2:3307,"
+		defaults.setProperty("MYSQL_DB", "donar");
+		defaults.setProperty("MYSQL_USER", "donar");
+		defaults.setProperty("MYSQL_PASS", "");
+		defaults.setProperty("MYSQL_HEALTH_CHECK_INTERVAL", "5"); // seconds
+		defaults.setProperty("MYSQL_ACCOUNT_CACHE_SIZE", "10000");
+		defaults.setProperty("MYSQL_ACCOUNT_CACHE_TTL", "60"); // seconds
+		defaults.setProperty("LOG_STORE_DIR", "/var/lib/donar/");
+		defaults.setProperty("LOG_STORE_SYNC", "true");
+		defaults.setProperty("LOG_COMPACT_INTERVAL", "60"); // seconds
+		defaults.setProperty("LOG_SNAPSHOT_INTERVAL", "3600"); // seconds
+		defaults.setProperty("LOG_COMPACT_MIN_BYTES", "16777216");
+		defaults.setProperty("VERIFY_THREADS", "0"); // 0: one per processor
+		defaults.setProperty("VERIFY_QUEUE_SIZE", "1000"); // packets
+		defaults.setProperty("VERIFY_BATCH", "32"); // packets
+		defaults.setProperty("UPDATE_THREADS", "16");
+		defaults.setProperty("UPDATE_QUEUE_SIZE", "1000"); // packets
+		defaults.setProperty("LISTENER_SOCKETS", "1"); // per address, SO_REUSEPORT
+		defaults.setProperty("KEY_CACHE_SIZE", "10000"); // client public keys
+		defaults.setProperty("REPLAY_WINDOW_ACCOUNTS", "100000");
+		defaults.setProperty("STREAM_SERVER_LIST", ""); // e.g. "localhost:21101,"
+		defaults.setProperty("STREAM_MAX_SESSIONS", "64"); // per address
+		defaults.setProperty("STREAM_AUTH_TIMEOUT", "10"); // seconds
+		defaults.setProperty("STREAM_IDLE_TIMEOUT", "300"); // seconds
 		defaults.setProperty("NUM_RECORDS_RETURNED", "3");
 		return defaults;
 	}
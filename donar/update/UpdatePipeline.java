@@ -0,0 +1,194 @@
+package donar.update;
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.protomatter.syslog.*;
+
+/**
+ * Moves update packets through three stages so that signature checks
+ * (CPU bound) and storage writes (I/O bound) overlap:
+ *
+ *   parse   on the listener thread that received the packet
+ *   verify  on VERIFY_THREADS workers, each taking up to VERIFY_BATCH
+ *           packets from a queue of VERIFY_QUEUE_SIZE at a time
+ *   apply   on an UpdateDispatcher of UPDATE_THREADS workers with a
+ *           queue of UPDATE_QUEUE_SIZE
+ *
+ * Packets that arrive while either queue is full are answered with
+ * PACKET_SERVER_BUSY. A packet's receive buffer goes back to the pool as
+ * soon as it has been verified.
+ */
+public class UpdatePipeline {
+
+	private ArrayBlockingQueue<UpdateServerThread> verifyQueue;
+	private int verifyQueueSize;
+	private int verifyThreads;
+	private int verifyBatch;
+	private UpdateDispatcher applyStage;
+
+	// Counters
+	private AtomicLong numSubmitted = new AtomicLong();
+	private AtomicLong numRejected = new AtomicLong();
+	private AtomicLong numInvalid = new AtomicLong();
+	private AtomicLong numBatches = new AtomicLong();
+
+	public UpdatePipeline(Properties config) {
+		this(Integer.parseInt(config.getProperty("VERIFY_THREADS")),
+				Integer.parseInt(config.getProperty("VERIFY_QUEUE_SIZE")),
+				Integer.parseInt(config.getProperty("VERIFY_BATCH")),
+				new UpdateDispatcher(config));
+	}
+
+	/*
+	 * verifyThreads of 0 means one per available processor.
+	 */
+	public UpdatePipeline(int verifyThreads, int verifyQueueSize,
+			int verifyBatch, UpdateDispatcher applyStage) {
+		if (verifyThreads <= 0) {
+			verifyThreads = Runtime.getRuntime().availableProcessors();
+		}
+		this.verifyQueue =
+			new ArrayBlockingQueue<UpdateServerThread>(verifyQueueSize);
+		this.verifyQueueSize = verifyQueueSize;
+		this.verifyThreads = verifyThreads;
+		this.verifyBatch = Math.max(1, verifyBatch);
+		this.applyStage = applyStage;
+		for (int i = 1; i <= verifyThreads; i++) {
+			Thread t = new Thread(new Runnable() {
+				public void run() {
+					verifyLoop();
+				}
+			}, "UpdateVerifier-" + i);
+			t.setDaemon(true);
+			t.start();
+		}
+	}
+
+	/*
+	 * Parses a received packet and queues it for verification. The
+	 * packet's buffer is released here unless it was queued.
+	 */
+	public void submit(UpdateServerThread handler) {
+		if (!handler.parse()) {
+			handler.releasePacket();
+			return;
+		}
+		if (!verifyQueue.offer(handler)) {
+			numRejected.incrementAndGet();
+			Syslog.info(this, "Verify queue full, replying busy: " + this);
+			handler.replyBusy();
+			handler.releasePacket();
+			return;
+		}
+		numSubmitted.incrementAndGet();
+	}
+
+	/*
+	 * Most packets that can hold a receive buffer at once: everything
+	 * queued for or being verified.
+	 */
+	public int getMaxPacketsHeld() {
+		return verifyQueueSize + verifyThreads * verifyBatch;
+	}
+
+	private void verifyLoop() {
+		List<UpdateServerThread> batch =
+			new ArrayList<UpdateServerThread>(verifyBatch);
+		while (true) {
+			try {
+				batch.add(verifyQueue.take());
+			} catch (InterruptedException e) {
+				return;
+			}
+			verifyQueue.drainTo(batch, verifyBatch - 1);
+			numBatches.incrementAndGet();
+			for (UpdateServerThread handler : batch) {
+				verifyAndApply(handler);
+			}
+			batch.clear();
+		}
+	}
+
+	private void verifyAndApply(final UpdateServerThread handler) {
+		boolean valid;
+		try {
+			valid = handler.verify();
+		} catch (RuntimeException e) {
+			Syslog.error(this, "Update verification failed: " + e);
+			valid = false;
+		} finally {
+			handler.releasePacket();
+		}
+		if (!valid) {
+			numInvalid.incrementAndGet();
+			return;
+		}
+		boolean queued = applyStage.dispatch(new Runnable() {
+			public void run() {
+				handler.apply();
+			}
+		});
+		if (!queued) {
+			numRejected.incrementAndGet();
+			Syslog.info(this, "Update queue full, replying busy: " + this);
+			handler.replyBusy();
+		}
+	}
+
+	public long getNumSubmitted() {
+		return numSubmitted.get();
+	}
+
+	public long getNumRejected() {
+		return numRejected.get();
+	}
+
+	public long getNumInvalid() {
+		return numInvalid.get();
+	}
+
+	public long getNumBatches() {
+		return numBatches.get();
+	}
+
+	public int getVerifyQueueLength() {
+		return verifyQueue.size();
+	}
+
+	public UpdateDispatcher getApplyStage() {
+		return applyStage;
+	}
+
+	public String toString() {
+		return "submitted=" + getNumSubmitted() +
+			" rejected=" + getNumRejected() +
+			" invalid=" + getNumInvalid() +
+			" batches=" + getNumBatches() +
+			" verifyQueued=" + getVerifyQueueLength() +
+			" apply=[" + applyStage + "]";
+	}
+}
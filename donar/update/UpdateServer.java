@@ -39,6 +39,11 @@ public class UpdateServer {
 	static List<String> liveSockets;  // Arraylist of strings describing sockets
 	                          // currently in use. String format is 
 	                          // <ip addr>:<port>
+	static List<String> liveStreamSockets; // As above, for stream listeners
+	static UpdatePipeline pipeline; // Verifies and applies packets for all listeners
+	static BufferPool bufferPool; // Receive buffers for all listeners
+	static KeyCache keyCache; // Parsed client keys for all listeners
+	static ReplayWindow replayWindow; // Used sequence numbers for all listeners
 	
 	private static class ShutdownHandler extends Thread {
 		public void run()
@@ -74,6 +79,7 @@ public class UpdateServer {
             }
 
             liveSockets = new ArrayList<String>();
+            liveStreamSockets = new ArrayList<String>();
             config = UpdateInfo.getDefaultConfiguration();
 
             
@@ -145,7 +151,25 @@ public class UpdateServer {
         // Parse list in configuration file of address:port pairs. For each
         // pair, create a new thread to listen for incoming NUP packets.
         String serverList = config.getProperty("SERVER_LIST");
+        if (pipeline == null) {
+        	pipeline = new UpdatePipeline(config);
+        }
         String[] pairs = serverList.split(",");
+        if (bufferPool == null) {
+        	// Enough for every packet awaiting verification, plus one per
+        	// receiving socket
+        	int buffers = pipeline.getMaxPacketsHeld() +
+        		pairs.length * Integer.parseInt(config.getProperty("LISTENER_SOCKETS"));
+        	bufferPool = new BufferPool(buffers, UpdateInfo.NUP_MAX_PACKET_LENGTH);
+        }
+        if (keyCache == null) {
+        	keyCache = new KeyCache(Integer.parseInt(
+        			config.getProperty("KEY_CACHE_SIZE")));
+        }
+        if (replayWindow == null) {
+        	replayWindow = new ReplayWindow(Integer.parseInt(
+        			config.getProperty("REPLAY_WINDOW_ACCOUNTS")));
+        }
         for (String pair: pairs) {
         	// Thread already exists
         	if (liveSockets.contains(pair)) {
@@ -162,7 +186,8 @@ public class UpdateServer {
         		InetAddress addr = InetAddress.getByName(parts[0]);
         		int port = Integer.parseInt(parts[1]);
         		
-        		ListenerThread listener = new ListenerThread(addr, port, liveSockets, config);
+        		ListenerThread listener = new ListenerThread(addr, port, liveSockets, config,
+        				pipeline, bufferPool, keyCache, replayWindow);
         		Thread listenerThread = new Thread(listener);
         		listenerThread.start();
         	}
@@ -174,5 +199,49 @@ public class UpdateServer {
         }
         liveSockets.clear();
         liveSockets.addAll(Arrays.asList(pairs));
+        reloadStreamServerList();
+	}
+	
+	/*
+	 * As reloadServerList, for the STREAM_SERVER_LIST addresses that take
+	 * NUP over TCP. Stream listeners share the key cache and replay window
+	 * but not the packet pipeline; each session applies its own batches.
+	 */
+	private static void reloadStreamServerList() {
+        String serverList = config.getProperty("STREAM_SERVER_LIST", "");
+        List<String> pairs = new ArrayList<String>();
+        for (String pair: serverList.split(",")) {
+        	if (pair.trim().length() > 0) {
+        		pairs.add(pair.trim());
+        	}
+        }
+        for (String pair: pairs) {
+        	// Thread already exists
+        	if (liveStreamSockets.contains(pair)) {
+        		continue;
+        	}
+        	
+        	String[] parts = pair.split(":");
+        	if (parts.length != 2) {
+        		throw new IllegalArgumentException("Invalid stream server" +
+        				" in config file: " + serverList);
+        	}
+        	try {
+        		InetAddress addr = InetAddress.getByName(parts[0]);
+        		int port = Integer.parseInt(parts[1]);
+        		
+        		StreamListener listener = new StreamListener(addr, port, config,
+        				keyCache, replayWindow);
+        		Thread listenerThread = new Thread(listener, "StreamListener-" + pair);
+        		listenerThread.start();
+        	}
+        	catch (Exception e) {
+        		e.printStackTrace();
+        		throw new IllegalArgumentException("Invalid stream server" +
+        				" in config file: " + serverList + e.getMessage());
+        	}
+        }
+        liveStreamSockets.clear();
+        liveStreamSockets.addAll(pairs);
 	}
 }
@@ -21,6 +21,8 @@ package donar.update;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
 import java.security.*;
 import java.security.spec.*;
 import java.util.*;
@@ -31,179 +33,213 @@ import donar.dns.attrs.*;
 import donar.update.util.*;
 
 
-public class UpdateServerThread implements Runnable  {
+/**
+ * Handles one update packet in three steps, which UpdatePipeline runs on
+ * different threads: parse() decodes the packet, verify() checks its
+ * signature, and apply() makes the requested changes and replies. Each
+ * step returns false once the packet needs no further work, having
+ * replied to the client if appropriate.
+ *
+ * Despite the name, this is no longer a thread or a Runnable: it once
+ * handled each packet on a thread of its own, and keeps the name that
+ * log output and Syslog channel policies refer to it by.
+ */
+public class UpdateServerThread {
 
-	private DatagramPacket packet;
-	private byte[] packetBytes;
+	private SocketAddress replyAddr;
+	private ByteBuffer packet;	// Pooled; released once verified
+	private BufferPool bufferPool;
+	private KeyCache keyCache;
+	private ReplayWindow replayWindow;
 	private DONARBackend backend;
-	private DatagramSocket socket;
+	private DatagramChannel channel;
 	private BackupStorage bs;
 	
+	// Set by parse()
+	private short version = UpdateInfo.NUP_VERSION_DSA; // Of replies too
+	private short replyFlags; // Flags from the request echoed in replies
+	private byte[] publicKey;
+	private long sequenceNum;
+	private RequestElement[] reArray;
+	private byte[] signature;
+	private int signedLength;
+	
+	// Set by verify()
+	private String keyHash;
+	private boolean sequenceNumUsed;
 	
-	public UpdateServerThread(DatagramPacket packet, DatagramSocket socket, 
-			DONARBackend backend, BackupStorage bs)
+	
+	public UpdateServerThread(ByteBuffer packet, SocketAddress replyAddr,
+			DatagramChannel channel, BufferPool bufferPool, KeyCache keyCache,
+			ReplayWindow replayWindow, DONARBackend backend, BackupStorage bs)
 		throws IOException
 	{
 		this.packet = packet;
-		this.socket = socket;
-		this.packetBytes = new byte[packet.getLength()];
-		for (int i = 0; i < packet.getLength(); i++) {
-			this.packetBytes[i] = packet.getData()[i];
-		}
+		this.replyAddr = replyAddr;
+		this.channel = channel;
+		this.bufferPool = bufferPool;
+		this.keyCache = keyCache;
+		this.replayWindow = replayWindow;
 		this.backend = backend;
 		this.bs = bs;
 		Syslog.info(this, "Update thread successfully connected to backend");
 	}
 	
-	public void run()
+	/*
+	 * Tells the client the server is too busy to handle its packet.
+	 */
+	public void replyBusy()
 	{
-		ByteArrayInputStream byteStream = new ByteArrayInputStream(packetBytes);
-		DataInputStream data = new DataInputStream(byteStream);
-		
+		// The update was not applied, so the client may resend it with
+		// the same sequence number
+		if (sequenceNumUsed) {
+			replayWindow.release(keyHash, sequenceNum);
+			sequenceNumUsed = false;
+		}
+		if (keyHash != null) {
+			// Verified: say which number to use, without a backend read
+			packetReply(publicKey, keyHash, sequenceNum,
+					replayWindow.peek(keyHash),
+					new short[] { UpdateInfo.PACKET_SERVER_BUSY });
+		} else {
+			packetReply(UpdateInfo.PACKET_SERVER_BUSY);
+		}
+	}
+	
+	/*
+	 * After apply() failed, gives back the sequence number unless the
+	 * backend already stored it as used, so the client can resend.
+	 */
+	private void releaseUncommitted()
+	{
+		if (!sequenceNumUsed) {
+			return;
+		}
 		try {
-			// Verify magic string
-		    byte[] magic = new byte[UpdateInfo.NUP_MAGIC_STRING.length];
-			data.readFully(magic);
-			if (!verifyMagic(magic)) {
-				Syslog.debug(this, "Aborting: packet not NUP");
-				return; // Abort if this is not a NUP packet
+			if (backend.getSequenceNum(keyHash) <= sequenceNum) {
+				replayWindow.release(keyHash, sequenceNum);
+				sequenceNumUsed = false;
 			}
+		} catch (IOException e) {
+			// Keep it used: the update may have been committed
+			Syslog.warning(this, "Could not check sequence number: " +
+					e.getMessage());
+		}
+	}
+	
+	/*
+	 * Returns the packet buffer to the pool. Everything needed after
+	 * verify() has been copied out of it.
+	 */
+	public void releasePacket()
+	{
+		if (packet != null) {
+			bufferPool.release(packet);
+			packet = null;
+		}
+	}
+	
+	public boolean parse()
+	{
+		NupParser parser = new NupParser(packet);
+		if (!parser.hasMagic()) {
+			Syslog.debug(this, "Aborting: packet not NUP");
+			return false; // Abort if this is not a NUP packet
+		}
+		
+		// Verify version
+		short packetVersion = (short) (parser.getVersion() &
+				UpdateInfo.NUP_VERSION_MASK);
+		if (!UpdateInfo.isSupportedVersion(packetVersion)) {
+			Syslog.debug(this, "Aborting: packet NUP" +
+					" version not supported");
+			// Every client can read a version 0 reply
+			packetReply(UpdateInfo.PACKET_NUP_VERSION_UNSUPPORTED);
+			return false;
+		}
+		version = packetVersion;
+		replyFlags = (short) (parser.getVersion() &
+				UpdateInfo.NUP_FLAG_COMPACT_REPLY);
+		
+		// Check structure before decoding anything
+		short status = parser.validate();
+		if (status != UpdateInfo.PACKET_SUCCESS) {
+			Syslog.debug(this, "Aborting: packet malformed (" + status + ")");
+			packetReply(status);
+			return false;
+		}
+		
+		try {
+			publicKey = parser.getPublicKey();
+			sequenceNum = parser.getSequenceNum();
+			reArray = parser.getRequestElements(System.currentTimeMillis());
+			signature = parser.getSignature();
+			signedLength = parser.getSignedEnd();
+			return true;
 			
-			// Verify version
-			short version = data.readShort();
-			if (!verifyVersion(version)) {
-				Syslog.debug(this, "Aborting: packet NUP" +
-						" version not supported");
-				packetReply(packet, UpdateInfo.PACKET_NUP_VERSION_UNSUPPORTED);
-				return;
-			}
-			
-			// Read in remaining data
-			short keyLen = data.readShort();
-			byte[] publicKey = new byte[keyLen];
-			data.readFully(publicKey);
-			long sequenceNum = data.readLong();
-			short reCount = data.readShort();
-			
-			RequestElement[] reArray = new RequestElement[reCount];
-			for (int i = 0; i < reCount; i++) {
-				
-				short opcode = data.readShort();
-				
-				short subdomainLen = data.readShort();
-				byte[] subdomainBytes = new byte[subdomainLen];
-				data.readFully(subdomainBytes);
-				String subdomain = new String(subdomainBytes);
-				
-				short rrTypeLen = data.readShort();
-				byte[] rrTypeBytes = new byte[rrTypeLen];
-				data.readFully(rrTypeBytes);
-				String rrType = new String(rrTypeBytes);
-				
-				int rrDataLen = data.readInt();
-				byte[] rrDataBytes = new byte[rrDataLen];
-				data.readFully(rrDataBytes);
-				
-				int ttl = data.readInt();
-				short numAttrs = data.readShort();
-				RequestElement re = new RequestElement(opcode, subdomain,
-						rrType, rrDataBytes, ttl);
-				for (int j = 0; j < numAttrs; j++) {
-					short attType = data.readShort();
-					short attLength = data.readShort();
-					byte[] attData = new byte[attLength];
-					data.readFully(attData);
-					RecordAttribute newAtt = null;
-					switch (attType) {
-						// Convert TTL into absolute time
-						case UpdateInfo.DONAR_TTL: 
-							newAtt = new IntegerRecordAttribute();
-							long time = ((new Date()).getTime()) / 1000;
-							newAtt.setData(attData);
-							time = time + ((IntegerRecordAttribute) newAtt).data;
-							int expires;
-							expires = ((int) ((time >> 24) & 0xFF)) << 24;
-							expires += ((int) ((time >> 16) & 0xFF)) << 16;
-							expires += ((int) ((time >> 8) & 0xFF)) << 8;;
-							expires += ((int) ((time) & 0xFF));
-							newAtt.typeID = UpdateInfo.EXPIRATION_TIME;
-							((IntegerRecordAttribute) newAtt).data = expires;
-							attType = UpdateInfo.EXPIRATION_TIME;
-							break;
-							
-						case UpdateInfo.SPLIT_PROPORTION:
-							newAtt = new DoubleRecordAttribute();
-							newAtt.setData(attData);
-							break;
-							
-						case UpdateInfo.SPLIT_EPSILON:
-							newAtt = new DoubleRecordAttribute();
-							newAtt.setData(attData);
-							break;
-							
-						case UpdateInfo.BANDWIDTH_CAP:
-							newAtt = new DoubleRecordAttribute();
-							newAtt.setData(attData);
-							break;		
-							
-						case UpdateInfo.DIST_ADJUSTMENT:
-							newAtt = new DoubleListRecordAttribute();
-							newAtt.setData(attData);
-							break;
-						default: continue;
-					}
-
-					newAtt.typeID = attType;
-					re.attributes.add(newAtt);
+		} catch (IOException e) {
+			Syslog.error(this, "Failure processing packet: " + e.getMessage());
+			packetReply(UpdateInfo.PACKET_FAILURE);
+			return false;
+		}
+	}
+	
+	public boolean verify()
+	{
+		KeyCache.CachedKey key = keyCache.get(publicKey, version);
+		keyHash = key != null ? key.hash : KeyUtil.getHashString(publicKey);
+		if (key == null || !verifySignature(key.publicKey, signature,
+				packet, 0, signedLength)) {
+			Syslog.debug(this, "Signature invalid. Sending reply packet.");
+			packetReply(publicKey, keyHash, sequenceNum,
+					replayWindow.peek(keyHash),
+					new short[] { UpdateInfo.PACKET_INVALID_SIGNATURE });
+			return false;
+		}
+		Syslog.debug(this, "Packet signature valid.");
+		
+		// Verify sequence number. Packets without request elements only
+		// ask for the next sequence number, so need not use one up.
+		if (reArray.length > 0) {
+			try {
+				if (!replayWindow.accept(keyHash, sequenceNum, backend)) {
+					Syslog.debug(this, "Sequence number " + sequenceNum +
+							" already used. Sending reply packet.");
+					packetReply(publicKey, keyHash, sequenceNum,
+							UpdateInfo.PACKET_INVALID_SEQNUM);
+					return false;
 				}
-				
-				Syslog.debug(this, "Read request element from packet", re);
-				
-				reArray[i] = re;
-			}
-			
-			short signatureLen = data.readShort();
-			byte[] signature = new byte[signatureLen];
-			data.readFully(signature);
-			
-			// Verify signature
-			if (!verifySignature(publicKey, signature, packetBytes,
-					0, packetBytes.length - 2 - signatureLen)) {
-				Syslog.debug(this, "Signature invalid. Sending reply packet.");
-				packetReply(packet, publicKey, sequenceNum,
-						UpdateInfo.PACKET_INVALID_SIGNATURE);
-				return;
+			} catch (IOException e) {
+				Syslog.error(this, "Failure checking sequence number: " +
+						e.getMessage());
+				packetReply(UpdateInfo.PACKET_FAILURE);
+				return false;
 			}
-			Syslog.debug(this, "Packet signature valid.");
-			
+			sequenceNumUsed = true;
+			Syslog.debug(this, "Sequence number verified.");
+		}
+		return true;
+	}
+	
+	public void apply()
+	{
+		try {
 			// Add key to database if we haven't seen it before
-			String keyHash = KeyUtil.getHashString(publicKey);
 			backend.assureKey(keyHash);
 			Syslog.debug(this, "AssureKey complete for  " + keyHash);
 			
-			
-			/*
-			// Verify sequence number
-			if (!verifySequenceNum(sequenceNum, publicKey))	 {
-				Syslog.debug(this, "Sequence nubmber invalid. Sending " +
-						"reply packet.");
-				packetReply(packet, publicKey, sequenceNum,
-						UpdateInfo.PACKET_INVALID_SEQNUM);
-				return;
-			}
-			Syslog.debug(this, "Sequence number verified.");
-			*/
-			
 			// Process request
-			List<Short> codes = processRequest(reArray, publicKey);
+			short[] codes = processRequest(backend, bs, keyHash, reArray,
+					sequenceNum);
 			
 			Syslog.debug(this, "Sending reply packet.");
-			packetReply(packet, publicKey, sequenceNum, codes);
+			packetReply(publicKey, keyHash, sequenceNum, codes);
 			
 		} catch (IOException e) {
 			Syslog.error(this, "Failure processing packet: " + e.getMessage());
 			e.printStackTrace();
-			packetReply(packet, UpdateInfo.PACKET_FAILURE);
+			releaseUncommitted();
+			packetReply(UpdateInfo.PACKET_FAILURE);
 			return;
 		}
 		
@@ -214,128 +250,166 @@ public class UpdateServerThread implements Runnable  {
 	 * Given an array of request elements decoded from a NUP packet, 
 	 * attempt to process those requests. If request update fails, 
 	 * indicate failure reason in the opcode field of the request element.
+	 * If the backend is transactional, valid request elements are applied
+	 * as one backend update: if the backend fails on any of them, none are
+	 * applied. Otherwise each is applied as it comes and reported on its
+	 * own, as the elements before a failing one stay applied. The
+	 * account's sequence number is moved past sequenceNum with them,
+	 * unless sequenceNum is negative, as for stream batches (see
+	 * StreamSession).
 	 */
-	private List<Short> processRequest(RequestElement[] reArray, 
-			byte[] publicKey)
+	static short[] processRequest(DONARBackend backend, BackupStorage bs,
+			String keyHash, RequestElement[] reArray, long sequenceNum)
 	throws IOException
 	{
-		Syslog.debug(this, "Beginning to handle request elements in packet.");
+		Syslog.debug(UpdateServerThread.class, "Beginning to handle request elements in packet.");
 		
-		String keyHash = KeyUtil.getHashString(publicKey);
-		short mainCode = UpdateInfo.PACKET_FAILURE_NO_RE;
-		LinkedList<Short> codeList = new LinkedList<Short>();
+		// Main status code, then one per request element
+		short[] codes = new short[reArray.length + 1];
 		
 		// Get AccountInfo to update
 		backend.bindAccount(keyHash);
-		Syslog.debug(this, "Bound account to backend: " + keyHash);
+		Syslog.debug(UpdateServerThread.class, "Bound account to backend: " + keyHash);
 		
-		if (bs != null) {
-	      bs.assureStored(keyHash, backend.getSuffix());
-		}
+		// Always unbind: the backend may hold the account until then
+		try {
+			if (bs != null) {
+		      bs.assureStored(keyHash, backend.getSuffix());
+			}
 		
-		for (RequestElement re: reArray) {
-			// Process individual REs
+			backend.beginUpdate();
+			boolean transactional = backend.isTransactional();
+			boolean failed = false;
+			boolean applied = false;
+			for (int i = 0; i < reArray.length; i++) {
+				// Process individual REs
+				RequestElement re = reArray[i];
 			
-			short reCode = re.checkRE();
+				short reCode = re.checkRE();
 			
-			if (reCode == UpdateInfo.RE_SUCCESS) {
+				if (reCode != UpdateInfo.RE_SUCCESS) {
+					Syslog.debug(UpdateServerThread.class, "No request element found");
+				} else if (failed && transactional) {
+					// Update is being rolled back
+					reCode = UpdateInfo.RE_OTHER_ERROR_RE;
+				} else {
 				
-				// Ask backend to handle this request
-				try {
-					if (re.opcode == UpdateInfo.NUP_OPCODE_ADD) {
-						Syslog.debug(this, "Adding record...");;
-						backend.addRecord(re.subdomain,
-								re.rrtype, re.rrdata, re.ttl, re.attributes);		
-						Syslog.debug(this, "Succesfully added new record for " + 
-								re.subdomain);
-					} else if (re.opcode == UpdateInfo.NUP_OPCODE_DELETE) {
-						
-						backend.delRecords(re.subdomain, re.rrtype, re.rrdata);
-						Syslog.debug(this, "Succesfully deleted record for " + 
-								re.subdomain);
+					// Ask backend to handle this request
+					try {
+						if (re.opcode == UpdateInfo.NUP_OPCODE_ADD) {
+							Syslog.debug(UpdateServerThread.class, "Adding record...");;
+							backend.addRecord(re.subdomain,
+									re.rrtype, re.rrdata, re.ttl, re.attributes);		
+							Syslog.debug(UpdateServerThread.class, "Succesfully added new record for " + 
+									re.subdomain);
+						} else if (re.opcode == UpdateInfo.NUP_OPCODE_DELETE) {
 						
-					} else if (re.opcode == UpdateInfo.NUP_OPCODE_VALIDATE) {
-						if (KeyUtil.validateDomain(re.subdomain, keyHash)) { 
-							String newSuffix = re.subdomain;
-							Syslog.debug(this, "updating suffix for " + 
+							backend.delRecords(re.subdomain, re.rrtype, re.rrdata);
+							Syslog.debug(UpdateServerThread.class, "Succesfully deleted record for " + 
 									re.subdomain);
-							backend.updateSuffix(newSuffix);
+						
+						} else if (re.opcode == UpdateInfo.NUP_OPCODE_VALIDATE) {
+							if (KeyUtil.validateDomain(re.subdomain, keyHash)) { 
+								String newSuffix = re.subdomain;
+								Syslog.debug(UpdateServerThread.class, "updating suffix for " + 
+										re.subdomain);
+								backend.updateSuffix(newSuffix);
 							
-							backend.addRecord("", "SOA", "localhost " + re.rrdata + " 0", re.ttl,
-								re.attributes);
-						} else {
-							throw new IOException("Domain " + re.subdomain +
-									" could not be validated for key " +
-									keyHash);
+								backend.addRecord("", "SOA", "localhost " + re.rrdata + " 0", re.ttl,
+									re.attributes);
+							} else {
+								throw new IOException("Domain " + re.subdomain +
+										" could not be validated for key " +
+										keyHash);
+							}
 						}
+						applied = true;
+					} catch (IOException e) {
+						// handle IO failure
+						Syslog.error(UpdateServerThread.class, "Error processing request: " + e.getMessage());
+						reCode = UpdateInfo.RE_OTHER_ERROR;
+						failed = true;
 					}
-	
-					// Update main code for success on this RE
-					if (mainCode == UpdateInfo.PACKET_FAILURE_NO_RE)
-						mainCode = UpdateInfo.PACKET_SUCCESS;
-					else if (mainCode == UpdateInfo.PACKET_FAILURE)
-						mainCode = UpdateInfo.PACKET_PARTIAL_SUCCESS;	
+				}
+			
+				// Add RE-specific code to list
+				codes[i + 1] = reCode;
+			}
+		
+			// Record sequence number with the update
+			boolean committed = false;
+			if (applied && !(failed && transactional)) {
+				try {
+					if (sequenceNum >= 0)
+						backend.advanceSequenceNum(sequenceNum + 1);
+					backend.commitUpdate();
+					committed = true;
 				} catch (IOException e) {
-					// handle IO failure
-					Syslog.error(this, "Error processing request: " + e.getMessage());
-					reCode = UpdateInfo.RE_OTHER_ERROR;
-					if (mainCode == UpdateInfo.PACKET_FAILURE_NO_RE)
-						mainCode = UpdateInfo.PACKET_FAILURE;
-					else if (mainCode == UpdateInfo.PACKET_SUCCESS)
-						mainCode = UpdateInfo.PACKET_PARTIAL_SUCCESS;
+					Syslog.error(UpdateServerThread.class, "Error committing update: " + e.getMessage());
+					failed = true;
 				}
-				
-			} else {
-				Syslog.debug(this, "No request element found");
-				// Update main code for failure on this RE
-				if (mainCode == UpdateInfo.PACKET_FAILURE_NO_RE)
-					mainCode = UpdateInfo.PACKET_FAILURE;
-				else if (mainCode == UpdateInfo.PACKET_SUCCESS)
-					mainCode = UpdateInfo.PACKET_PARTIAL_SUCCESS;
 			}
-			
-			// Add RE-specific code to list
-			codeList.addLast(reCode);
+			if (!committed) {
+				backend.abortUpdate();
+				if (failed && transactional) {
+					// Nothing was applied, so nothing succeeded
+					for (int i = 1; i < codes.length; i++) {
+						if (codes[i] == UpdateInfo.RE_SUCCESS)
+							codes[i] = UpdateInfo.RE_OTHER_ERROR_RE;
+					}
+				}
+			}
+			if (!committed && reArray.length > 0 && sequenceNum >= 0) {
+				// The replay window has used up this sequence number; store
+				// that too, so the packet cannot be replayed after a restart
+				try {
+					backend.beginUpdate();
+					backend.advanceSequenceNum(sequenceNum + 1);
+					backend.commitUpdate();
+				} catch (IOException e) {
+					Syslog.warning(UpdateServerThread.class, "Error recording sequence number: " +
+							e.getMessage());
+					backend.abortUpdate();
+				}
+			}
+		} finally {
+			backend.unbindAccount(keyHash);
 		}
+		Syslog.debug(UpdateServerThread.class, "Handled requests and unbound account from backend.");
 		
-		// Increment sequence number if necessary
-		if (mainCode == UpdateInfo.PACKET_SUCCESS ||
-			mainCode == UpdateInfo.PACKET_PARTIAL_SUCCESS)
-			backend.incrementSequenceNum();
-	
-		backend.unbindAccount(keyHash);
-		Syslog.debug(this, "Handled requests and unbound account from backend.");
-		
-		codeList.addFirst(mainCode); // Add main status code
-		return codeList;
+		codes[0] = mainCode(codes); // Add main status code
+		return codes;
 		
 	}
 	
-	private void packetReply(DatagramPacket packet, short errorCode)
+	/*
+	 * Packet status summarising the status of each request element, held
+	 * in codes[1..].
+	 */
+	private static short mainCode(short[] codes)
+	{
+		int reCount = codes.length - 1;
+		if (reCount == 0)
+			return UpdateInfo.PACKET_FAILURE_NO_RE;
+		int successes = 0;
+		for (int i = 1; i < codes.length; i++) {
+			if (codes[i] == UpdateInfo.RE_SUCCESS)
+				successes++;
+		}
+		if (successes == reCount)
+			return UpdateInfo.PACKET_SUCCESS;
+		if (successes == 0)
+			return UpdateInfo.PACKET_FAILURE;
+		return UpdateInfo.PACKET_PARTIAL_SUCCESS;
+	}
+	
+	private void packetReply(short errorCode)
 	{
 		// Reply with no public key or sequence number
 		try {
-			
-			// build reply
-			ByteArrayOutputStream replyBytes = new ByteArrayOutputStream();
-			DataOutputStream replyData = new DataOutputStream(replyBytes);
-			replyData.write(UpdateInfo.NUP_MAGIC_STRING);
-			replyData.writeShort(UpdateInfo.NUP_VERSION);
-			replyData.writeShort(0); // No public key
-			replyData.writeLong(-1); // No sequence number
-			replyData.writeLong(-1);
-			replyData.writeShort(0); // No RE codes
-			replyData.writeShort(errorCode);
-			replyData.flush();
-			
-			// send reply
-			SocketAddress replyAddr = packet.getSocketAddress();
-			byte[] replyArray = replyBytes.toByteArray();
-			DatagramPacket replyPacket =
-				new DatagramPacket(replyArray, replyArray.length, replyAddr);
-			this.socket.send(replyPacket);
+			channel.send(ReplyEncoder.encode(replyVersion(), errorCode),
+					replyAddr);
 			Syslog.debug(this, "Send reply packet to: " + replyAddr);
-			
 		} catch (IOException e) {
 			Syslog.warning(this, "Error sending packet reply", e);
 			return;
@@ -343,43 +417,35 @@ public class UpdateServerThread implements Runnable  {
 		
 	}
 	
-	private void packetReply(DatagramPacket packet, byte[] publicKey,
+	private void packetReply(byte[] publicKey, String keyHash,
 			 long sequenceNum, short errorCode)
 	{
-		List<Short> codeList = new LinkedList<Short>();
-		codeList.add(errorCode);
-		packetReply(packet, publicKey, sequenceNum, codeList);
+		packetReply(publicKey, keyHash, sequenceNum, new short[] { errorCode });
 	}
 	
-	private void packetReply(DatagramPacket packet, byte[] publicKey,
-							 long sequenceNum, List<Short> errorCodes) {
+	private void packetReply(byte[] publicKey, String keyHash,
+							 long sequenceNum, short[] errorCodes) {
+		long nextSequenceNum;
+		try {
+			nextSequenceNum = replayWindow.next(keyHash, backend);
+		} catch (IOException e) {
+			// Just don't send a reply on failure
+			Syslog.warning(this, "Error sending packet reply", e);
+			return;
+		}
+		packetReply(publicKey, keyHash, sequenceNum, nextSequenceNum,
+				errorCodes);
+	}
+	
+	private void packetReply(byte[] publicKey, String keyHash,
+			long sequenceNum, long nextSequenceNum, short[] errorCodes) {
 		// Reply with everything
 		
 		try {
 			
-			long nextSequenceNum =
-				backend.getSequenceNum(KeyUtil.getHashString(publicKey));
-			
-			// build reply
-			ByteArrayOutputStream replyBytes = new ByteArrayOutputStream();
-			DataOutputStream replyData = new DataOutputStream(replyBytes);
-			replyData.write(UpdateInfo.NUP_MAGIC_STRING);
-			replyData.writeShort(UpdateInfo.NUP_VERSION);
-			replyData.writeShort(publicKey.length);
-			replyData.write(publicKey);
-			replyData.writeLong(sequenceNum);
-			replyData.writeLong(nextSequenceNum);
-			replyData.writeShort(errorCodes.size() - 1);
-			for (short code : errorCodes)
-				replyData.writeShort(code);
-			replyData.flush();
-			
-			// send reply
-			SocketAddress replyAddr = packet.getSocketAddress();
-			byte[] replyArray = replyBytes.toByteArray();
-			DatagramPacket replyPacket =
-				new DatagramPacket(replyArray, replyArray.length, replyAddr);
-			this.socket.send(replyPacket);
+			channel.send(ReplyEncoder.encode(replyVersion(), publicKey,
+					keyHash, sequenceNum, nextSequenceNum, errorCodes),
+					replyAddr);
 			Syslog.debug(this, "Send reply packet to: " + replyAddr);
 			
 		} catch (IOException e) {
@@ -389,52 +455,28 @@ public class UpdateServerThread implements Runnable  {
 		}
 	}
 	
-	private boolean verifyMagic(byte[] magic)
+	private short replyVersion()
 	{
-		return Arrays.equals(magic, UpdateInfo.NUP_MAGIC_STRING);
+		return (short) (version | replyFlags);
 	}
 	
-	private boolean verifyVersion(short version)
-	{
-		return version == UpdateInfo.NUP_VERSION;
-	}
-	
-	private boolean verifySignature(byte[] publicKey, byte[] signature,
-			byte[] signedData, int rangeStart, int rangeEnd)
+	private boolean verifySignature(PublicKey pubKey, byte[] signature,
+			ByteBuffer signedData, int rangeStart, int rangeEnd)
 	{
 		try {
-			KeyFactory keyFactory = KeyFactory.getInstance("DSA");
-			X509EncodedKeySpec pubSpec = new X509EncodedKeySpec(publicKey);
-			PublicKey pubKey = keyFactory.generatePublic(pubSpec);
-			Signature verifier = Signature.getInstance("DSA");
+			Signature verifier = KeyUtil.getVerifier(version);
 			verifier.initVerify(pubKey);
-			verifier.update(signedData, rangeStart, rangeEnd);
+			ByteBuffer range = signedData.duplicate();
+			range.limit(rangeEnd).position(rangeStart);
+			verifier.update(range);
 			return verifier.verify(signature);
 		} catch (InvalidKeyException e) {
 			// Fail to verify on exception
 			return false;
-		} catch (NoSuchAlgorithmException e) {
-			return false;
 		} catch (SignatureException e) {
 			return false;
-		} catch (InvalidKeySpecException e) {
-			return false;
 		}
 		
 	}
-	
-	
-	private boolean verifySequenceNum(long sequenceNum, byte[] publicKey)
-	throws IOException
-	{
-		String hashStr = KeyUtil.getHashString(publicKey);
-		long correctNum = backend.getSequenceNum(hashStr);
-		if (correctNum == sequenceNum)
-			return true;
-		else
-			Syslog.debug(this, "Invalid seq num: Expecting " + correctNum + 
-					" and found " + sequenceNum);
-			return false;
-	}
 
 }
@@ -27,6 +27,8 @@ import joptsimple.OptionException;
 import java.io.*;
 import java.util.*;
 
+import donar.update.UpdateInfo;
+
 
 public class UpdateClient {
 	
@@ -37,6 +39,8 @@ public class UpdateClient {
 	// Client constants
 	private static final String DEFAULT_KEY_PATH = ".";
 	private static final String DEFAULT_SERVER_ADDRESS = "localhost";
+	private static final int DEFAULT_BATCH_SIZE = 1000;
+	private static final int MAX_BATCH_SIZE = 0xFFFF; // Count is a short
 
 	private static final String USAGE_STRING = "Usage: donar.update.client.UpdateClient -s" +
 	" update_server [options] [DONAR Directives] ";
@@ -56,6 +60,19 @@ public class UpdateClient {
 				" to use; will offer to generate a new key pair with this" +
 				" name if not found. Default: nupkey")
 				.withRequiredArg().ofType(String.class);
+		parser.acceptsAll(
+				Arrays.asList(
+						new String[] { "t", "key-type" } ),
+				"Algorithm for a newly generated key pair: ed25519 or dsa" +
+				" (the original NUP version 0 keys). Existing keys are used" +
+				" with whichever algorithm they were made for." +
+				" Default: ed25519")
+				.withRequiredArg().ofType(String.class);
+		parser.acceptsAll(
+				Arrays.asList(
+						new String[] { "c", "compact-replies" } ),
+				"Ask the server to send the SHA-1 of the public key in" +
+				" replies instead of the key itself.");
 		parser.acceptsAll(
 				Arrays.asList(
 						new String[] { "n", "sequence-number" } ),
@@ -70,6 +87,20 @@ public class UpdateClient {
 				"Address or hostname of the remote host to which update request should be" +
 				" sent.")
 				.withRequiredArg().ofType(String.class);
+		parser.acceptsAll(
+				Arrays.asList(
+						new String[] { "b", "stream-server" } ),
+				"Send directives in batches over a NUP stream to this" +
+				" host[:port] instead of one packet each. Directives are" +
+				" read from stdin, or taken from the arguments. Default port: " +
+				UpdateInfo.NUP_DEFAULT_STREAM_PORT)
+				.withRequiredArg().ofType(String.class);
+		parser.acceptsAll(
+				Arrays.asList(
+						new String[] { "batch-size" } ),
+				"Request elements per batch with --stream-server." +
+				" Default: " + DEFAULT_BATCH_SIZE)
+				.withRequiredArg().ofType(Integer.class);
 		
 		try {
 			OptionSet options = parser.parse( args );
@@ -96,8 +127,24 @@ public class UpdateClient {
             	return;
             }
         
+            // Get algorithm for new keys
+            short newKeyVersion = UpdateInfo.NUP_VERSION;
+            if (options.has("key-type")) {
+            	String keyType = (String)options.valueOf("key-type");
+            	if (keyType.equalsIgnoreCase("dsa"))
+            		newKeyVersion = UpdateInfo.NUP_VERSION_DSA;
+            	else if (keyType.equalsIgnoreCase("ed25519"))
+            		newKeyVersion = UpdateInfo.NUP_VERSION_ED25519;
+            	else {
+            		System.err.println("Unknown key type: " + keyType);
+            		parser.printHelpOn( System.err );
+            		return;
+            	}
+            }
+        
             UpdateClientConnection conn = new UpdateClientConnection(server,
-            		keyPath);
+            		keyPath, newKeyVersion);
+            conn.setCompactReplies(options.has("compact-replies"));
            
             // Get ready to read from stdin
             BufferedReader stdin = new BufferedReader(
@@ -107,7 +154,25 @@ public class UpdateClient {
             // wait for request from stdin pipe.
             boolean success;
             List argRequest = options.nonOptionArguments();
-            if (argRequest.size() > 0) {
+            if (options.has("stream-server")) {
+            	int batchSize = DEFAULT_BATCH_SIZE;
+            	if (options.has("batch-size"))
+            		batchSize = Math.max(1, Math.min(MAX_BATCH_SIZE,
+            				(Integer)options.valueOf("batch-size")));
+            	BufferedReader directives = stdin;
+            	if (argRequest.size() > 0) {
+            		String line = "";
+            		for (Object arg : argRequest)
+            			line = line + arg + " ";
+            		directives = new BufferedReader(new StringReader(line.trim()));
+            	}
+            	success = conn.sendBatches(
+            			(String)options.valueOf("stream-server"), directives,
+            			batchSize);
+            	if (success) System.exit(0);
+            	else System.exit(1);
+            }
+            else if (argRequest.size() > 0) {
             	success = conn.sendUpdate(argRequest);
             	if (success) System.exit(0);
             	else System.exit(1);
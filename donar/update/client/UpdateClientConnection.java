@@ -19,6 +19,9 @@ package donar.update.client;
  * under the License.
  */
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
@@ -30,13 +33,18 @@ import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.Socket;
 import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
 import java.security.KeyFactory;
 import java.security.KeyPair;
 import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
 import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.security.Signature;
+import java.security.spec.InvalidKeySpecException;
 import java.security.spec.PKCS8EncodedKeySpec;
 import java.security.spec.X509EncodedKeySpec;
 import java.util.ArrayList;
@@ -59,6 +67,10 @@ public class UpdateClientConnection {
 	private String server;  	// DONAR server to talk to
 	private String keyPath; 	// Directory to look for .pub/.pri/.seq files
 	private KeyPair keyPair; 
+	private short nupVersion;	// Follows from the key algorithm
+	private boolean compactReplies; // Ask for key hash, not key, in replies
+	
+	private static final int STREAM_TIMEOUT = 60 * 1000; // ms per batch
 	
 	long seqNum;
 	
@@ -70,6 +82,14 @@ public class UpdateClientConnection {
 		 * if reply[] does not describe a valid reply.
 		 */
 		public ReplyPacket(byte[] reply) throws IOException {
+			this(reply, seqNum);
+		}
+		
+		/*
+		 * As above, for a reply to the request with sequence (or batch)
+		 * number expectedSeq.
+		 */
+		public ReplyPacket(byte[] reply, long expectedSeq) throws IOException {
 			if (reply == null) {
 				throw new IOException("Got empty reply");
 			}
@@ -86,26 +106,33 @@ public class UpdateClientConnection {
 					throw new IOException("Invalid magic string");
 				
 				// Version number
-				short version = replyData.readShort();
-				if (!(version == UpdateInfo.NUP_VERSION))
+				// Servers answer versions they do not support with a
+				// version 0 reply
+				short flags = replyData.readShort();
+				short version = (short) (flags & UpdateInfo.NUP_VERSION_MASK);
+				if (!(version == nupVersion ||
+						version == UpdateInfo.NUP_VERSION_DSA))
 					throw new IOException("Invalid NUP version");
 				
-				// DSA public key
+				// Public key
 				short keylen = replyData.readShort();
 				if (keylen > 0) {
 					// Allow for keyless replies
 					byte[] packetKey = new byte[keylen];
 					replyData.readFully(packetKey);
 					byte[] ourKey = keyPair.getPublic().getEncoded();
+					if ((flags & UpdateInfo.NUP_FLAG_COMPACT_REPLY) != 0)
+						ourKey = MessageDigest.getInstance("SHA-1")
+							.digest(ourKey);
 					if (!Arrays.equals(packetKey, ourKey))
 						throw new IOException("Signature does not match");
 				}
 				
 				// Sequence number
 				long packetSequenceNum = replyData.readLong();
-				if (!(packetSequenceNum == seqNum) && (packetSequenceNum > 0))
+				if (!(packetSequenceNum == expectedSeq) && (packetSequenceNum > 0))
 					throw new IOException("Sequence number is not correct. Found " +
-							packetSequenceNum + " should be " + seqNum );
+							packetSequenceNum + " should be " + expectedSeq );
 
 				// Packet is valid, so read other data
 				nextSequenceNum = replyData.readLong();
@@ -181,7 +208,9 @@ public class UpdateClientConnection {
 		    byte[] packetData = buildPacket(requestElements);
 		    ReplyPacket reply = sendPacket(packetData);
 		    
-		    if (reply != null)
+		    // Replies sent before the server knew the account (e.g. busy)
+		    // carry no sequence number; resend with the same one then
+		    if (reply != null && reply.nextSequenceNum >= 0)
 		    	updateSequenceNum(reply.nextSequenceNum);
 		    System.out.println("Reply was: " + reply);
 		    return reply.isSuccess();
@@ -199,25 +228,45 @@ public class UpdateClientConnection {
 	 * will be created if no such files exist).
 	 */
 	public UpdateClientConnection(String server, String keyPath)
+	{
+		this(server, keyPath, UpdateInfo.NUP_VERSION);
+	}
+	
+	/*
+	 * As above, but any new key pair is created for NUP version
+	 * newKeyVersion. Existing keys are used with the version matching
+	 * their algorithm.
+	 */
+	public UpdateClientConnection(String server, String keyPath,
+			short newKeyVersion)
 	{
 		this.server = server;
 		this.keyPath = keyPath + "/nupkey";
-		this.keyPair = setupKeyPair();
+		this.keyPair = setupKeyPair(newKeyVersion);
 		setSequenceNumber();
 	}
 	
+	/*
+	 * Ask the server to identify the key in replies by its SHA-1 hash
+	 * rather than repeating the whole key.
+	 */
+	public void setCompactReplies(boolean compactReplies)
+	{
+		this.compactReplies = compactReplies;
+	}
+	
 	/* 
 	 * If private and public key files exist at path, then return the KeyPair
 	 * stored in those files. Otherwise, create a new key pair and store
 	 * them in the path directory.
 	 */
-	private KeyPair setupKeyPair()
+	private KeyPair setupKeyPair(short newKeyVersion)
 	{
 		KeyPair kp;
 		if (new File(keyPath + ".pub").exists() ||
         		new File(keyPath + ".pvt").exists()) {
         		// Attempt toload existing keypair
-        		kp = loadDSAKeys(keyPath);
+        		kp = loadKeys(keyPath);
         		if (kp == null) {
         			System.err.println("Error: keys at " + keyPath + ".pub" +
         					" and " + keyPath + ".pvt could not be loaded.");
@@ -225,7 +274,7 @@ public class UpdateClientConnection {
     	} else {
     		// No key pair with the given name; generate a new one
     		System.out.println("Generating new keys...");
-    		kp = generateDSAKeys(keyPath);
+    		kp = generateKeys(keyPath, newKeyVersion);
     		if (kp == null) {
     			System.err.println("Error: key could not be generated at " +
     					keyPath + ".pub and " + keyPath + ".pvt.");
@@ -236,22 +285,26 @@ public class UpdateClientConnection {
 	}
 	
 	/*
-	 * Generate a new private/public key pair and save key files in the path
-	 * directory. Raturns null if KeyPair cannot be created or saved.
+	 * Generate a new private/public key pair for NUP version version and
+	 * save key files in the path directory. Raturns null if KeyPair cannot
+	 * be created or saved.
 	 */
-	private KeyPair generateDSAKeys(String path)
+	private KeyPair generateKeys(String path, short version)
 	{
 		// Generate
+		String algorithm = UpdateInfo.NUP_KEY_ALGORITHMS[version];
 		KeyPairGenerator kpg;
 		try {
-			kpg = KeyPairGenerator.getInstance("DSA");
+			kpg = KeyPairGenerator.getInstance(algorithm);
 		} catch (java.security.NoSuchAlgorithmException e) {
 			System.err.println("Error: This system does not provide support "
-					+ "for SHA512withDSA.");
+					+ "for " + algorithm + ".");
 			return null;
 		}
-		kpg.initialize(1024);
+		if (version == UpdateInfo.NUP_VERSION_DSA)
+			kpg.initialize(1024);
 		KeyPair kp = kpg.generateKeyPair();
+		nupVersion = version;
 		
 		// Save
 		PublicKey pub = kp.getPublic();
@@ -274,11 +327,12 @@ public class UpdateClientConnection {
 	
 	
 	/*
-	 * Try to load the DSA keys from files in the path directory. Requires
+	 * Try to load the keys from files in the path directory. Requires
 	 * files that end in .pub and .pvt. Return KeyPair containing the data
-	 * in those files.
+	 * in those files, and use the NUP version whose key algorithm could
+	 * decode them.
 	 */
-	private KeyPair loadDSAKeys(String path)
+	private KeyPair loadKeys(String path)
 	{
 		// Load
 		try {
@@ -297,13 +351,22 @@ public class UpdateClientConnection {
 			pvtIn.close();
 			
 			// Convert
-			KeyFactory keyFactory = KeyFactory.getInstance("DSA");
 			X509EncodedKeySpec pubSpec = new X509EncodedKeySpec(pubData);
 			PKCS8EncodedKeySpec pvtSpec = new PKCS8EncodedKeySpec(pvtData);
-			PublicKey pubKey = keyFactory.generatePublic(pubSpec);
-			PrivateKey pvtKey = keyFactory.generatePrivate(pvtSpec);
-			
-			return new KeyPair(pubKey, pvtKey);
+			for (short version = 0;
+					version < UpdateInfo.NUP_KEY_ALGORITHMS.length; version++) {
+				KeyFactory keyFactory = KeyFactory.getInstance(
+						UpdateInfo.NUP_KEY_ALGORITHMS[version]);
+				try {
+					PublicKey pubKey = keyFactory.generatePublic(pubSpec);
+					PrivateKey pvtKey = keyFactory.generatePrivate(pvtSpec);
+					nupVersion = version;
+					return new KeyPair(pubKey, pvtKey);
+				} catch (InvalidKeySpecException e) {
+					// Not this algorithm
+				}
+			}
+			return null;
 			
 		} catch (Exception e) {
 			// Fail out on any kind of I/O or key loading error
@@ -347,7 +410,8 @@ public class UpdateClientConnection {
 				return;
 			}
 			System.err.println("Got answer: " + reply.nextSequenceNum);
-			updateSequenceNum(reply.nextSequenceNum);
+			if (reply.nextSequenceNum >= 0)
+				updateSequenceNum(reply.nextSequenceNum);
 		
 		} catch (Exception ex) {
 			// Give up on exception
@@ -373,12 +437,183 @@ public class UpdateClientConnection {
 		}
 	}
 	
+	/*
+	 * Send directives read from in, one per line, over a NUP stream to
+	 * streamServer (host[:port]). The connection is authenticated once;
+	 * directives are then sent in batches of up to batchSize request
+	 * elements, each applied by the server as a single update. Return
+	 * true if every batch was applied in full.
+	 */
+	public boolean sendBatches(String streamServer, BufferedReader in,
+			int batchSize) {
+		String host = streamServer;
+		int port = UpdateInfo.NUP_DEFAULT_STREAM_PORT;
+		int colon = streamServer.lastIndexOf(':');
+		if (colon >= 0) {
+			host = streamServer.substring(0, colon);
+			try {
+				port = Integer.parseInt(streamServer.substring(colon + 1));
+			} catch (NumberFormatException e) {
+				System.err.println("Error: invalid port: " + streamServer);
+				return false;
+			}
+		}
+		
+		Socket socket = null;
+		try {
+			socket = new Socket(host, port);
+			socket.setSoTimeout(STREAM_TIMEOUT);
+			DataInputStream streamIn = new DataInputStream(
+					new BufferedInputStream(socket.getInputStream()));
+			DataOutputStream streamOut = new DataOutputStream(
+					new BufferedOutputStream(socket.getOutputStream()));
+			
+			// Answer the server's challenge with a signed, empty request
+			DataInputStream challenge = new DataInputStream(
+					new ByteArrayInputStream(readFrame(streamIn)));
+			byte[] magic = new byte[UpdateInfo.NUP_MAGIC_STRING.length];
+			challenge.readFully(magic);
+			if (!Arrays.equals(magic, UpdateInfo.NUP_MAGIC_STRING))
+				throw new IOException("Invalid magic string");
+			challenge.readShort(); // Server's version
+			byte[] nonce = new byte[challenge.readShort()];
+			challenge.readFully(nonce);
+			writeFrame(streamOut, buildPacket(
+					new LinkedList<RequestElement>(), nonce));
+			ReplyPacket reply = new ReplyPacket(readFrame(streamIn));
+			if (!reply.isSuccess()) {
+				System.out.println("Authentication failed: " + reply);
+				return false;
+			}
+			
+			boolean success = true;
+			long batchNum = 1;
+			int count = 0;
+			ByteArrayOutputStream reBytes = new ByteArrayOutputStream();
+			DataOutputStream reOut = new DataOutputStream(reBytes);
+			String line;
+			while ((line = in.readLine()) != null) {
+				List<RequestElement> requestElements =
+					generateRequestElements(Arrays.asList(line.split(" ")));
+				if (requestElements == null) {
+					System.out.println("Could not interpret directive: " + line);
+					success = false;
+					continue;
+				}
+				if (count > 0 && (count + requestElements.size() > batchSize ||
+						reBytes.size() > UpdateInfo.NUP_MAX_FRAME_LENGTH -
+						UpdateInfo.NUP_MAX_PACKET_LENGTH)) {
+					success &= sendBatch(streamIn, streamOut, nonce,
+							batchNum++, count, reBytes);
+					count = 0;
+				}
+				for (RequestElement re : requestElements) {
+					re.writeToStream(reOut);
+				}
+				count += requestElements.size();
+			}
+			if (count > 0) {
+				success &= sendBatch(streamIn, streamOut, nonce, batchNum,
+						count, reBytes);
+			}
+			return success;
+		}
+		catch (Exception e) {
+			System.out.println("Error sending batch: " + e + e.getMessage());
+			return false;
+		}
+		finally {
+			try {
+				if (socket != null)
+					socket.close();
+			} catch (IOException e) {
+				// Done with it anyway
+			}
+		}
+	}
+	
+	/*
+	 * Send count request elements, already written to reBytes, as one
+	 * batch and wait for the server to apply them. Empties reBytes.
+	 */
+	private boolean sendBatch(DataInputStream streamIn,
+			DataOutputStream streamOut, byte[] nonce, long batchNum,
+			int count, ByteArrayOutputStream reBytes) throws IOException {
+		ByteArrayOutputStream bytesOut = new ByteArrayOutputStream(
+				reBytes.size() + 128);
+		DataOutputStream dataOut = new DataOutputStream(bytesOut);
+		
+		// Same layout as a packet, without key
+		dataOut.writeBytes("DONAR");
+		dataOut.writeShort(versionField());
+		dataOut.writeShort(0);
+		dataOut.writeLong(batchNum);
+		dataOut.writeShort(count);
+		reBytes.writeTo(dataOut);
+		dataOut.flush();
+		reBytes.reset();
+		
+		// Signed with the session's nonce and the batch number, so it
+		// cannot be altered, replayed or moved to another session
+		try {
+			Signature sig = Signature.getInstance(
+					UpdateInfo.NUP_SIGNATURE_ALGORITHMS[nupVersion]);
+			sig.initSign(keyPair.getPrivate());
+			sig.update(bytesOut.toByteArray());
+			sig.update(nonce);
+			sig.update(ByteBuffer.allocate(8).putLong(batchNum).array());
+			byte[] signature = sig.sign();
+			dataOut.writeShort(signature.length);
+			dataOut.write(signature);
+		} catch (GeneralSecurityException e) {
+			throw new IOException("Could not sign batch: " + e.getMessage());
+		}
+		dataOut.flush();
+		
+		writeFrame(streamOut, bytesOut.toByteArray());
+		ReplyPacket reply = new ReplyPacket(readFrame(streamIn), batchNum);
+		System.out.println("Batch " + batchNum + " (" + count +
+				" request elements) reply was: " + reply);
+		return reply.isSuccess();
+	}
+	
+	private static byte[] readFrame(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0 || length > UpdateInfo.NUP_MAX_FRAME_LENGTH)
+			throw new IOException("Invalid frame length " + length);
+		byte[] frame = new byte[length];
+		in.readFully(frame);
+		return frame;
+	}
+	
+	private static void writeFrame(DataOutputStream out, byte[] frame)
+			throws IOException {
+		out.writeInt(frame.length);
+		out.write(frame);
+		out.flush();
+	}
+	
+	private int versionField() {
+		return compactReplies ?
+				nupVersion | UpdateInfo.NUP_FLAG_COMPACT_REPLY : nupVersion;
+	}
+	
 	/*
 	 * Build a NUP packet given a list of request elements to include
 	 * in that packet.
 	 */
 	private byte[] buildPacket(
 			List<RequestElement> requestElements) throws IOException {
+		return buildPacket(requestElements, null);
+	}
+	
+	/*
+	 * As above. If challenge is not null, the signature also covers it,
+	 * as when authenticating a NUP stream.
+	 */
+	private byte[] buildPacket(
+			List<RequestElement> requestElements, byte[] challenge)
+			throws IOException {
 		
 		PublicKey pubKey = keyPair.getPublic();
 		PrivateKey pvtKey = keyPair.getPrivate();
@@ -389,7 +624,7 @@ public class UpdateClientConnection {
 		
 		// Write header info
 		dataOut.writeBytes("DONAR");
-		dataOut.writeShort(UpdateInfo.NUP_VERSION);
+		dataOut.writeShort(versionField());
 		dataOut.writeShort(pubKeyBytes.length);
 		dataOut.write(pubKeyBytes);
 		dataOut.writeLong(seqNum);
@@ -404,9 +639,12 @@ public class UpdateClientConnection {
 		dataOut.flush();
 		byte[] toSign = bytesOut.toByteArray();
 		try {
-			Signature sig = Signature.getInstance("SHA1withDSA");
+			Signature sig = Signature.getInstance(
+					UpdateInfo.NUP_SIGNATURE_ALGORITHMS[nupVersion]);
 			sig.initSign(pvtKey);
 			sig.update(toSign);
+			if (challenge != null)
+				sig.update(challenge);
 			byte[] signature = sig.sign();
 			dataOut.writeShort(signature.length);
 			dataOut.write(signature);
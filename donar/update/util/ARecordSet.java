@@ -0,0 +1,491 @@
+package donar.update.util;
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import donar.dns.attrs.DoubleListRecordAttribute;
+import donar.dns.attrs.DoubleRecordAttribute;
+import donar.dns.attrs.IntegerRecordAttribute;
+import donar.dns.attrs.RecordAttribute;
+import donar.dns.attrs.ShortRecordAttribute;
+import donar.update.UpdateInfo;
+
+/**
+ * The A records of one subdomain, stored as columns instead of one
+ * DNSRecord per replica:
+ *
+ *   addresses[i], ttls[i]            record i
+ *   attrStart[i], attrCount[i]       its slice of the attribute columns
+ *   attrType[a], attrKind[a]         attribute a and its RecordAttribute
+ *   attrLength[a]                    kind, and its size in bytes
+ *   attrValue[a]                     where its data starts in values: one
+ *                                    long, or one per double for lists
+ *
+ * Replacing a record's attributes appends the new ones and abandons the
+ * old slice; the columns are compacted once more than half of them is
+ * garbage. DNSRecord objects are only built when an answer is handed out.
+ */
+public class ARecordSet implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private int size;
+	private int[] addresses;
+	private int[] ttls;
+	private int[] attrStart;
+	private int[] attrCount;
+
+	private int numAttrs;      // Attribute columns in use, including garbage
+	private int liveAttrs;
+	private short[] attrType;
+	private byte[] attrKind;
+	private short[] attrLength;
+	private int[] attrValue;
+
+	private int numValues;
+	private long[] values;
+
+	private transient HashMap<Integer, Integer> slots; // address -> index
+
+	public ARecordSet() {
+		this(4);
+	}
+
+	public ARecordSet(int capacity) {
+		capacity = Math.max(capacity, 1);
+		this.addresses = new int[capacity];
+		this.ttls = new int[capacity];
+		this.attrStart = new int[capacity];
+		this.attrCount = new int[capacity];
+		this.attrType = new short[capacity];
+		this.attrKind = new byte[capacity];
+		this.attrLength = new short[capacity];
+		this.attrValue = new int[capacity];
+		this.values = new long[capacity];
+	}
+
+	/*
+	 * Parses an IPv4 address. Dotted quads are read directly; anything
+	 * else is resolved with InetAddress.getByName, as DNSRecord does.
+	 * Throws NumberFormatException unless the result is an IPv4 address.
+	 */
+	public static int parseAddress(String content) {
+		int address = 0;
+		int octets = 0;
+		int octet = -1;
+		for (int i = 0; i < content.length(); i++) {
+			char c = content.charAt(i);
+			if (c >= '0' && c <= '9') {
+				octet = (octet < 0 ? 0 : octet * 10) + (c - '0');
+				if (octet > 255) break;
+			} else if (c == '.' && octet >= 0 && octets < 3) {
+				address = (address << 8) | octet;
+				octets++;
+				octet = -1;
+			} else {
+				octet = 256;
+				break;
+			}
+		}
+		if (octets != 3 || octet < 0 || octet > 255) {
+			return resolveAddress(content);
+		}
+		return (address << 8) | octet;
+	}
+
+	private static int resolveAddress(String content) {
+		byte[] bytes;
+		try {
+			bytes = InetAddress.getByName(content).getAddress();
+		} catch (UnknownHostException e) {
+			throw new NumberFormatException("Bad IP address");
+		}
+		if (bytes.length != 4) {
+			throw new NumberFormatException("Bad IP address");
+		}
+		return ((bytes[0] & 0xFF) << 24) | ((bytes[1] & 0xFF) << 16) |
+			((bytes[2] & 0xFF) << 8) | (bytes[3] & 0xFF);
+	}
+
+	/*
+	 * Sets written before attribute kinds were stored (by the Java
+	 * serialization CraqInterface uses) lack attrKind. Their kinds follow
+	 * from the lengths, as for untagged XDR; lists were the only
+	 * attributes longer than 8 bytes.
+	 */
+	private void readObject(ObjectInputStream in)
+		throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		if (attrKind == null) {
+			attrKind = new byte[attrType.length];
+			for (int a = 0; a < numAttrs; a++) {
+				int kind = RecordAttribute.kindForLength(attrLength[a]);
+				if (kind == 0 && attrLength[a] > 8) {
+					kind = RecordAttribute.KIND_DOUBLE_LIST;
+				}
+				attrKind[a] = (byte) kind;
+			}
+		}
+	}
+
+	public static String formatAddress(int address) {
+		return ((address >>> 24) & 0xFF) + "." + ((address >>> 16) & 0xFF) +
+			"." + ((address >>> 8) & 0xFF) + "." + (address & 0xFF);
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int getAddress(int i) {
+		return addresses[i];
+	}
+
+	public int getTTL(int i) {
+		return ttls[i];
+	}
+
+	/*
+	 * Index of the record for address, or -1.
+	 */
+	public int indexOf(int address) {
+		if (slots == null) {
+			slots = new HashMap<Integer, Integer>(size * 2);
+			for (int i = 0; i < size; i++) {
+				slots.put(addresses[i], i);
+			}
+		}
+		Integer i = slots.get(address);
+		return i == null ? -1 : i;
+	}
+
+	/*
+	 * Adds a record with no attributes, or resets the TTL and attributes
+	 * of the existing one. Returns its index; attributes can then be
+	 * added with addAttribute() until the next call.
+	 */
+	public int put(int address, int ttl) {
+		compactIfNeeded();
+		int i = indexOf(address);
+		if (i < 0) {
+			i = size;
+			if (size == addresses.length) {
+				int capacity = size * 2;
+				addresses = Arrays.copyOf(addresses, capacity);
+				ttls = Arrays.copyOf(ttls, capacity);
+				attrStart = Arrays.copyOf(attrStart, capacity);
+				attrCount = Arrays.copyOf(attrCount, capacity);
+			}
+			addresses[i] = address;
+			size++;
+			slots.put(address, i);
+		} else {
+			liveAttrs -= attrCount[i];
+		}
+		ttls[i] = ttl;
+		attrStart[i] = numAttrs;
+		attrCount[i] = 0;
+		return i;
+	}
+
+	/*
+	 * Adds a record with the attributes of a RecordAttribute list. Returns
+	 * true if the address is new.
+	 */
+	public boolean put(int address, int ttl, List<RecordAttribute> attributes) {
+		int before = size;
+		int i = put(address, ttl);
+		if (attributes != null) {
+			for (RecordAttribute a: attributes) {
+				addAttribute(i, a);
+			}
+		}
+		return size > before;
+	}
+
+	/*
+	 * Reads one attribute in XDR and appends it to record i, which must be
+	 * the one last passed to put(). Tagged attributes carry their kind;
+	 * untagged (version 0) ones are told apart by length, and any length
+	 * other than 2, 4 or 8 bytes is skipped, as RecordAttribute does.
+	 */
+	public void readAttribute(int i, XDRReader in, boolean tagged)
+		throws IOException {
+		short type = (short) in.readInt();
+		int kind;
+		int length;
+		if (tagged) {
+			kind = in.readInt();
+			length = in.readInt();
+		} else {
+			length = in.readInt();
+			kind = RecordAttribute.kindForLength(length);
+		}
+		// claimAttribute may replace values, so it must run before values
+		// is read for the assignment
+		int slot;
+		switch (kind) {
+			case RecordAttribute.KIND_SHORT:
+				slot = claimAttribute(i, type, kind, 2);
+				values[slot] = in.readShort() & 0xFFFF;
+				break;
+			case RecordAttribute.KIND_INT:
+				slot = claimAttribute(i, type, kind, 4);
+				values[slot] = in.readInt() & 0xFFFFFFFFL;
+				break;
+			case RecordAttribute.KIND_DOUBLE:
+				slot = claimAttribute(i, type, kind, 8);
+				values[slot] = in.readLong();
+				break;
+			case RecordAttribute.KIND_DOUBLE_LIST:
+				slot = claimAttribute(i, type, kind, length - length % 8);
+				for (int v = 0; v < length / 8; v++) {
+					values[slot + v] = in.readLong();
+				}
+				in.skip(length % 8);
+				break;
+			default:
+				in.skip(length);
+		}
+	}
+
+	private void addAttribute(int i, RecordAttribute a) {
+		int kind = a.getKind();
+		int slot;
+		if (a instanceof ShortRecordAttribute) {
+			slot = claimAttribute(i, a.typeID, kind, 2);
+			values[slot] = ((ShortRecordAttribute) a).data & 0xFFFF;
+		} else if (a instanceof IntegerRecordAttribute) {
+			slot = claimAttribute(i, a.typeID, kind, 4);
+			values[slot] = ((IntegerRecordAttribute) a).data & 0xFFFFFFFFL;
+		} else if (a instanceof DoubleRecordAttribute) {
+			slot = claimAttribute(i, a.typeID, kind, 8);
+			values[slot] =
+				Double.doubleToLongBits(((DoubleRecordAttribute) a).data);
+		} else if (a instanceof DoubleListRecordAttribute) {
+			double[] data = ((DoubleListRecordAttribute) a).data;
+			slot = claimAttribute(i, a.typeID, kind, data.length * 8);
+			for (int v = 0; v < data.length; v++) {
+				values[slot + v] = Double.doubleToLongBits(data[v]);
+			}
+		}
+	}
+
+	/*
+	 * Number of longs in values holding an attribute.
+	 */
+	private static int valueCount(int kind, int length) {
+		return kind == RecordAttribute.KIND_DOUBLE_LIST ? length / 8 : 1;
+	}
+
+	/*
+	 * Appends an attribute column entry for record i and returns where its
+	 * data goes in values.
+	 */
+	private int claimAttribute(int i, short type, int kind, int length) {
+		int longs = valueCount(kind, length);
+		if (numAttrs == attrType.length) {
+			int capacity = numAttrs * 2;
+			attrType = Arrays.copyOf(attrType, capacity);
+			attrKind = Arrays.copyOf(attrKind, capacity);
+			attrLength = Arrays.copyOf(attrLength, capacity);
+			attrValue = Arrays.copyOf(attrValue, capacity);
+		}
+		if (numValues + longs > values.length) {
+			values = Arrays.copyOf(values,
+					Math.max(values.length * 2, numValues + longs));
+		}
+		attrType[numAttrs] = type;
+		attrKind[numAttrs] = (byte) kind;
+		attrLength[numAttrs] = (short) length;
+		attrValue[numAttrs] = numValues;
+		numAttrs++;
+		liveAttrs++;
+		attrCount[i]++;
+		numValues += longs;
+		return attrValue[numAttrs - 1];
+	}
+
+	/*
+	 * Removes record i; later records move down by one.
+	 */
+	public void remove(int i) {
+		liveAttrs -= attrCount[i];
+		int tail = size - i - 1;
+		System.arraycopy(addresses, i + 1, addresses, i, tail);
+		System.arraycopy(ttls, i + 1, ttls, i, tail);
+		System.arraycopy(attrStart, i + 1, attrStart, i, tail);
+		System.arraycopy(attrCount, i + 1, attrCount, i, tail);
+		size--;
+		slots = null;
+	}
+
+	public void clear() {
+		size = 0;
+		numAttrs = 0;
+		liveAttrs = 0;
+		numValues = 0;
+		slots = null;
+	}
+
+	/*
+	 * Expiration time of record i in seconds since the epoch, or 0 if it
+	 * never expires.
+	 */
+	public long expirationOf(int i) {
+		int end = attrStart[i] + attrCount[i];
+		for (int a = attrStart[i]; a < end; a++) {
+			if (attrType[a] == UpdateInfo.EXPIRATION_TIME &&
+					attrKind[a] == RecordAttribute.KIND_INT) {
+				return values[attrValue[a]];
+			}
+		}
+		return 0;
+	}
+
+	/*
+	 * Builds the DNSRecord for record i.
+	 */
+	public DNSRecord toRecord(int i) {
+		DNSRecord r = new DNSRecord();
+		int address = addresses[i];
+		r.type = "A";
+		r.content = formatAddress(address);
+		r.ttl = ttls[i];
+		try {
+			r.ip = InetAddress.getByAddress(new byte[] {
+					(byte) (address >>> 24), (byte) (address >>> 16),
+					(byte) (address >>> 8), (byte) address });
+		} catch (UnknownHostException e) {
+			// Four bytes is always a valid address
+		}
+		int end = attrStart[i] + attrCount[i];
+		for (int a = attrStart[i]; a < end; a++) {
+			RecordAttribute attr = toAttribute(a);
+			if (attr != null) {
+				r.attributes.add(attr);
+			}
+		}
+		return r;
+	}
+
+	private RecordAttribute toAttribute(int a) {
+		long bits = values[attrValue[a]];
+		switch (attrKind[a]) {
+			case RecordAttribute.KIND_SHORT:
+				ShortRecordAttribute s = new ShortRecordAttribute();
+				s.typeID = attrType[a];
+				s.data = (short) bits;
+				return s;
+			case RecordAttribute.KIND_INT:
+				return new IntegerRecordAttribute(attrType[a], (int) bits);
+			case RecordAttribute.KIND_DOUBLE:
+				return new DoubleRecordAttribute(attrType[a],
+						Double.longBitsToDouble(bits));
+			default:
+				double[] data = new double[attrLength[a] / 8];
+				for (int v = 0; v < data.length; v++) {
+					data[v] = Double.longBitsToDouble(values[attrValue[a] + v]);
+				}
+				return new DoubleListRecordAttribute(attrType[a], data);
+		}
+	}
+
+	/*
+	 * Appends every record as DNSRecords to out.
+	 */
+	public void toRecords(List<DNSRecord> out) {
+		for (int i = 0; i < size; i++) {
+			out.add(toRecord(i));
+		}
+	}
+
+	/*
+	 * Writes record i in the current SubdomainInfo XDR record layout, with
+	 * tagged attributes.
+	 */
+	public void writeXDR(int i, XDRWriter out) {
+		out.writeString("A");
+		out.writeString(formatAddress(addresses[i]));
+		out.writeInt(ttls[i]);
+		out.writeInt(attrCount[i]);
+		int end = attrStart[i] + attrCount[i];
+		for (int a = attrStart[i]; a < end; a++) {
+			out.writeInt(attrType[a]);
+			out.writeInt(attrKind[a]);
+			out.writeInt(attrLength[a]);
+			long bits = values[attrValue[a]];
+			switch (attrKind[a]) {
+				case RecordAttribute.KIND_SHORT: out.writeShort((short) bits); break;
+				case RecordAttribute.KIND_INT: out.writeInt((int) bits); break;
+				case RecordAttribute.KIND_DOUBLE: out.writeLong(bits); break;
+				default:
+					for (int v = 0; v < attrLength[a] / 8; v++) {
+						out.writeLong(values[attrValue[a] + v]);
+					}
+			}
+		}
+	}
+
+	/*
+	 * Drops abandoned attribute slices once they outnumber live ones.
+	 */
+	private void compactIfNeeded() {
+		if (numAttrs < 16 || liveAttrs * 2 > numAttrs) {
+			return;
+		}
+		short[] newType = new short[Math.max(liveAttrs * 2, 4)];
+		byte[] newKind = new byte[newType.length];
+		short[] newLength = new short[newType.length];
+		int[] newValue = new int[newType.length];
+		long[] newValues = new long[Math.max(numValues, 4)];
+		int attrs = 0;
+		int vals = 0;
+		for (int i = 0; i < size; i++) {
+			int end = attrStart[i] + attrCount[i];
+			attrStart[i] = attrs;
+			for (int a = end - attrCount[i]; a < end; a++) {
+				int longs = valueCount(attrKind[a], attrLength[a]);
+				newType[attrs] = attrType[a];
+				newKind[attrs] = attrKind[a];
+				newLength[attrs] = attrLength[a];
+				newValue[attrs] = vals;
+				System.arraycopy(values, attrValue[a], newValues, vals, longs);
+				vals += longs;
+				attrs++;
+			}
+		}
+		attrType = newType;
+		attrKind = newKind;
+		attrLength = newLength;
+		attrValue = newValue;
+		values = newValues;
+		numAttrs = attrs;
+		numValues = vals;
+	}
+}
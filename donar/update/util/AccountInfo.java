@@ -19,7 +19,6 @@ package donar.update.util;
  * under the License.
  */
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
@@ -28,8 +27,8 @@ import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
+import java.util.Arrays;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.StringTokenizer;
@@ -74,63 +73,44 @@ public class AccountInfo implements Serializable {
 		this.subdomains = new LinkedList<String>();
 	}
 	
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+	private static final byte[] HEX_VALUES = new byte[128];
+	static {
+		Arrays.fill(HEX_VALUES, (byte) -1);
+		for (int i = 0; i < HEX_DIGITS.length; i++) {
+			HEX_VALUES[HEX_DIGITS[i]] = (byte) i;
+		}
+	}
+	
 	public static String bytes2Hex(byte[] in) {
-		HashMap<Byte, Character> hexMap = new HashMap<Byte, Character>();
-		hexMap.put((byte) 0x00, '0');
-		hexMap.put((byte) 0x01, '1');
-		hexMap.put((byte) 0x02, '2');
-		hexMap.put((byte) 0x03, '3');
-		hexMap.put((byte) 0x04, '4');
-		hexMap.put((byte) 0x05, '5');
-		hexMap.put((byte) 0x06, '6');
-		hexMap.put((byte) 0x07, '7');
-		hexMap.put((byte) 0x08, '8');
-		hexMap.put((byte) 0x09, '9');
-		hexMap.put((byte) 0x0a, 'a');
-		hexMap.put((byte) 0x0b, 'b');
-		hexMap.put((byte) 0x0c, 'c');
-		hexMap.put((byte) 0x0d, 'd');
-		hexMap.put((byte) 0x0e, 'e');
-		hexMap.put((byte) 0x0f, 'f');
 		char[] out = new char[40];
 		for (int i = 0; i < 20; i++) {
-			out[2*i] = hexMap.get((byte) ((in[i] & 0xf0) >> 4));
-			out[2*i + 1] = hexMap.get((byte) ((in[i] & 0x0f)));
+			out[2*i] = HEX_DIGITS[(in[i] & 0xf0) >> 4];
+			out[2*i + 1] = HEX_DIGITS[in[i] & 0x0f];
 		}
 		return new String(out);
 	}
 	
 	public static byte[] hex2Bytes(String in) {
-		HashMap<Character, Byte> hexMap = new HashMap<Character, Byte>();
-		hexMap.put('0', (byte) 0);
-		hexMap.put('1', (byte) 1);
-		hexMap.put('2', (byte) 2);
-		hexMap.put('3', (byte) 3);
-		hexMap.put('4', (byte) 4);
-		hexMap.put('5', (byte) 5);
-		hexMap.put('6', (byte) 6);
-		hexMap.put('7', (byte) 7);
-		hexMap.put('8', (byte) 8);
-		hexMap.put('9', (byte) 9);
-		hexMap.put('a', (byte) 10);
-		hexMap.put('b', (byte) 11);
-		hexMap.put('c', (byte) 12);
-		hexMap.put('d', (byte) 13);
-		hexMap.put('e', (byte) 14);
-		hexMap.put('f', (byte) 15);
-		
 		if (in.length() != 40) {
 			Syslog.info(AccountInfo.class, "Got wrong length key: " + in);
 		}
 		byte[] out = new byte[20];
 		for (int i = 0; i < 20; i++) {
-			byte b = hexMap.get(in.charAt(2*i + 1));
-			b = (byte) (b | (byte) (hexMap.get(in.charAt(i*2)) << 4));
-			out[i] = b;
+			out[i] = (byte) ((hexValue(in.charAt(2*i)) << 4) |
+					hexValue(in.charAt(2*i + 1)));
 		}
-
 		return out;
 	}
+	
+	private static int hexValue(char c) {
+		int v = c < 128 ? HEX_VALUES[c] : -1;
+		if (v < 0) {
+			throw new NumberFormatException("Bad hex digit: " + c);
+		}
+		return v;
+	}
+	
 	// Getters and setters
 	public String getKeyHash() {
 		return keyHash;
@@ -141,6 +121,10 @@ public class AccountInfo implements Serializable {
 	public void incrSequenceNum() {
 		this.nextSequenceNum++;
 	}
+	public void advanceSequenceNum(long nextSequenceNum) {
+		if (nextSequenceNum > this.nextSequenceNum)
+			this.nextSequenceNum = nextSequenceNum;
+	}
 	public String getDomainSuffix() {
 		return domainSuffix;
 	}
@@ -207,47 +191,56 @@ public class AccountInfo implements Serializable {
 	}
 	
 	/*
-	 * Saves this account record in CRAQ according to the XDR format.
+	 * Encodes this account record according to the XDR format.
 	 */
-	public void saveXDR(Socket craqSocket) throws IOException {
-		// Get socket
-		DataInputStream dataIn =
-			new DataInputStream(craqSocket.getInputStream());
-		DataOutputStream dataOut =
-			new DataOutputStream(craqSocket.getOutputStream());
-		
-	    // Serialize
-		ByteArrayOutputStream objByteStream = new ByteArrayOutputStream();
-		DataOutputStream out = new DataOutputStream(objByteStream);
+	public byte[] toXDR() {
+		return writeXDR().toByteArray();
+	}
+	
+	private XDRWriter writeXDR() {
+		XDRWriter out = new XDRWriter();
 		
 		// keyHash is already hex-encoded string
-		out.write(keyHashBytes);
+		out.writeBytes(keyHashBytes);
 		out.writeLong(this.nextSequenceNum);
 		
 		
 		// Write rest of data to buffer
-		XDRUtil.writeString(this.domainSuffix, out);
+		out.writeString(this.domainSuffix);
 		
 		long time = this.lastUpdateTime.getTime();
 
 		out.writeLong(time);
 		out.writeInt(this.soaTTL);
 		
-		XDRUtil.writeString(this.contactEmail, out);
+		out.writeString(this.contactEmail);
 		
 		out.writeInt(this.subdomains.size());
 		for (String s: this.subdomains) {
-			XDRUtil.writeString(s, out);
+			out.writeString(s);
 		}
-		objByteStream.flush();
-		out.flush();
-		// Send info to CRAQ
+		return out;
+	}
+	
+	/*
+	 * Saves this account record in CRAQ according to the XDR format.
+	 */
+	public void saveXDR(Socket craqSocket) throws IOException {
+		// Get socket
+		DataInputStream dataIn =
+			new DataInputStream(craqSocket.getInputStream());
+		DataOutputStream dataOut =
+			new DataOutputStream(craqSocket.getOutputStream());
+		
+	    // Serialize
+		XDRWriter xdr = writeXDR();
 		
+		// Send info to CRAQ
 		String craqRequest = "SET " + this.keyHash + " " + 
-			(objByteStream.toByteArray().length) + "\r\n";
+			xdr.size() + "\r\n";
 		dataOut.writeBytes(craqRequest);
 		dataOut.flush();
-		dataOut.write(objByteStream.toByteArray());
+		xdr.writeTo(dataOut);
 		dataOut.writeBytes("\r\n");
 		dataOut.flush();
 		
@@ -258,14 +251,16 @@ public class AccountInfo implements Serializable {
 		} else {
 			throw new IOException(
 				"CRAQ reported error storing AccountInfo: " + craqRequest + "\n" + 
-				 objByteStream.toString() + "\n" + craqReply);
+				 new String(xdr.toByteArray(), XDRReader.LATIN1) + "\n" +
+				 craqReply);
 		}	
 	}
 
 	public static AccountInfo fromXDR(byte[] inData) throws IOException {
-		ByteArrayInputStream is = new ByteArrayInputStream(inData);
-		DataInputStream dis = new DataInputStream(is);
-		
+		return fromXDR(new XDRReader(inData));
+	}
+	
+	public static AccountInfo fromXDR(XDRReader dis) throws IOException {
 		byte[] keyHash = new byte[20];
 		dis.readFully(keyHash);
 		AccountInfo ai = new AccountInfo(keyHash);
@@ -274,18 +269,18 @@ public class AccountInfo implements Serializable {
 
 
 		
-		ai.domainSuffix = XDRUtil.readString(dis);
+		ai.domainSuffix = dis.readString();
 
 		long time = dis.readLong();
 		ai.lastUpdateTime = new Date(time);
 		ai.soaTTL = dis.readInt();
 
-		ai.contactEmail = XDRUtil.readString(dis);
+		ai.contactEmail = dis.readString();
 
 		int numSubdomains = dis.readInt();
 
 		for (int i = 0; i < numSubdomains; i++) {
-			ai.subdomains.add(XDRUtil.readString(dis));
+			ai.subdomains.add(dis.readString());
 		}
 
 		return ai;
@@ -305,7 +300,8 @@ public class AccountInfo implements Serializable {
 		ai.subdomains.add("foo");
 		Socket s = null;
 		try {
-			s = new Socket("localhost", 2182);
+			LocalCraqServer craq = LocalCraqServer.start(0);
+			s = new Socket("localhost", craq.getPort());
 			ai.saveXDR(s);
 			
 			
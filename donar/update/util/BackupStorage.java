@@ -23,40 +23,77 @@ import java.io.IOException;
 import com.protomatter.syslog.*;
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
 import java.util.Random;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import donar.update.UpdateInfo;
 
 /**
  * Since we rely on the somewhat shaky CRAQ code to provide storage, we
  * prefer to have a backup of key-hash: domain suffix pairs. That way if
  * CRAQ dies we can always recover account information and let our users
  * re-populate the data on their own.
+ *
+ * Writes are queued and applied in the background by a single flusher.
+ * The queue keeps only the latest instruction per key hash, and pairs
+ * already known to be stored are not queued at all, so the steady stream
+ * of assureStored calls from update packets costs nothing. Adds are
+ * written as multi-row upserts, which need a unique key on
+ * backup (key_hash); mysql_upgrade.sql adds it, and the flusher warns
+ * on first connecting if it is missing.
  */
 public class BackupStorage {
   // Constants
-  private static final String MYSQL_SERVER_ADDR = "MYSQL_READ_SERVER";
-  private static final String MYSQL_DB = "MYSQL_DB";
-  private static final String MYSQL_USER = "MYSQL_USER";
-  private static final String MYSQL_PASS = "MYSQL_PASS";
-  private static final int NUM_CONNECTIONS = 5;
+  private static final int MAX_PENDING = 10000;
+  private static final int MAX_BATCH = 500; // Rows per flush
+  private static final long OFFER_TIMEOUT = 100; // ms to wait when full
+  private static final long RETRY_DELAY = 5000; // ms after a failed flush
   private Connection dbConnection;
+  private String url;
+  private String user;
+  private String password;
+  private boolean schemaChecked;
   static enum InstructionType { ADD, DELETE };
-  private BlockingQueue<Instruction> outstanding;
+
+  // keyHash -> latest instruction not yet written, in arrival order
+  private LinkedHashMap<String, Instruction> pending;
+  // keyHash -> suffix as last written
+  private ConcurrentHashMap<String, String> persisted;
+
+  // Counters
+  private AtomicLong numQueued = new AtomicLong();
+  private AtomicLong numCoalesced = new AtomicLong();
+  private AtomicLong numSkipped = new AtomicLong();
+  private AtomicLong numBlocked = new AtomicLong();
+  private AtomicLong numDropped = new AtomicLong();
+  private AtomicLong numWritten = new AtomicLong();
+  private AtomicLong numFlushes = new AtomicLong();
   
-  public BackupStorage() {	
-    outstanding = new LinkedBlockingQueue<Instruction>();
-	for (int i = 0; i < NUM_CONNECTIONS; i++) {
-      Thread t = new Thread(new StoreRunnable(outstanding));
-      t.start();
-	}
+  public BackupStorage(Properties config) {	
+    this.url = "jdbc:mysql://" + config.getProperty("MYSQL_WRITE_SERVER") +
+      "/" + config.getProperty("MYSQL_DB") + "?connectTimeout=10000";
+    this.user = config.getProperty("MYSQL_USER");
+    this.password = config.getProperty("MYSQL_PASS");
+    this.pending = new LinkedHashMap<String, Instruction>();
+    this.persisted = new ConcurrentHashMap<String, String>();
+    Thread t = new Thread(new Flusher(), "BackupStorage-flusher");
+    t.setDaemon(true);
+    t.start();
   }
   
   private class Instruction {
@@ -71,66 +108,210 @@ public class BackupStorage {
     }
   }
   
-  private class StoreRunnable implements Runnable {
-	private Connection dbConnection;
-	private BlockingQueue<Instruction> instructions;
-	  
-    public StoreRunnable(BlockingQueue<Instruction> ins) {
-      this.instructions = ins;
-      try {
-	    this.dbConnection = DriverManager.getConnection("jdbc:mysql://" + 
-		  MYSQL_SERVER_ADDR + "/" + MYSQL_DB + "?user=" + 
-		  MYSQL_USER + "&password=" + MYSQL_PASS);
-		} catch (SQLException e) {
-	  }
+  /*
+   * Queues in, replacing any pending instruction for the same key hash.
+   * When the queue is full, waits briefly for the flusher to make room
+   * and then gives up; a dropped add is queued again by the next packet
+   * for that account.
+   */
+  private void enqueue(Instruction in) {
+    synchronized (pending) {
+      if (pending.remove(in.keyHash) != null) {
+        numCoalesced.incrementAndGet();
+      } else if (pending.size() >= MAX_PENDING) {
+        numBlocked.incrementAndGet();
+        try {
+          pending.wait(OFFER_TIMEOUT);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        if (pending.size() >= MAX_PENDING) {
+          numDropped.incrementAndGet();
+          Syslog.warning(this, "Backup queue full, dropping " + in.type +
+              " for " + in.keyHash);
+          return;
+        }
+      }
+      pending.put(in.keyHash, in);
+      numQueued.incrementAndGet();
+      pending.notifyAll();
     }
+  }
+  
+  private class Flusher implements Runnable {
 	  
 	@Override
 	public void run() {
 	  while (true) {
-		Instruction in;
-		try {
-			in = instructions.take();
-		} catch (InterruptedException e1) {
-			continue;
-		}
-		try {
-		  Statement stmt = this.dbConnection.createStatement();
-		  ResultSet rs = stmt.executeQuery("SELECT * FROM " +
-		  "backup WHERE key_hash = '" + in.keyHash + "'");
-		  // If key not seen before, add to db
-		  if (!rs.next()) {
-            if (in.type == InstructionType.DELETE) { 
-            	rs.close();
-            	stmt.close();
-            	continue; }
-		    stmt.executeUpdate("INSERT INTO backup " +
-		    "(key_hash, name_suffix) VALUES " +
-		    "('" + in.keyHash + "','" + in.suffix + "')");
+		List<Instruction> batch = new ArrayList<Instruction>();
+		synchronized (pending) {
+		  while (pending.isEmpty()) {
+		    try {
+		      pending.wait();
+		    } catch (InterruptedException e) {
+		      return;
+		    }
 		  }
-		  // We have a record
-		  else {
-		    if (in.type == InstructionType.ADD) {
-		    	if (!rs.getString("name_suffix").equals(in.suffix)) {
-		          stmt.execute("UPDATE backup set name_suffix='" + in.suffix +"'" +
-		          		" where key_hash='" + in.keyHash + "'");
-		    	}
-		    	rs.close();
-		    	stmt.close();
-		    	continue; }
-		    stmt.execute("DELETE FROM backup where key_hash='" +
-			  in.keyHash + "' and name_suffix='" + in.suffix + "'");
+		  Iterator<Instruction> iter = pending.values().iterator();
+		  while (iter.hasNext() && batch.size() < MAX_BATCH) {
+		    batch.add(iter.next());
+		    iter.remove();
 		  }
-		  rs.close();
-		  stmt.close();
+		  pending.notifyAll(); // Room for blocked callers
+		}
+		try {
+		  flush(batch);
 		}
 		catch (SQLException e) {
-			e.printStackTrace();
-	    }
+		  Syslog.error(BackupStorage.this, "Error writing backup: " +
+		      e.getMessage());
+		  closeConnection();
+		  requeue(batch);
+		  try {
+		    Thread.sleep(RETRY_DELAY);
+		  } catch (InterruptedException e1) {
+		    return;
+		  }
+		}
 	  }
     }
   }
   
+  /*
+   * Writes one batch: every add as a single multi-row upsert, then the
+   * deletes as a JDBC batch.
+   */
+  private void flush(List<Instruction> batch) throws SQLException {
+    List<Instruction> adds = new ArrayList<Instruction>();
+    List<Instruction> deletes = new ArrayList<Instruction>();
+    for (Instruction in : batch) {
+      if (in.type == InstructionType.ADD) adds.add(in);
+      else deletes.add(in);
+    }
+    Connection conn = connection();
+    
+    if (!adds.isEmpty()) {
+      StringBuilder sql = new StringBuilder(
+          "INSERT INTO backup (key_hash, name_suffix) VALUES ");
+      for (int i = 0; i < adds.size(); i++) {
+        sql.append(i == 0 ? "(?,?)" : ",(?,?)");
+      }
+      sql.append(" ON DUPLICATE KEY UPDATE name_suffix = VALUES(name_suffix)");
+      PreparedStatement ps = conn.prepareStatement(sql.toString());
+      try {
+        int param = 1;
+        for (Instruction in : adds) {
+          ps.setString(param++, in.keyHash);
+          ps.setString(param++, in.suffix);
+        }
+        ps.executeUpdate();
+      } finally {
+        ps.close();
+      }
+      for (Instruction in : adds) {
+        persisted.put(in.keyHash, in.suffix);
+      }
+    }
+    
+    if (!deletes.isEmpty()) {
+      PreparedStatement ps = conn.prepareStatement(
+          "DELETE FROM backup WHERE key_hash = ? AND name_suffix = ?");
+      try {
+        for (Instruction in : deletes) {
+          ps.setString(1, in.keyHash);
+          ps.setString(2, in.suffix);
+          ps.addBatch();
+        }
+        ps.executeBatch();
+      } finally {
+        ps.close();
+      }
+      for (Instruction in : deletes) {
+        persisted.remove(in.keyHash, in.suffix);
+      }
+    }
+    numWritten.addAndGet(batch.size());
+    numFlushes.incrementAndGet();
+  }
+  
+  /*
+   * Puts back a batch that failed to write, unless newer instructions
+   * for the same key hashes have arrived since.
+   */
+  private void requeue(List<Instruction> batch) {
+    synchronized (pending) {
+      LinkedHashMap<String, Instruction> merged =
+        new LinkedHashMap<String, Instruction>();
+      for (Instruction in : batch) {
+        merged.put(in.keyHash, in);
+      }
+      for (Instruction in : pending.values()) {
+        merged.put(in.keyHash, in);
+      }
+      pending.clear();
+      pending.putAll(merged);
+    }
+  }
+  
+  private Connection connection() throws SQLException {
+    if (dbConnection == null) {
+      dbConnection = DriverManager.getConnection(url, user, password);
+      if (!schemaChecked) {
+        schemaChecked = true;
+        checkSchema(dbConnection);
+      }
+    }
+    return dbConnection;
+  }
+  
+  /*
+   * Warns if backup has no unique key on key_hash alone: without one,
+   * every upsert of an account not yet written by this process adds a
+   * duplicate row. See mysql_upgrade.sql.
+   */
+  private void checkSchema(Connection conn) {
+    Statement stmt = null;
+    try {
+      stmt = conn.createStatement();
+      Map<String, Set<String>> uniqueKeys = new HashMap<String, Set<String>>();
+      ResultSet rs = stmt.executeQuery("SHOW INDEX FROM backup");
+      while (rs.next()) {
+        if (rs.getInt("Non_unique") != 0) continue;
+        String key = rs.getString("Key_name");
+        if (!uniqueKeys.containsKey(key)) {
+          uniqueKeys.put(key, new HashSet<String>());
+        }
+        uniqueKeys.get(key).add(rs.getString("Column_name"));
+      }
+      rs.close();
+      Set<String> keyHashOnly = new HashSet<String>();
+      keyHashOnly.add("key_hash");
+      if (!uniqueKeys.containsValue(keyHashOnly)) {
+        Syslog.warning(this, "backup has no unique key on key_hash; " +
+            "accounts will be duplicated. Apply mysql_upgrade.sql.");
+      }
+    } catch (SQLException e) {
+      Syslog.log(this, e, Syslog.WARNING);
+    } finally {
+      if (stmt != null) {
+        try {
+          stmt.close();
+        } catch (SQLException e) {
+        }
+      }
+    }
+  }
+  
+  private void closeConnection() {
+    if (dbConnection != null) {
+      try {
+        dbConnection.close();
+      } catch (SQLException e) {
+      }
+      dbConnection = null;
+    }
+  }
+  
   /**
    * Assure that we have the link between keyHash and suffix stored somewhere
    * permanent.
@@ -139,8 +320,15 @@ public class BackupStorage {
  * @throws IOException 
    */
   public void assureStored(String keyHash, String suffix) throws IOException {
-    Instruction toAdd = new Instruction(InstructionType.ADD, keyHash, suffix);
-    this.outstanding.add(toAdd);
+    if (suffix.equals(persisted.get(keyHash))) {
+      synchronized (pending) {
+        if (!pending.containsKey(keyHash)) {
+          numSkipped.incrementAndGet();
+          return;
+        }
+      }
+    }
+    enqueue(new Instruction(InstructionType.ADD, keyHash, suffix));
     Syslog.debug(this, "Request queued for [add] " + keyHash + " = " + suffix);
   }
   
@@ -148,11 +336,24 @@ public class BackupStorage {
    * Delete the link between keyHash and suffix.
    */
   public void delete(String keyHash, String suffix) throws IOException {
-    Instruction toDelete = new Instruction(InstructionType.DELETE, keyHash, suffix);
-	this.outstanding.add(toDelete);
+    enqueue(new Instruction(InstructionType.DELETE, keyHash, suffix));
     Syslog.debug(this, "Request queued for delete " + keyHash + " = " + suffix);
   }
   
+  public int getQueueLength() {
+    synchronized (pending) {
+      return pending.size();
+    }
+  }
+  
+  public long getNumQueued() { return numQueued.get(); }
+  public long getNumCoalesced() { return numCoalesced.get(); }
+  public long getNumSkipped() { return numSkipped.get(); }
+  public long getNumBlocked() { return numBlocked.get(); }
+  public long getNumDropped() { return numDropped.get(); }
+  public long getNumWritten() { return numWritten.get(); }
+  public long getNumFlushes() { return numFlushes.get(); }
+  
   /**
    * Get all accounts that we are aware of. Used to recover from failures.	
    */
@@ -161,10 +362,8 @@ public class BackupStorage {
 	Statement stmt;
 	ResultSet rs = null;
 	try {
-		this.dbConnection = DriverManager.getConnection("jdbc:mysql://" +
-				MYSQL_SERVER_ADDR + "/" + MYSQL_DB + "?user=" + 
-				MYSQL_USER + "&password=" + MYSQL_PASS);
-		stmt = this.dbConnection.createStatement();
+		Connection conn = DriverManager.getConnection(url, user, password);
+		stmt = conn.createStatement();
 	    rs = stmt.executeQuery("SELECT * FROM backup");
 	    while (rs.next()) {
 	    	String keyHash = rs.getString("key_hash");
@@ -173,6 +372,7 @@ public class BackupStorage {
 	    }
 	    rs.close();
 	    stmt.close();
+	    conn.close();
 	} catch (SQLException e) {
 		throw new IOException("Error talking to MySQL database");
 	}
@@ -180,7 +380,8 @@ public class BackupStorage {
   }
   public static void main(String[] args) throws IOException {
 	// Informal unit tests :)
-    BackupStorage myStorage = new BackupStorage();
+    BackupStorage myStorage =
+      new BackupStorage(UpdateInfo.getDefaultConfiguration());
     List<String> stored = new LinkedList<String>();
     
     for (int i = 0; i < 50; i++) {
@@ -199,6 +400,10 @@ public class BackupStorage {
     for (String s: stored) {
     	myStorage.delete(s, s);
     }
+    System.out.println(myStorage.getNumQueued() + " queued, " +
+        myStorage.getNumWritten() + " written in " +
+        myStorage.getNumFlushes() + " flushes, " +
+        myStorage.getNumDropped() + " dropped");
   }
 } 
 
@@ -23,14 +23,31 @@ import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
 
 import org.apache.commons.dbcp.ConnectionFactory;
 import org.apache.commons.dbcp.DriverManagerConnectionFactory;
 import org.apache.commons.dbcp.PoolableConnectionFactory;
 import org.apache.commons.dbcp.PoolingDataSource;
+import org.apache.commons.pool.KeyedObjectPoolFactory;
 import org.apache.commons.pool.ObjectPool;
+import org.apache.commons.pool.impl.GenericKeyedObjectPool;
+import org.apache.commons.pool.impl.GenericKeyedObjectPoolFactory;
 import org.apache.commons.pool.impl.GenericObjectPool;
 
+import com.protomatter.syslog.Syslog;
+
+/**
+ * Pools connections to one write (primary) server and any number of read
+ * replicas. A background thread runs a trivial query against every pool
+ * each health check interval, marking pools up or down and keeping a
+ * moving average of their latency. Reads go to a healthy replica, picking
+ * the faster of two at random so load spreads without herding onto one
+ * server, and fall back to the primary when no replica is up.
+ */
 public class ConnectionProvider {
   public static void main(String[] args) throws Exception {
     ConnectionProvider provider = new ConnectionProvider(
@@ -43,29 +60,177 @@ public class ConnectionProvider {
     close(conn);
   }
 
-  private PoolingDataSource dataSource = null;
+  private static final String HEALTH_CHECK_QUERY = "SELECT 1";
+  private static final int HEALTH_CHECK_TIMEOUT = 5; // seconds
+  private static final double LATENCY_WEIGHT = 0.3; // Of each new sample
+
+  /*
+   * One pooled server and what we last saw of it.
+   */
+  private static class Pool {
+    String url;
+    PoolingDataSource dataSource;
+    volatile boolean healthy = true;
+    volatile double latencyMillis = 0;
+
+    Pool(String url, PoolingDataSource dataSource) {
+      this.url = url;
+      this.dataSource = dataSource;
+    }
+  }
+
+  private Pool writePool;
+  private List<Pool> readPools;
+  private Random random = new Random();
 
   public ConnectionProvider(String driver, String url, String user,
       String password) {
+    this(driver, url, user, password, 0);
+  }
+
+  /*
+   * maxOpenStatements > 0 keeps up to that many PreparedStatements open
+   * per pooled connection, keyed by SQL, so closing a statement returns
+   * it for reuse instead of discarding it.
+   */
+  public ConnectionProvider(String driver, String url, String user,
+      String password, int maxOpenStatements) {
+    this(driver, url, new ArrayList<String>(), user, password,
+        maxOpenStatements, 0);
+  }
+
+  /*
+   * Pools writeUrl for writes and each of readUrls for reads. With no
+   * read URLs, reads also go to writeUrl. A healthCheckInterval of 0
+   * (milliseconds) disables health checking.
+   */
+  public ConnectionProvider(String driver, String writeUrl,
+      List<String> readUrls, String user, String password,
+      int maxOpenStatements, long healthCheckInterval) {
 
     try {
       Class.forName(driver);
     } catch (ClassNotFoundException e) {
       e.printStackTrace();
     }
-    dataSource = setupDataSource(url, user, password);
+    writePool = new Pool(writeUrl,
+        setupDataSource(writeUrl, user, password, maxOpenStatements));
+    List<Pool> replicas = new ArrayList<Pool>();
+    for (String url : readUrls) {
+      replicas.add(new Pool(url,
+          setupDataSource(url, user, password, maxOpenStatements)));
+    }
+    readPools = Collections.unmodifiableList(replicas);
+
+    if (healthCheckInterval > 0) {
+      Thread t = new Thread(new HealthChecker(healthCheckInterval),
+          "ConnectionProvider-health");
+      t.setDaemon(true);
+      t.start();
+    }
   }
 
+  /*
+   * Connection to the write server, or null if it cannot be reached.
+   */
   public synchronized Connection connection() {
     try {
       
-      return dataSource.getConnection();
+      return writePool.dataSource.getConnection();
     } catch (SQLException e) {
       e.printStackTrace();
       return null;
     }
   }
 
+  /*
+   * Connection for reads: a healthy replica if there is one, otherwise
+   * the write server. Returns null if nothing can be reached.
+   */
+  public Connection readConnection() {
+    List<Pool> candidates = new ArrayList<Pool>(readPools.size());
+    for (Pool p : readPools) {
+      if (p.healthy) candidates.add(p);
+    }
+    while (!candidates.isEmpty()) {
+      Pool p = pickReplica(candidates);
+      try {
+        return p.dataSource.getConnection();
+      } catch (SQLException e) {
+        markDown(p, e);
+        candidates.remove(p);
+      }
+    }
+    try {
+      return writePool.dataSource.getConnection();
+    } catch (SQLException e) {
+      markDown(writePool, e);
+      return null;
+    }
+  }
+
+  /*
+   * Faster of two randomly chosen pools.
+   */
+  private Pool pickReplica(List<Pool> candidates) {
+    Pool a = candidates.get(random.nextInt(candidates.size()));
+    Pool b = candidates.get(random.nextInt(candidates.size()));
+    return a.latencyMillis <= b.latencyMillis ? a : b;
+  }
+
+  private void markDown(Pool p, Exception e) {
+    if (p.healthy) {
+      Syslog.warning(this, "Marking " + p.url + " down: " + e.getMessage());
+    }
+    p.healthy = false;
+  }
+
+  private class HealthChecker implements Runnable {
+    private long interval;
+
+    public HealthChecker(long interval) {
+      this.interval = interval;
+    }
+
+    public void run() {
+      while (true) {
+        check(writePool);
+        for (Pool p : readPools) {
+          check(p);
+        }
+        try {
+          Thread.sleep(interval);
+        } catch (InterruptedException e) {
+          return;
+        }
+      }
+    }
+
+    private void check(Pool p) {
+      Connection con = null;
+      Statement stmt = null;
+      long start = System.nanoTime();
+      try {
+        con = p.dataSource.getConnection();
+        stmt = con.createStatement();
+        stmt.setQueryTimeout(HEALTH_CHECK_TIMEOUT);
+        stmt.executeQuery(HEALTH_CHECK_QUERY).close();
+        double millis = (System.nanoTime() - start) / 1e6;
+        p.latencyMillis = p.latencyMillis == 0 ? millis :
+          LATENCY_WEIGHT * millis + (1 - LATENCY_WEIGHT) * p.latencyMillis;
+        if (!p.healthy) {
+          Syslog.info(ConnectionProvider.this, "Marking " + p.url + " up");
+        }
+        p.healthy = true;
+      } catch (SQLException e) {
+        markDown(p, e);
+      } finally {
+        close(stmt);
+        if (con != null) close(con);
+      }
+    }
+  }
+
   public static void close(Connection con) {
 
     try {   
@@ -117,7 +282,7 @@ public class ConnectionProvider {
   }
 
   private PoolingDataSource setupDataSource(String connectURI, String user,
-      String password) {
+      String password, int maxOpenStatements) {
     //
     // First, we'll need a ObjectPool that serves as the
     // actual pool of connections.
@@ -155,8 +320,16 @@ public class ConnectionProvider {
     // the "real" Connections created by the ConnectionFactory with
     // the classes that implement the pooling functionality.
     //
+    // Statements are pooled per connection when asked for.
+    //
+    KeyedObjectPoolFactory statementPoolFactory = null;
+    if (maxOpenStatements > 0) {
+      statementPoolFactory = new GenericKeyedObjectPoolFactory(null,
+          maxOpenStatements, GenericKeyedObjectPool.WHEN_EXHAUSTED_GROW, 0);
+    }
     PoolableConnectionFactory poolableConnectionFactory = new PoolableConnectionFactory(
-        connectionFactory, connectionPool, null, null, false, true);
+        connectionFactory, connectionPool, statementPoolFactory, null, false,
+        true);
 
     //
     // Finally, we create the PoolingDriver itself,
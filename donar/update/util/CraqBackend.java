@@ -27,9 +27,7 @@ import java.net.SocketTimeoutException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.HashSet;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.ListIterator;
 import java.util.Set;
 import java.util.StringTokenizer;
 import java.util.concurrent.locks.Lock;
@@ -40,7 +38,11 @@ import com.protomatter.syslog.Syslog;
 import donar.dns.attrs.RecordAttribute;
 
 public class CraqBackend implements DONARBackend {
+	private String craqHost;
+	private int craqPort;
 	private Socket craqSocket;
+	private Socket sweepSocket;  // Used only by the expiry sweeper
+	private ExpiryIndex expiries; // Created on first expiring record
 	private AccountInfo currentAccount;
 	private Set<String> accountsInUse;
 	private Lock accountsLock;	
@@ -51,7 +53,12 @@ public class CraqBackend implements DONARBackend {
 	 * host CRAQ_HOST at CRAQ_PORT. 
 	 */
 	public CraqBackend(String craqHost, int craqPort) throws IOException {
+		this.craqHost = craqHost;
+		this.craqPort = craqPort;
 		this.craqSocket = new Socket(craqHost, craqPort);
+		// Requests are written in several small pieces; don't let Nagle
+		// hold them back waiting on delayed ACKs from CRAQ.
+		this.craqSocket.setTcpNoDelay(true);
 		this.accountsInUse = new HashSet<String>();
 		this.accountsLock = new ReentrantLock();
 	}
@@ -73,16 +80,22 @@ public class CraqBackend implements DONARBackend {
 		}
 		
 		// Look up all records for given qname
-		SubdomainInfo subdomain = getSubdomain(qname);
-		if (subdomain == null) {
+		byte[] subdomainXDR = getSubdomainXDR(this.craqSocket, qname);
+		if (subdomainXDR == null) {
 			return new ArrayList<DNSRecord>();
 		}
-		recordList = subdomain.getRecords();
+		// Live records of the right type, or expired ones if none are
+		// live. Only those records are decoded.
+		try {
+			recordList = new SubdomainView(subdomainXDR).answerRecords(qtype,
+					System.currentTimeMillis() / 1000);
+		} catch (Exception e) {
+			Syslog.error(this, "Problem unmarshalling subdomain");
+			throw new IOException(e.getMessage());
+		}
 		
 		// Add SOA record if necessary
 		if (qtype.equals ("SOA")) {
-			if (recordList == null)
-				recordList = new LinkedList<DNSRecord>();
 			SimpleDateFormat soaSerialFormat = new SimpleDateFormat("yymmddHHmm");
 			DNSRecord soaRecord = new DNSRecord();
 			soaRecord.ttl = currentAccount.getSOATTL(); 
@@ -98,17 +111,6 @@ public class CraqBackend implements DONARBackend {
 			  "3600";       // default_ttl
 			recordList.add(0, soaRecord);
 		}
-		
-		// Filter out records that don't belong
-		if (! qtype.equals("ANY")) { // No filtering for ANY query
-			ListIterator<DNSRecord> iter =
-				recordList.listIterator();
-			while (iter.hasNext()) {
-				if (!iter.next().type.equals(qtype)) {
-					iter.remove();
-				}
-			}
-		}
 
 		Syslog.debug(this, "\tReturning records: " + recordList);	
 		
@@ -137,6 +139,9 @@ public class CraqBackend implements DONARBackend {
 	 */
 	public long getSequenceNum(String keyHash) throws IOException {
 		AccountInfo ai = getAccountInfo(keyHash);
+		if (ai == null) {
+			return -1;
+		}
 		long sequenceNum = ai.getSequenceNum();
 		return sequenceNum;
 	}
@@ -236,19 +241,91 @@ public class CraqBackend implements DONARBackend {
 		}
 		newSD.addRecord(type, content, ttl, attributes);
 		newSD.saveXDR(this.craqSocket);
+		scheduleExpiry(newSD);
 		Syslog.debug(this, "Added record succesfully...");
 	}
 	
+	/*
+	 * CRAQ cannot list its keys, so only subdomains written through this
+	 * backend are swept; answerQuery still prefers live records for the
+	 * rest.
+	 */
+	private synchronized void scheduleExpiry(SubdomainInfo sd) {
+		long next = sd.nextPrune(System.currentTimeMillis() / 1000);
+		if (next == 0) {
+			return;
+		}
+		if (expiries == null) {
+			expiries = new ExpiryIndex("CraqBackend", new ExpirySweeper());
+		}
+		expiries.schedule(sd.getFqdn(), next * 1000);
+	}
+	
+	/*
+	 * Prunes expired records from a subdomain over the sweeper's own CRAQ
+	 * connection. CRAQ has no conditional write, so an update landing
+	 * between our read and write could be lost; the window is one round
+	 * trip and the sweep skips the write when nothing has expired.
+	 */
+	private class ExpirySweeper implements ExpiryIndex.Sweeper {
+		public long sweep(String fqdn) throws IOException {
+			if (sweepSocket == null) {
+				sweepSocket = new Socket(craqHost, craqPort);
+				sweepSocket.setTcpNoDelay(true);
+			}
+			long now = System.currentTimeMillis() / 1000;
+			try {
+				SubdomainInfo sd = getSubdomain(sweepSocket, fqdn);
+				if (sd == null) {
+					return 0;
+				}
+				if (sd.pruneExpired(now)) {
+					sd.saveXDR(sweepSocket);
+					Syslog.debug(CraqBackend.this,
+							"Pruned expired records of " + fqdn);
+				}
+				return sd.nextPrune(now) * 1000;
+			} catch (IOException e) {
+				sweepSocket.close();
+				sweepSocket = null;
+				throw e;
+			}
+		}
+	}
+	
 	/*
 	 * Gets a sobdomain record from CRAQ if one exists. Otherwise returns
 	 * null.
 	 */
 	private SubdomainInfo getSubdomain(String fqdn) throws IOException {
+		return getSubdomain(this.craqSocket, fqdn);
+	}
+	
+	private SubdomainInfo getSubdomain(Socket craqSocket, String fqdn)
+			throws IOException {
+		byte[] objData = getSubdomainXDR(craqSocket, fqdn);
+		if (objData == null) {
+			return null;
+		}
+		try {
+			return SubdomainInfo.fromXDR(objData);
+		} catch (Exception e) {
+			Syslog.error(this, "Problem unmarshalling subdomain");
+			throw new IOException(e.getMessage());
+		}
+	}
+	
+	/*
+	 * Fetches the XDR encoding of the subdomain fqdn, or null if it does
+	 * not exist.
+	 */
+	private byte[] getSubdomainXDR(Socket craqSocket, String fqdn)
+			throws IOException {
 		// Get socket
 		DataInputStream dataIn =
-			new DataInputStream(this.craqSocket.getInputStream());
+			new DataInputStream(craqSocket.getInputStream());
 		DataOutputStream dataOut =
-			new DataOutputStream(this.craqSocket.getOutputStream());
+			new DataOutputStream(craqSocket.getOutputStream());
 		
 		// Request SubdomainInfo from CRAQ
 		String craqRequest = "GET " + fqdn + "\r\n";
@@ -286,13 +363,7 @@ public class CraqBackend implements DONARBackend {
 					"CRAQ timed out reading in SubdomainInfo");
 			}
 			dataIn.readLine(); // Skip past terminating \r\n
-			
-			try {
-				return SubdomainInfo.fromXDR(objData);
-			} catch (Exception e) {
-				Syslog.error(this, "Problem unmarshalling subdomain");
-				throw new IOException(e.getMessage());
-			}		
+			return objData;
 			
 		} else {
 			throw new IOException(
@@ -402,6 +473,30 @@ public class CraqBackend implements DONARBackend {
 		currentAccount.incrSequenceNum();
 	}
 	
+	public void advanceSequenceNum(long nextSequenceNum) throws IOException {
+		if (this.currentAccount == null) {
+			throw new IOException("Tried to use backend with unbound account");
+		}
+		currentAccount.advanceSequenceNum(nextSequenceNum);
+	}
+	
+	/*
+	 * CRAQ writes each subdomain object as soon as it changes, so there
+	 * is nothing to group; every change is applied immediately.
+	 */
+	public void beginUpdate() throws IOException {
+	}
+	
+	public boolean isTransactional() {
+		return false;
+	}
+	
+	public void commitUpdate() throws IOException {
+	}
+	
+	public void abortUpdate() throws IOException {
+	}
+	
 	/* 
 	 * Remove account locks.
 	 */
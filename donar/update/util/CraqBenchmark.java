@@ -0,0 +1,239 @@
+package donar.update.util;
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+
+import joptsimple.OptionException;
+import joptsimple.OptionParser;
+import joptsimple.OptionSet;
+
+import donar.dns.attrs.RecordAttribute;
+
+/**
+ * Measures CraqBackend throughput and latency percentiles. By default runs
+ * against an in-process LocalCraqServer so it works on any machine; pass
+ * --host/--port to point it at a real CRAQ node instead.
+ *
+ * Each worker thread owns one CraqBackend (backends hold a single CRAQ
+ * socket and are not safe to share) and repeatedly performs one update
+ * (bind, addRecord, unbind) followed by one query.
+ */
+public class CraqBenchmark {
+
+	private static final int REPLICAS = 16;
+
+	private static class Worker implements Runnable {
+		private CraqBackend backend;
+		private String keyHash;
+		private int iterations;
+		long[] updateNanos;
+		long[] queryNanos;
+		int failures;
+
+		public Worker(CraqBackend backend, String keyHash, int iterations) {
+			this.backend = backend;
+			this.keyHash = keyHash;
+			this.iterations = iterations;
+			this.updateNanos = new long[iterations];
+			this.queryNanos = new long[iterations];
+		}
+
+		public void run() {
+			try {
+				backend.assureKey(keyHash);
+				backend.bindAccount(keyHash);
+				String suffix = backend.getSuffix();
+				backend.unbindAccount(keyHash);
+
+				for (int i = 0; i < iterations; i++) {
+					// Cycle through a fixed set of replicas so the subdomain
+					// stays the same size and we measure steady state.
+					String content = "10.0.0." + (i % REPLICAS);
+					long start = System.nanoTime();
+					try {
+						backend.bindAccount(keyHash);
+						backend.addRecord("www", "A", content, 60,
+								new LinkedList<RecordAttribute>());
+						backend.incrementSequenceNum();
+						backend.unbindAccount(keyHash);
+					} catch (IOException e) {
+						failures++;
+					}
+					long mid = System.nanoTime();
+					try {
+						backend.answerQuery("www." + suffix, "IN", "A", "-1",
+								"127.0.0.1");
+					} catch (IOException e) {
+						failures++;
+					}
+					long end = System.nanoTime();
+					updateNanos[i] = mid - start;
+					queryNanos[i] = end - mid;
+				}
+			} catch (IOException e) {
+				failures += iterations;
+			}
+		}
+	}
+
+	/*
+	 * Prints throughput and latency percentiles for one operation type.
+	 */
+	private static void report(String name, List<long[]> samples,
+			long wallNanos) {
+		int total = 0;
+		for (long[] s : samples) total += s.length;
+		long[] all = new long[total];
+		int pos = 0;
+		for (long[] s : samples) {
+			System.arraycopy(s, 0, all, pos, s.length);
+			pos += s.length;
+		}
+		Arrays.sort(all);
+		if (all.length == 0) return;
+
+		System.out.println(name + ": " + all.length + " ops");
+		System.out.println("  throughput  " +
+				String.format("%.1f", all.length / (wallNanos / 1e9)) + " ops/s");
+		System.out.println("  p50         " + micros(percentile(all, 0.50)));
+		System.out.println("  p90         " + micros(percentile(all, 0.90)));
+		System.out.println("  p99         " + micros(percentile(all, 0.99)));
+		System.out.println("  p99.9       " + micros(percentile(all, 0.999)));
+		System.out.println("  max         " + micros(all[all.length - 1]));
+	}
+
+	private static long percentile(long[] sorted, double p) {
+		int idx = (int) Math.ceil(p * sorted.length) - 1;
+		if (idx < 0) idx = 0;
+		return sorted[idx];
+	}
+
+	private static String micros(long nanos) {
+		return String.format("%.1f us", nanos / 1000.0);
+	}
+
+	private static String keyHashFor(int i) {
+		byte[] hash = new byte[20];
+		hash[16] = (byte) (i >> 24);
+		hash[17] = (byte) (i >> 16);
+		hash[18] = (byte) (i >> 8);
+		hash[19] = (byte) i;
+		return AccountInfo.bytes2Hex(hash);
+	}
+
+	public static void main(String[] args) throws Exception {
+		OptionParser parser = new OptionParser();
+		parser.acceptsAll(
+				Arrays.asList(
+						new String[] { "h", "?", "help" } ),
+				"Prints this help message");
+		parser.accepts("host", "CRAQ host; starts a local stand-in if omitted")
+				.withRequiredArg().ofType(String.class);
+		parser.accepts("port", "CRAQ port")
+				.withRequiredArg().ofType(Integer.class);
+		parser.accepts("threads", "Number of concurrent backends. Default: 4")
+				.withRequiredArg().ofType(Integer.class);
+		parser.accepts("iterations", "Updates per thread. Default: 10000")
+				.withRequiredArg().ofType(Integer.class);
+		parser.accepts("latency", "Stand-in latency in microseconds")
+				.withRequiredArg().ofType(Long.class);
+		parser.accepts("jitter", "Stand-in jitter in microseconds")
+				.withRequiredArg().ofType(Long.class);
+		parser.accepts("error-rate", "Stand-in ERROR reply probability")
+				.withRequiredArg().ofType(Double.class);
+
+		try {
+			OptionSet options = parser.parse(args);
+			if (options.has("help")) {
+				System.out.println("Usage: CraqBenchmark [options]");
+				parser.printHelpOn(System.out);
+				return;
+			}
+
+			int threads = 4;
+			int iterations = 10000;
+			if (options.has("threads"))
+				threads = (Integer) options.valueOf("threads");
+			if (options.has("iterations"))
+				iterations = (Integer) options.valueOf("iterations");
+
+			String host = "localhost";
+			int port;
+			LocalCraqServer standIn = null;
+			if (options.has("host")) {
+				host = (String) options.valueOf("host");
+				port = options.has("port") ?
+						(Integer) options.valueOf("port") : 2182;
+			} else {
+				standIn = LocalCraqServer.start(
+						options.has("port") ? (Integer) options.valueOf("port") : 0);
+				long latency = options.has("latency") ?
+						(Long) options.valueOf("latency") : 0;
+				long jitter = options.has("jitter") ?
+						(Long) options.valueOf("jitter") : 0;
+				standIn.setLatency(latency, jitter);
+				if (options.has("error-rate"))
+					standIn.setFailureRates(
+							(Double) options.valueOf("error-rate"), 0);
+				port = standIn.getPort();
+			}
+
+			Worker[] workers = new Worker[threads];
+			Thread[] workerThreads = new Thread[threads];
+			for (int i = 0; i < threads; i++) {
+				workers[i] = new Worker(new CraqBackend(host, port),
+						keyHashFor(i), iterations);
+				workerThreads[i] = new Thread(workers[i]);
+			}
+
+			long start = System.nanoTime();
+			for (Thread t : workerThreads) t.start();
+			for (Thread t : workerThreads) t.join();
+			long wall = System.nanoTime() - start;
+
+			List<long[]> updates = new LinkedList<long[]>();
+			List<long[]> queries = new LinkedList<long[]>();
+			int failures = 0;
+			for (Worker w : workers) {
+				updates.add(w.updateNanos);
+				queries.add(w.queryNanos);
+				failures += w.failures;
+			}
+			report("update", updates, wall);
+			report("query", queries, wall);
+			System.out.println("failures: " + failures);
+
+			if (standIn != null) {
+				System.out.println("stand-in: " + standIn.getNumGets() +
+						" gets, " + standIn.getNumSets() + " sets, " +
+						standIn.getNumErrors() + " injected errors");
+				standIn.shutdown();
+			}
+		} catch (OptionException ex) {
+			parser.printHelpOn(System.err);
+			System.err.println("====");
+			System.err.println(ex.getMessage());
+		}
+	}
+}
@@ -55,6 +55,40 @@ public interface DONARBackend {
 	 */
 	void incrementSequenceNum() throws IOException;
 	
+	/*
+	 * Raises the sequence number of the bound account to nextSequenceNum,
+	 * leaving it alone if it is already at least that high. Like
+	 * incrementSequenceNum, part of the current update.
+	 */
+	void advanceSequenceNum(long nextSequenceNum) throws IOException;
+	
+	/*
+	 * Starts a group of changes to the bound account, such as the request
+	 * elements of one update packet. Changes made until commitUpdate()
+	 * take effect together; abortUpdate() discards them. Backends that
+	 * cannot group changes apply each one immediately and treat these
+	 * calls as no-ops.
+	 */
+	void beginUpdate() throws IOException;
+	
+	/*
+	 * True if changes between beginUpdate() and commitUpdate() take
+	 * effect together. If not, each change is applied as it is made, and
+	 * a change that fails leaves the ones before it in place.
+	 */
+	boolean isTransactional();
+	
+	/*
+	 * Makes the changes since beginUpdate() durable.
+	 */
+	void commitUpdate() throws IOException;
+	
+	/*
+	 * Discards the changes since beginUpdate(), as far as the backend is
+	 * able to.
+	 */
+	void abortUpdate() throws IOException;
+	
 	/*
 	 * Unbinds account.
 	 */
@@ -0,0 +1,136 @@
+package donar.update.util;
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+
+import com.protomatter.syslog.Syslog;
+
+/**
+ * Priority queue of keys (subdomain names) ordered by when their next
+ * record expires, with a daemon thread that hands each key to a Sweeper
+ * once that time has passed. The sweeper removes or demotes whatever has
+ * expired and says when the key next needs sweeping, so only one entry
+ * per key is ever queued no matter how many records it holds.
+ */
+public class ExpiryIndex implements Runnable {
+
+	/*
+	 * Called from the sweeper thread when key is due. Returns the time
+	 * (ms since the epoch) key should next be swept, or 0 if none of its
+	 * records expire.
+	 */
+	public interface Sweeper {
+		long sweep(String key) throws IOException;
+	}
+
+	private static final long RETRY_DELAY = 5000; // ms after a failed sweep
+
+	private static class Expiry implements Delayed {
+		final String key;
+		final long dueAt; // ms since the epoch
+
+		Expiry(String key, long dueAt) {
+			this.key = key;
+			this.dueAt = dueAt;
+		}
+
+		public long getDelay(TimeUnit unit) {
+			return unit.convert(dueAt - System.currentTimeMillis(),
+					TimeUnit.MILLISECONDS);
+		}
+
+		public int compareTo(Delayed other) {
+			long diff = dueAt - ((Expiry) other).dueAt;
+			return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+		}
+	}
+
+	private DelayQueue<Expiry> queue;
+	private ConcurrentHashMap<String, Long> scheduled; // key -> earliest dueAt
+	private Sweeper sweeper;
+
+	public ExpiryIndex(String name, Sweeper sweeper) {
+		this.queue = new DelayQueue<Expiry>();
+		this.scheduled = new ConcurrentHashMap<String, Long>();
+		this.sweeper = sweeper;
+		Thread t = new Thread(this, name + "-sweeper");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/*
+	 * Makes sure key is swept no later than dueAt. Does nothing if it is
+	 * already due earlier, or if dueAt is 0.
+	 */
+	public void schedule(String key, long dueAt) {
+		if (dueAt <= 0) {
+			return;
+		}
+		while (true) {
+			Long current = scheduled.get(key);
+			if (current != null) {
+				if (current <= dueAt) {
+					return;
+				}
+				if (!scheduled.replace(key, current, dueAt)) {
+					continue;
+				}
+			} else if (scheduled.putIfAbsent(key, dueAt) != null) {
+				continue;
+			}
+			queue.add(new Expiry(key, dueAt));
+			return;
+		}
+	}
+
+	/*
+	 * Number of keys waiting to be swept.
+	 */
+	public int size() {
+		return scheduled.size();
+	}
+
+	public void run() {
+		while (true) {
+			Expiry e;
+			try {
+				e = queue.take();
+			} catch (InterruptedException ex) {
+				return;
+			}
+			// Superseded by an earlier entry for the same key
+			if (!scheduled.remove(e.key, e.dueAt)) {
+				continue;
+			}
+			try {
+				schedule(e.key, sweeper.sweep(e.key));
+			} catch (IOException ex) {
+				Syslog.warning(this, "Error sweeping " + e.key + ": " +
+						ex.getMessage());
+				schedule(e.key, System.currentTimeMillis() + RETRY_DELAY);
+			}
+		}
+	}
+}
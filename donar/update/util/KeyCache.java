@@ -0,0 +1,109 @@
+package donar.update.util;
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+import java.nio.ByteBuffer;
+import java.security.KeyFactory;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import donar.update.UpdateInfo;
+
+/**
+ * Bounded LRU map from the encoded public key in an update packet to the
+ * parsed PublicKey and its key hash, so a client sending a stream of
+ * updates has its key decoded and hashed once rather than per packet.
+ * Keys that fail to parse are not cached. Each key remembers the NUP
+ * version (and so the algorithm) it was parsed for.
+ */
+public class KeyCache {
+
+	public static class CachedKey {
+		public final short version;
+		public final PublicKey publicKey;
+		public final String hash; // KeyUtil.getHashString of the encoding
+
+		CachedKey(short version, PublicKey publicKey, String hash) {
+			this.version = version;
+			this.publicKey = publicKey;
+			this.hash = hash;
+		}
+	}
+
+	private LinkedHashMap<ByteBuffer, CachedKey> map;
+
+	public KeyCache(final int capacity) {
+		this.map = new LinkedHashMap<ByteBuffer, CachedKey>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(
+					Map.Entry<ByteBuffer, CachedKey> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+
+	/*
+	 * Returns the parsed form of encoded, an X.509 encoded key for the
+	 * algorithm of NUP version, or null if it is not a valid key of that
+	 * kind.
+	 */
+	public CachedKey get(byte[] encoded, short version) {
+		ByteBuffer lookup = ByteBuffer.wrap(encoded);
+		synchronized (this) {
+			CachedKey key = map.get(lookup);
+			if (key != null) {
+				// The encoding names its algorithm, so a key can only
+				// ever parse for one version
+				return key.version == version ? key : null;
+			}
+		}
+
+		// Parse outside the lock; racing threads just do it twice
+		PublicKey publicKey;
+		try {
+			KeyFactory keyFactory = KeyFactory.getInstance(
+					UpdateInfo.NUP_KEY_ALGORITHMS[version]);
+			publicKey = keyFactory.generatePublic(
+					new X509EncodedKeySpec(encoded));
+		} catch (NoSuchAlgorithmException e) {
+			return null;
+		} catch (InvalidKeySpecException e) {
+			return null;
+		}
+		CachedKey key = new CachedKey(version, publicKey,
+				KeyUtil.getHashString(encoded));
+		// Copy, so the caller may reuse encoded
+		ByteBuffer stored = ByteBuffer.wrap(encoded.clone());
+		synchronized (this) {
+			map.put(stored, key);
+		}
+		return key;
+	}
+
+	public synchronized int size() {
+		return map.size();
+	}
+}
@@ -19,35 +19,63 @@ package donar.update.util;
  * under the License.
  */
 
-import java.math.BigInteger;
 import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.Signature;
 
 import donar.update.UpdateInfo;
 
 public class KeyUtil {
 	
+	/*
+	 * Digest and verifier objects are not thread safe but are costly to
+	 * look up, so each thread keeps its own.
+	 */
+	private static final ThreadLocal<MessageDigest> SHA1 =
+		new ThreadLocal<MessageDigest>() {
+			protected MessageDigest initialValue() {
+				try {
+					return MessageDigest.getInstance("SHA1");
+				} catch (NoSuchAlgorithmException e) {
+					throw new IllegalStateException(e);
+				}
+			}
+		};
+	
+	/* Indexed by NUP version, filled in on first use */
+	private static final ThreadLocal<Signature[]> VERIFIERS =
+		new ThreadLocal<Signature[]>() {
+			protected Signature[] initialValue() {
+				return new Signature[UpdateInfo.NUP_SIGNATURE_ALGORITHMS.length];
+			}
+		};
+	
+	/*
+	 * Lower case hex SHA-1 of publicKey, as used to name accounts.
+	 */
 	public static String getHashString(byte[] publicKey)
 	{
-		try {
-			
-			MessageDigest hasher = MessageDigest.getInstance("SHA1");
-			hasher.update(publicKey);
-			byte[] hash = hasher.digest();
-			BigInteger hashInt = new BigInteger(1, hash);
-			String hashStr = hashInt.toString(16);
-			
-			// Zero pad if necessary
-			int zeroesNeeded =
-				UpdateInfo.SHA1_HASH_BYTES * 2 - hashStr.length();
-			for (int i = 0; i < zeroesNeeded; i++)
-				hashStr = "0" + hashStr;
-			
-			return hashStr;
-			
-		} catch (Exception e) {
-			// Fail on exception
-			return null;
+		MessageDigest hasher = SHA1.get();
+		hasher.reset();
+		return AccountInfo.bytes2Hex(hasher.digest(publicKey));
+	}
+	
+	/*
+	 * This thread's Signature for packets of the given (supported) NUP
+	 * version. Callers must initVerify it before use.
+	 */
+	public static Signature getVerifier(short version)
+	{
+		Signature[] verifiers = VERIFIERS.get();
+		if (verifiers[version] == null) {
+			try {
+				verifiers[version] = Signature.getInstance(
+					UpdateInfo.NUP_SIGNATURE_ALGORITHMS[version]);
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException(e);
+			}
 		}
+		return verifiers[version];
 	}
 	
 	public static boolean validateDomain(String name, String keyHash)
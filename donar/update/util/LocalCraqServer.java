@@ -0,0 +1,324 @@
+package donar.update.util;
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import joptsimple.OptionException;
+import joptsimple.OptionParser;
+import joptsimple.OptionSet;
+
+/**
+ * In-memory stand-in for a CRAQ client node. Speaks the same
+ * memcached-style text protocol that CraqBackend and CraqInterface use:
+ *
+ *   GET key\r\n               -> VALUE len\r\n data\r\n  |  NOT_FOUND\r\n
+ *   SET key len\r\n data\r\n  -> STORED\r\n
+ *
+ * Every request can be delayed by a fixed latency plus random jitter, and
+ * can be made to fail, either with an ERROR reply or by dropping the
+ * connection, with a configurable probability. This lets the CRAQ backend
+ * be exercised and benchmarked without a real CRAQ deployment.
+ */
+public class LocalCraqServer implements Runnable {
+
+	private ServerSocket serverSocket;
+	private ConcurrentHashMap<String, byte[]> store;
+	private volatile boolean running;
+
+	// Fault and latency injection
+	private volatile long latencyMicros;
+	private volatile long jitterMicros;
+	private volatile double errorRate;
+	private volatile double dropRate;
+
+	// Counters
+	private AtomicLong numGets;
+	private AtomicLong numSets;
+	private AtomicLong numErrors;
+	private AtomicLong numDrops;
+
+	public LocalCraqServer(InetAddress addr, int port) throws IOException {
+		this.serverSocket = new ServerSocket(port, 50, addr);
+		this.store = new ConcurrentHashMap<String, byte[]>();
+		this.numGets = new AtomicLong();
+		this.numSets = new AtomicLong();
+		this.numErrors = new AtomicLong();
+		this.numDrops = new AtomicLong();
+	}
+
+	/*
+	 * Starts a stand-in server on the loopback interface in a daemon
+	 * thread. A port of 0 picks any free port; see getPort().
+	 */
+	public static LocalCraqServer start(int port) throws IOException {
+		LocalCraqServer server =
+			new LocalCraqServer(InetAddress.getByName("localhost"), port);
+		Thread t = new Thread(server, "LocalCraqServer:" + server.getPort());
+		t.setDaemon(true);
+		t.start();
+		return server;
+	}
+
+	public int getPort() {
+		return serverSocket.getLocalPort();
+	}
+
+	/*
+	 * Every request waits latencyMicros plus a uniformly random amount
+	 * of up to jitterMicros before it is answered.
+	 */
+	public void setLatency(long latencyMicros, long jitterMicros) {
+		this.latencyMicros = latencyMicros;
+		this.jitterMicros = jitterMicros;
+	}
+
+	/*
+	 * errorRate is the probability a request is answered with ERROR,
+	 * dropRate the probability the connection is closed without a reply.
+	 */
+	public void setFailureRates(double errorRate, double dropRate) {
+		this.errorRate = errorRate;
+		this.dropRate = dropRate;
+	}
+
+	public void clear() {
+		store.clear();
+	}
+
+	public long getNumGets() { return numGets.get(); }
+	public long getNumSets() { return numSets.get(); }
+	public long getNumErrors() { return numErrors.get(); }
+	public long getNumDrops() { return numDrops.get(); }
+
+	public void shutdown() {
+		running = false;
+		try {
+			serverSocket.close();
+		} catch (IOException e) {
+			// Closing anyway
+		}
+	}
+
+	public void run() {
+		running = true;
+		while (running) {
+			try {
+				Socket client = serverSocket.accept();
+				client.setTcpNoDelay(true);
+				Thread t = new Thread(new ConnectionHandler(client),
+						"LocalCraqServer-conn");
+				t.setDaemon(true);
+				t.start();
+			} catch (IOException e) {
+				if (running) {
+					System.err.println("LocalCraqServer accept failed: " +
+							e.getMessage());
+				}
+			}
+		}
+	}
+
+	private class ConnectionHandler implements Runnable {
+		private Socket socket;
+		private Random random;
+
+		public ConnectionHandler(Socket socket) {
+			this.socket = socket;
+			this.random = new Random();
+		}
+
+		@SuppressWarnings("deprecation")
+		public void run() {
+			try {
+				DataInputStream in = new DataInputStream(
+						new BufferedInputStream(socket.getInputStream()));
+				DataOutputStream out = new DataOutputStream(
+						new BufferedOutputStream(socket.getOutputStream()));
+				String line;
+				while ((line = in.readLine()) != null) {
+					StringTokenizer tokens = new StringTokenizer(line);
+					if (!tokens.hasMoreTokens()) {
+						continue;
+					}
+					String command = tokens.nextToken();
+
+					// SET payloads must be consumed before any injected
+					// failure, otherwise the stream loses framing.
+					byte[] data = null;
+					String key = tokens.hasMoreTokens() ? tokens.nextToken() : null;
+					if (command.equals("SET")) {
+						if (key == null || !tokens.hasMoreTokens()) {
+							reply(out, "ERROR");
+							continue;
+						}
+						int len = Integer.parseInt(tokens.nextToken());
+						data = new byte[len];
+						in.readFully(data);
+						in.readLine(); // Skip past terminating \r\n
+					}
+
+					injectLatency();
+					double roll = random.nextDouble();
+					if (roll < dropRate) {
+						numDrops.incrementAndGet();
+						socket.close();
+						return;
+					}
+					if (roll < dropRate + errorRate) {
+						numErrors.incrementAndGet();
+						reply(out, "ERROR");
+						continue;
+					}
+
+					if (command.equals("GET") && key != null) {
+						numGets.incrementAndGet();
+						byte[] value = store.get(key);
+						if (value == null) {
+							reply(out, "NOT_FOUND");
+						} else {
+							out.writeBytes("VALUE " + value.length + "\r\n");
+							out.write(value);
+							out.writeBytes("\r\n");
+							out.flush();
+						}
+					} else if (command.equals("SET")) {
+						numSets.incrementAndGet();
+						store.put(key, data);
+						reply(out, "STORED");
+					} else {
+						reply(out, "ERROR");
+					}
+				}
+			} catch (IOException e) {
+				// Client went away
+			} catch (NumberFormatException e) {
+				// Bad length field, drop client
+			} finally {
+				try {
+					socket.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+
+		private void reply(DataOutputStream out, String status)
+			throws IOException {
+			out.writeBytes(status + "\r\n");
+			out.flush();
+		}
+
+		private void injectLatency() {
+			long delay = latencyMicros;
+			if (jitterMicros > 0) {
+				delay += (long) (random.nextDouble() * jitterMicros);
+			}
+			if (delay <= 0) {
+				return;
+			}
+			try {
+				Thread.sleep(delay / 1000, (int) (delay % 1000) * 1000);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		OptionParser parser = new OptionParser();
+		parser.acceptsAll(
+				Arrays.asList(
+						new String[] { "h", "?", "help" } ),
+				"Prints this help message");
+		parser.acceptsAll(
+				Arrays.asList(
+						new String[] { "p", "port" } ),
+				"Port to listen on. Default: 2182")
+				.withRequiredArg().ofType(Integer.class);
+		parser.acceptsAll(
+				Arrays.asList(
+						new String[] { "l", "latency" } ),
+				"Added latency per request in microseconds.")
+				.withRequiredArg().ofType(Long.class);
+		parser.acceptsAll(
+				Arrays.asList(
+						new String[] { "j", "jitter" } ),
+				"Random extra latency per request in microseconds.")
+				.withRequiredArg().ofType(Long.class);
+		parser.acceptsAll(
+				Arrays.asList(
+						new String[] { "e", "error-rate" } ),
+				"Probability a request is answered with ERROR.")
+				.withRequiredArg().ofType(Double.class);
+		parser.acceptsAll(
+				Arrays.asList(
+						new String[] { "d", "drop-rate" } ),
+				"Probability a request drops the connection.")
+				.withRequiredArg().ofType(Double.class);
+
+		try {
+			OptionSet options = parser.parse(args);
+			if (options.has("help")) {
+				System.out.println("Usage: LocalCraqServer [options]");
+				parser.printHelpOn(System.out);
+				return;
+			}
+			int port = 2182;
+			if (options.has("port"))
+				port = (Integer) options.valueOf("port");
+
+			LocalCraqServer server =
+				new LocalCraqServer(InetAddress.getByName("localhost"), port);
+			long latency = 0, jitter = 0;
+			if (options.has("latency"))
+				latency = (Long) options.valueOf("latency");
+			if (options.has("jitter"))
+				jitter = (Long) options.valueOf("jitter");
+			server.setLatency(latency, jitter);
+
+			double errorRate = 0, dropRate = 0;
+			if (options.has("error-rate"))
+				errorRate = (Double) options.valueOf("error-rate");
+			if (options.has("drop-rate"))
+				dropRate = (Double) options.valueOf("drop-rate");
+			server.setFailureRates(errorRate, dropRate);
+
+			System.out.println("LocalCraqServer listening on port " +
+					server.getPort());
+			server.run();
+		} catch (OptionException ex) {
+			parser.printHelpOn(System.err);
+			System.err.println("====");
+			System.err.println(ex.getMessage());
+		}
+	}
+}
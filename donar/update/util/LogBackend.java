@@ -0,0 +1,823 @@
+package donar.update.util;
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.protomatter.syslog.Syslog;
+
+import donar.dns.attrs.RecordAttribute;
+
+public class LogBackend implements DONARBackend {
+
+	private static final String LOCK_FILE = "records.lock";
+	private static final long FOLLOW_INTERVAL = 100; // ms
+	private static final int ACCOUNT_LOCKS = 256;
+
+	// One backend per log directory per process
+	private static Map<String, LogBackend> openBackends =
+		new HashMap<String, LogBackend>();
+
+	private RecordStore store;
+	private ExpiryIndex expiries; // Writers only
+	private FileLock writerLock;
+	private boolean readOnly;
+	private boolean syncOnUnbind;
+	private long lastFollowed;
+
+	private volatile ConcurrentHashMap<String, SubdomainInfo> subdomains; // fqdn ->
+	private volatile ConcurrentHashMap<String, AccountInfo> accounts;     // keyHash ->
+	private ThreadLocal<Binding> binding;
+
+	// Held from bindAccount to unbindAccount, so updates to one account
+	// (and expiry sweeps of its subdomains) take turns; striped by keyHash
+	private ReentrantLock[] accountLocks;
+
+	/*
+	 * Per-thread state while an account is bound: a private copy of the
+	 * account and, between beginUpdate and commitUpdate, the subdomain
+	 * changes not yet written (a null value removes the subdomain). The
+	 * copies are only written back whole because the account lock keeps
+	 * anyone else from changing the account meanwhile.
+	 */
+	private static class Binding {
+		AccountInfo account;
+		Map<String, SubdomainInfo> pending;
+		boolean dirty;
+		ReentrantLock lock;
+
+		Binding(AccountInfo account, ReentrantLock lock) {
+			this.account = account;
+			this.lock = lock;
+		}
+	}
+
+	/*
+	 * Embedded backend for DONAR. Keeps every AccountInfo and SubdomainInfo
+	 * in memory and persists each change, XDR encoded, to an append-only
+	 * memory-mapped log in dir. On startup the newest snapshot and the log
+	 * written since are replayed to rebuild the in-memory index.
+	 *
+	 * Only one process may open a directory for writing. Read-only
+	 * backends (e.g. the resolver) follow the writer by replaying entries
+	 * appended since their last look.
+	 */
+	private LogBackend(File dir, boolean readOnly, boolean syncOnUnbind)
+		throws IOException {
+		this.readOnly = readOnly;
+		this.syncOnUnbind = syncOnUnbind;
+		this.subdomains = new ConcurrentHashMap<String, SubdomainInfo>();
+		this.accounts = new ConcurrentHashMap<String, AccountInfo>();
+		this.binding = new ThreadLocal<Binding>();
+		this.accountLocks = new ReentrantLock[ACCOUNT_LOCKS];
+		for (int i = 0; i < accountLocks.length; i++) {
+			accountLocks[i] = new ReentrantLock();
+		}
+
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Could not create log directory " + dir);
+		}
+		if (!readOnly) {
+			RandomAccessFile lockFile =
+				new RandomAccessFile(new File(dir, LOCK_FILE), "rw");
+			this.writerLock = lockFile.getChannel().tryLock();
+			if (this.writerLock == null) {
+				lockFile.close();
+				throw new IOException("Record log in " + dir +
+						" is already open for writing");
+			}
+		}
+
+		this.store = new RecordStore(dir, readOnly);
+		long start = System.currentTimeMillis();
+		int replayed = store.load(new IndexReplayer(accounts, subdomains));
+		Syslog.info(this, "Replayed " + replayed + " log entries from " +
+				dir + " in " + (System.currentTimeMillis() - start) +
+				"ms: " + accounts.size() + " accounts, " + subdomains.size() +
+				" subdomains");
+		this.lastFollowed = System.currentTimeMillis();
+
+		if (!readOnly) {
+			this.expiries = new ExpiryIndex("LogBackend", new ExpirySweeper());
+			for (SubdomainInfo sd : subdomains.values()) {
+				scheduleExpiry(sd);
+			}
+		}
+	}
+
+	/*
+	 * Returns the backend for the LOG_STORE_DIR in config, opening it if
+	 * this process has not already done so. Writers also start a
+	 * background compactor.
+	 */
+	public static synchronized LogBackend open(Properties config,
+			boolean readOnly) throws IOException {
+		File dir = new File(config.getProperty("LOG_STORE_DIR"));
+		String path = dir.getCanonicalPath();
+		LogBackend backend = openBackends.get(path);
+		if (backend == null) {
+			backend = new LogBackend(dir, readOnly,
+					Boolean.parseBoolean(config.getProperty("LOG_STORE_SYNC")));
+			if (!readOnly) {
+				Compactor compactor = backend.new Compactor(
+					Long.parseLong(config.getProperty("LOG_COMPACT_INTERVAL")) * 1000,
+					Long.parseLong(config.getProperty("LOG_SNAPSHOT_INTERVAL")) * 1000,
+					Long.parseLong(config.getProperty("LOG_COMPACT_MIN_BYTES")));
+				Thread t = new Thread(compactor, "LogBackend-compactor");
+				t.setDaemon(true);
+				t.start();
+			}
+			openBackends.put(path, backend);
+		}
+		return backend;
+	}
+
+	/*
+	 * Applies log entries to an in-memory index.
+	 */
+	private class IndexReplayer implements RecordLog.Replayer {
+		private Map<String, AccountInfo> accounts;
+		private Map<String, SubdomainInfo> subdomains;
+
+		public IndexReplayer(Map<String, AccountInfo> accounts,
+				Map<String, SubdomainInfo> subdomains) {
+			this.accounts = accounts;
+			this.subdomains = subdomains;
+		}
+
+		public void replay(byte kind, String key, byte[] payload)
+			throws IOException {
+			switch (kind) {
+				case RecordLog.ACCOUNT:
+					accounts.put(key, AccountInfo.fromXDR(payload));
+					break;
+				case RecordLog.SUBDOMAIN:
+					subdomains.put(key, SubdomainInfo.fromXDR(payload));
+					break;
+				case RecordLog.REMOVE_SUBDOMAIN:
+					subdomains.remove(key);
+					break;
+				case RecordLog.TRANSACTION:
+					DataInputStream in =
+						new DataInputStream(new ByteArrayInputStream(payload));
+					while (in.available() > 0) {
+						byte entryKind = in.readByte();
+						String entryKey = in.readUTF();
+						byte[] entryPayload = new byte[in.readInt()];
+						in.readFully(entryPayload);
+						replay(entryKind, entryKey, entryPayload);
+					}
+					break;
+				default:
+					Syslog.warning(LogBackend.this,
+							"Skipping unknown log entry kind " + kind);
+			}
+		}
+	}
+
+	/*
+	 * Read-only backends pick up whatever the writer has appended since
+	 * we last looked, at most once per FOLLOW_INTERVAL.
+	 */
+	private void follow() {
+		if (!readOnly) return;
+		long now = System.currentTimeMillis();
+		if (now - lastFollowed < FOLLOW_INTERVAL) return;
+		lastFollowed = now;
+		try {
+			if (!store.follow(new IndexReplayer(accounts, subdomains))) {
+				// The writer compacted away segments we had not read yet;
+				// rebuild from its snapshot and swap the new index in.
+				ConcurrentHashMap<String, AccountInfo> newAccounts =
+					new ConcurrentHashMap<String, AccountInfo>();
+				ConcurrentHashMap<String, SubdomainInfo> newSubdomains =
+					new ConcurrentHashMap<String, SubdomainInfo>();
+				store.load(new IndexReplayer(newAccounts, newSubdomains));
+				accounts = newAccounts;
+				subdomains = newSubdomains;
+				Syslog.info(this, "Reloaded record log after compaction");
+			}
+		} catch (IOException e) {
+			Syslog.error(this, "Error following record log: " + e.getMessage());
+		}
+	}
+
+	/*
+	 * Writes a snapshot of every live account and subdomain and deletes
+	 * the log segments it replaces. Indexed objects are never modified
+	 * in place, so copying the maps at the roll point gives a consistent
+	 * view that can be written out without holding up updates.
+	 */
+	public void compact() throws IOException {
+		checkWritable();
+		int generation;
+		Map<String, AccountInfo> accountView;
+		Map<String, SubdomainInfo> subdomainView;
+		synchronized (this) {
+			generation = store.roll();
+			accountView = new HashMap<String, AccountInfo>(accounts);
+			subdomainView = new HashMap<String, SubdomainInfo>(subdomains);
+		}
+
+		long start = System.currentTimeMillis();
+		RecordLog snapshot = store.createSnapshot(generation);
+		for (Map.Entry<String, AccountInfo> e : accountView.entrySet()) {
+			snapshot.append(RecordLog.ACCOUNT, e.getKey(), e.getValue().toXDR());
+		}
+		for (Map.Entry<String, SubdomainInfo> e : subdomainView.entrySet()) {
+			snapshot.append(RecordLog.SUBDOMAIN, e.getKey(),
+					e.getValue().toXDR());
+		}
+		store.commitSnapshot(generation, snapshot);
+		Syslog.info(this, "Wrote snapshot " + generation + " (" +
+				store.getSnapshotBytes() + " bytes) in " +
+				(System.currentTimeMillis() - start) + "ms");
+	}
+
+	/*
+	 * Prunes expired records from a subdomain when the expiry index says
+	 * they are due.
+	 */
+	private class ExpirySweeper implements ExpiryIndex.Sweeper {
+		public long sweep(String fqdn) throws IOException {
+			long now = System.currentTimeMillis() / 1000;
+			SubdomainInfo sd = subdomains.get(fqdn);
+			if (sd == null) {
+				return 0;
+			}
+
+			// An update in progress would otherwise commit its copy of
+			// the subdomain over the pruned one
+			ReentrantLock lock = accountLock(sd.getAccountHash());
+			lock.lock();
+			try {
+				synchronized (LogBackend.this) {
+					sd = subdomains.get(fqdn);
+					if (sd == null) {
+						return 0;
+					}
+					if (sd.nextPrune(now) == now) {
+						sd = copyOf(sd);
+						sd.pruneExpired(now);
+						store.append(RecordLog.SUBDOMAIN, fqdn, sd.toXDR());
+						subdomains.put(fqdn, sd);
+						Syslog.debug(LogBackend.this,
+								"Pruned expired records of " + fqdn);
+					}
+					return sd.nextPrune(now) * 1000;
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	private void scheduleExpiry(SubdomainInfo sd) {
+		if (expiries != null) {
+			expiries.schedule(sd.getFqdn(),
+					sd.nextPrune(System.currentTimeMillis() / 1000) * 1000);
+		}
+	}
+
+	/*
+	 * Snapshots the log whenever the history written since the last
+	 * snapshot outgrows the live data, and at least every
+	 * snapshotInterval if anything has changed.
+	 */
+	private class Compactor implements Runnable {
+		private long checkInterval;
+		private long snapshotInterval;
+		private long minBytes;
+
+		public Compactor(long checkInterval, long snapshotInterval,
+				long minBytes) {
+			this.checkInterval = checkInterval;
+			this.snapshotInterval = snapshotInterval;
+			this.minBytes = minBytes;
+		}
+
+		public void run() {
+			long lastSnapshot = System.currentTimeMillis();
+			while (true) {
+				try {
+					Thread.sleep(checkInterval);
+				} catch (InterruptedException e) {
+					return;
+				}
+				long now = System.currentTimeMillis();
+				long history = store.getBytesSinceSnapshot();
+				boolean overgrown =
+					history > Math.max(minBytes, store.getSnapshotBytes());
+				boolean due = history > 0 &&
+					now - lastSnapshot >= snapshotInterval;
+				if (!overgrown && !due) {
+					continue;
+				}
+				try {
+					compact();
+					lastSnapshot = now;
+				} catch (IOException e) {
+					Syslog.error(LogBackend.this, "Compaction failed: " +
+							e.getMessage());
+				}
+			}
+		}
+	}
+
+	/*
+	 * Returns a PowerDNS-complaint query answer. The returned list is a
+	 * copy and may be modified by the caller.
+	 */
+	public List<DNSRecord> answerQuery(String qname, String qclass,
+			String qtype, String id, String remoteIPAddress)
+			throws IOException {
+		follow();
+
+		// We only store Internet DNS records
+		if (!qclass.equals("IN")) {
+			return new ArrayList<DNSRecord>();
+		}
+
+		SubdomainInfo subdomain = subdomains.get(qname);
+		if (subdomain == null) {
+			return new ArrayList<DNSRecord>();
+		}
+		// Live records of the right type, or expired ones if none are live
+		List<DNSRecord> recordList = new ArrayList<DNSRecord>(
+				subdomain.answerRecords(qtype,
+						System.currentTimeMillis() / 1000));
+
+		// Add SOA record if necessary
+		AccountInfo account = accounts.get(subdomain.getAccountHash());
+		if (qtype.equals("SOA") && account != null) {
+			SimpleDateFormat soaSerialFormat = new SimpleDateFormat("yymmddHHmm");
+			DNSRecord soaRecord = new DNSRecord();
+			soaRecord.ttl = account.getSOATTL();
+			soaRecord.type = "SOA";
+			soaRecord.content = "ns1.donardns.net " +
+			  account.getContactEmail() + " " +
+			  soaSerialFormat.format(account.getLastUpdateTime()) +
+			  " " +         // serial
+			  "10800 "  +   // refresh
+			  "3600 "   +   // retry
+			  "604800 " +   // expire
+			  "3600";       // default_ttl
+			recordList.add(0, soaRecord);
+		}
+
+		Syslog.debug(this, "\tReturning records: " + recordList);
+		return recordList;
+	}
+
+	/*
+	 * Check if an account described by keyHash exists, and if not generate
+	 * a new account with that hash.
+	 */
+	public void assureKey(String keyHash) throws IOException {
+		if (accounts.containsKey(keyHash)) {
+			return;
+		}
+		checkWritable();
+		synchronized (this) {
+			if (accounts.containsKey(keyHash)) {
+				return;
+			}
+			AccountInfo ai = new AccountInfo(keyHash);
+			store.append(RecordLog.ACCOUNT, keyHash, ai.toXDR());
+			accounts.put(keyHash, ai);
+			Syslog.debug(this, "assureKey: new account created: " + keyHash);
+		}
+	}
+
+	/*
+	 * Gets the current sequence number for account with key keyHash.
+	 */
+	public long getSequenceNum(String keyHash) throws IOException {
+		follow();
+		AccountInfo ai = accounts.get(keyHash);
+		if (ai == null) {
+			return -1;
+		}
+		return ai.getSequenceNum();
+	}
+
+	/*
+	 * Binds a private copy of the account to the calling thread; changes
+	 * are written back on commitUpdate or unbind. Other threads binding
+	 * the same account wait until this one unbinds.
+	 */
+	public void bindAccount(String keyHash) throws IOException {
+		Binding old = binding.get();
+		if (old != null) {
+			Syslog.warning(this, "Binding " + keyHash + " while " +
+					old.account.getKeyHash() + " still bound");
+			binding.remove();
+			old.lock.unlock();
+		}
+		ReentrantLock lock = accountLock(keyHash);
+		lock.lock();
+		AccountInfo ai = accounts.get(keyHash);
+		if (ai == null) {
+			lock.unlock();
+			Syslog.error(this, "Bind account failed for hash: " + keyHash);
+			return;
+		}
+		binding.set(new Binding(AccountInfo.fromXDR(ai.toXDR()), lock));
+		Syslog.debug(this, "Bound " + keyHash);
+	}
+
+	public void unbindAccount(String keyHash) throws IOException {
+		Binding b = binding.get();
+		binding.remove();
+		if (b == null) {
+			Syslog.error(this, "Backend unbind called but no current account");
+			return;
+		}
+		try {
+			saveBinding(b);
+		} finally {
+			b.lock.unlock();
+		}
+	}
+
+	/*
+	 * Writes back the account copy if it was changed outside an update.
+	 */
+	private void saveBinding(Binding b) throws IOException {
+		if (b.pending != null) {
+			Syslog.warning(this, "Discarding uncommitted update for " +
+					b.account.getKeyHash());
+		}
+		if (!b.dirty) {
+			return;
+		}
+		AccountInfo ai = b.account;
+		checkWritable();
+		synchronized (this) {
+			store.append(RecordLog.ACCOUNT, ai.getKeyHash(), ai.toXDR());
+			accounts.put(ai.getKeyHash(), ai);
+		}
+		if (syncOnUnbind) {
+			store.force();
+		}
+		Syslog.debug(this, "Saved: " + ai.getKeyHash());
+	}
+
+	/*
+	 * Buffers changes to the bound account until commitUpdate, which
+	 * writes them all as a single log entry.
+	 */
+	public void beginUpdate() throws IOException {
+		checkWritable();
+		bound().pending = new LinkedHashMap<String, SubdomainInfo>();
+	}
+
+	public boolean isTransactional() {
+		return true;
+	}
+
+	public void commitUpdate() throws IOException {
+		Binding b = bound();
+		if (b.pending == null) {
+			throw new IOException("commitUpdate called without beginUpdate");
+		}
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		for (Map.Entry<String, SubdomainInfo> e : b.pending.entrySet()) {
+			if (e.getValue() == null) {
+				writeEntry(out, RecordLog.REMOVE_SUBDOMAIN, e.getKey(),
+						new byte[0]);
+			} else {
+				writeEntry(out, RecordLog.SUBDOMAIN, e.getKey(),
+						e.getValue().toXDR());
+			}
+		}
+		String keyHash = b.account.getKeyHash();
+		writeEntry(out, RecordLog.ACCOUNT, keyHash, b.account.toXDR());
+		out.flush();
+
+		synchronized (this) {
+			store.append(RecordLog.TRANSACTION, keyHash, bytes.toByteArray());
+			for (Map.Entry<String, SubdomainInfo> e : b.pending.entrySet()) {
+				if (e.getValue() == null) {
+					subdomains.remove(e.getKey());
+				} else {
+					subdomains.put(e.getKey(), e.getValue());
+					scheduleExpiry(e.getValue());
+				}
+			}
+			accounts.put(keyHash, b.account);
+		}
+		if (syncOnUnbind) {
+			store.force();
+		}
+
+		// The committed objects now belong to the index
+		b.account = AccountInfo.fromXDR(b.account.toXDR());
+		b.pending = null;
+		b.dirty = false;
+	}
+
+	public void abortUpdate() throws IOException {
+		Binding b = bound();
+		b.pending = null;
+		AccountInfo ai = accounts.get(b.account.getKeyHash());
+		if (ai != null) {
+			b.account = AccountInfo.fromXDR(ai.toXDR());
+		}
+		b.dirty = false;
+	}
+
+	public void incrementSequenceNum() throws IOException {
+		boundAccount().incrSequenceNum();
+	}
+
+	public void advanceSequenceNum(long nextSequenceNum) throws IOException {
+		boundAccount().advanceSequenceNum(nextSequenceNum);
+	}
+
+	/*
+	 * Adds a DNS record to the bound account. If the subdomain string is
+	 * blank, adds a record for the suffix itself. If a record exists with
+	 * the same subdomain, type and content, replaces its ttl/attributes.
+	 */
+	public void addRecord(String subdomain, String type, String content,
+			int ttl, List<RecordAttribute> attributes) throws IOException {
+		AccountInfo ai = boundAccount();
+		checkWritable();
+		String fqdn = fqdnFor(ai, subdomain);
+		synchronized (this) {
+			SubdomainInfo sd = editSubdomain(fqdn);
+			if (sd == null) {
+				Syslog.debug(this, "No subdomain record found for [" + fqdn +
+						"] creating new subdomain record.");
+				sd = new SubdomainInfo(fqdn, ai.getKeyHash());
+				ai.addSubdomain(subdomain);
+			}
+			sd.addRecord(type, content, ttl, attributes);
+			storeSubdomain(sd);
+		}
+	}
+
+	/*
+	 * Deletes DNS records held by the bound account for a given subdomain,
+	 * with a given type and content. Blank type or content match anything.
+	 */
+	public void delRecords(String subdomain, String type, String content)
+		throws IOException {
+		AccountInfo ai = boundAccount();
+		checkWritable();
+		String fqdn = fqdnFor(ai, subdomain);
+		synchronized (this) {
+			SubdomainInfo sd = editSubdomain(fqdn);
+			if (sd == null) {
+				return;
+			}
+			sd.delRecord(type, content);
+			sd.incrementSequenceNumber();
+			storeSubdomain(sd);
+		}
+	}
+
+	/*
+	 * Updates the suffix of an account, moving every subdomain record
+	 * over to the new suffix.
+	 */
+	public void updateSuffix(String newSuffix) throws IOException {
+		AccountInfo ai = boundAccount();
+		checkWritable();
+		synchronized (this) {
+			for (String subdomain : ai.getSubdomains()) {
+				String fqdn = fqdnFor(ai, subdomain);
+				SubdomainInfo sd = editSubdomain(fqdn);
+				if (sd == null) {
+					Syslog.error(this, "Missing subdomain record " + fqdn);
+					continue;
+				}
+				sd.replaceSuffix(newSuffix);
+				removeSubdomain(fqdn);
+				storeSubdomain(sd);
+				Syslog.debug(this, "Moved subdomain " + fqdn + " to " +
+						sd.getFqdn());
+			}
+		}
+		ai.setDomainSuffix(newSuffix, 1000, "admin@namecast.org");
+	}
+
+	public String getSuffix() {
+		Binding b = binding.get();
+		return b == null ? null : b.account.getDomainSuffix();
+	}
+
+	public synchronized void close() throws IOException {
+		store.close();
+		if (writerLock != null) {
+			writerLock.release();
+			writerLock.channel().close();
+		}
+	}
+
+	private Binding bound() throws IOException {
+		Binding b = binding.get();
+		if (b == null) {
+			throw new IOException("Tried to use backend with unbound account");
+		}
+		return b;
+	}
+
+	/*
+	 * The bound account, about to be modified.
+	 */
+	private AccountInfo boundAccount() throws IOException {
+		Binding b = bound();
+		b.dirty = true;
+		return b.account;
+	}
+
+	private ReentrantLock accountLock(String keyHash) {
+		return accountLocks[(keyHash.hashCode() & 0x7fffffff) %
+				accountLocks.length];
+	}
+
+	private void checkWritable() throws IOException {
+		if (readOnly) {
+			throw new IOException("Tried to modify read-only log backend");
+		}
+	}
+
+	private static String fqdnFor(AccountInfo ai, String subdomain) {
+		if (subdomain.equals("")) {
+			return ai.getDomainSuffix();
+		}
+		return subdomain + "." + ai.getDomainSuffix();
+	}
+
+	/*
+	 * Indexed SubdomainInfo objects are shared with readers and never
+	 * modified in place; writers work on a copy and swap it in.
+	 */
+	private static SubdomainInfo copyOf(SubdomainInfo sd) throws IOException {
+		if (sd == null) return null;
+		return SubdomainInfo.fromXDR(sd.toXDR());
+	}
+
+	/*
+	 * A private copy of the subdomain to modify, including changes still
+	 * pending in the current update.
+	 */
+	private SubdomainInfo editSubdomain(String fqdn) throws IOException {
+		Map<String, SubdomainInfo> pending = binding.get().pending;
+		if (pending != null && pending.containsKey(fqdn)) {
+			return pending.get(fqdn);
+		}
+		return copyOf(subdomains.get(fqdn));
+	}
+
+	private void storeSubdomain(SubdomainInfo sd) throws IOException {
+		Map<String, SubdomainInfo> pending = binding.get().pending;
+		if (pending != null) {
+			pending.put(sd.getFqdn(), sd);
+			return;
+		}
+		store.append(RecordLog.SUBDOMAIN, sd.getFqdn(), sd.toXDR());
+		subdomains.put(sd.getFqdn(), sd);
+		scheduleExpiry(sd);
+	}
+
+	private void removeSubdomain(String fqdn) throws IOException {
+		Map<String, SubdomainInfo> pending = binding.get().pending;
+		if (pending != null) {
+			pending.put(fqdn, null);
+			return;
+		}
+		store.append(RecordLog.REMOVE_SUBDOMAIN, fqdn, new byte[0]);
+		subdomains.remove(fqdn);
+	}
+
+	/*
+	 * One entry inside a TRANSACTION payload.
+	 */
+	private static void writeEntry(DataOutputStream out, byte kind,
+			String key, byte[] payload) throws IOException {
+		out.writeByte(kind);
+		out.writeUTF(key);
+		out.writeInt(payload.length);
+		out.write(payload);
+	}
+
+	public static void main(String[] args) throws IOException {
+		// Informal test: churn one subdomain, compact, then reopen
+		// read-only and check the snapshot replays to the same state.
+		Properties config = donar.update.UpdateInfo.getDefaultConfiguration();
+		config.setProperty("LOG_STORE_DIR",
+				args.length > 0 ? args[0] : "/tmp/donar-log-test");
+		config.setProperty("LOG_STORE_SYNC", "false");
+		String keyHash = "6768033e216468247bd031a0a2d9876d79818f8f";
+		LogBackend backend = LogBackend.open(config, false);
+		backend.assureKey(keyHash);
+		String suffix = null;
+		for (int i = 0; i < 1000; i++) {
+			backend.bindAccount(keyHash);
+			backend.beginUpdate();
+			backend.addRecord("www", "A", "10.0.0." + (i % 4), 60,
+					new LinkedList<RecordAttribute>());
+			backend.delRecords("www", "A", "10.0.0." + ((i + 2) % 4));
+			backend.incrementSequenceNum();
+			backend.commitUpdate();
+			suffix = backend.getSuffix();
+			backend.unbindAccount(keyHash);
+		}
+		System.out.println("Log bytes before compaction: " +
+				backend.store.getBytesSinceSnapshot());
+		backend.compact();
+		System.out.println("Snapshot bytes: " +
+				backend.store.getSnapshotBytes());
+
+		LogBackend follower = new LogBackend(
+				new File(config.getProperty("LOG_STORE_DIR")), true, false);
+		for (DNSRecord r : follower.answerQuery("www." + suffix, "IN", "A",
+				"-1", "127.0.0.1")) {
+			System.out.println(r.type + " " + r.content);
+		}
+		System.out.println("Sequence number: " +
+				follower.getSequenceNum(keyHash));
+
+		// Concurrent updates to one account, each creating a subdomain,
+		// must all end up in the account's subdomain list
+		final LogBackend writer = backend;
+		final String account = keyHash;
+		Thread[] threads = new Thread[8];
+		for (int t = 0; t < threads.length; t++) {
+			final int thread = t;
+			threads[t] = new Thread() {
+				public void run() {
+					try {
+						for (int i = 0; i < 50; i++) {
+							writer.bindAccount(account);
+							writer.beginUpdate();
+							writer.addRecord("t" + thread + "-" + i, "A",
+									"10.0.0.1", 60,
+									new LinkedList<RecordAttribute>());
+							writer.commitUpdate();
+							writer.unbindAccount(account);
+						}
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread t : threads) {
+			try {
+				t.join();
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+		int created = 0;
+		for (String subdomain :
+				backend.accounts.get(keyHash).getSubdomains()) {
+			if (subdomain.startsWith("t")) {
+				created++;
+			}
+		}
+		System.out.println("Subdomains listed: " + created + " of " +
+				threads.length * 50);
+		backend.close();
+	}
+}
@@ -20,18 +20,21 @@ package donar.update.util;
  */
 
 import java.io.IOException;
-import java.net.InetAddress;
-import java.net.InetSocketAddress;
-import java.net.Socket;
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.sql.Types;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
 
 import com.protomatter.syslog.Syslog;
 
@@ -39,26 +42,191 @@ import donar.dns.attrs.IntegerRecordAttribute;
 import donar.dns.attrs.RecordAttribute;
 import donar.update.UpdateInfo;
 
+/*
+ * Backend storing records in the PowerDNS MySQL schema.
+ *
+ * Record upserts rely on a unique key over (domain_id, name, content) in
+ * the records table, and expiry on the PowerDNS disabled column. Neither
+ * is in older PowerDNS schemas; mysql_upgrade.sql at the top of the
+ * source tree adds them. Without the key, re-adding an existing record
+ * inserts a duplicate row instead of replacing its ttl and expiry, so
+ * the backend warns at startup if it cannot find one.
+ *
+ * Expired records are not deleted but demoted through the PowerDNS
+ * disabled column by a background sweeper, driven by an ExpiryIndex of
+ * names with records due to expire.
+ */
 public class MySQLBackend implements DONARBackend {
 
 	// Constants
-	private static final String MYSQL_READ_SERVER_ADDR = "localhost";
-	private static final String MYSQL_WRITE_SERVER_ADDR = 
-		"MYSQL_READ_SERVER";
-	private static final String MYSQL_DB = "MYSQL_DB";
-	private static final String MYSQL_USER = "MYSQL_USER";
-	private static final String	MYSQL_PASS = "MYSQL_PASS";
+	private static final String JDBC_DRIVER = "com.mysql.jdbc.Driver";
+	// Server-side prepares so pooled statements reuse their plan, and a
+	// connect timeout so an unreachable server fails instead of hanging
+	private static final String JDBC_OPTIONS =
+		"?useServerPrepStmts=true&connectTimeout=10000";
+	private static final int MAX_OPEN_STATEMENTS = 8; // Per connection
+
+	// Expired records are demoted to disabled by the sweeper
+	private static final String QUERY_ANY =
+		"SELECT type, content, ttl, disabled FROM records " +
+		"WHERE name = ? ORDER BY disabled";
+	private static final String QUERY_TYPE =
+		"SELECT type, content, ttl, disabled FROM records " +
+		"WHERE name = ? AND type = ? ORDER BY disabled";
+	private static final String DISABLE_EXPIRED =
+		"UPDATE records SET disabled = 1 " +
+		"WHERE disabled = 0 AND expires <= NOW()";
+	private static final String DISABLE_EXPIRED_NAME =
+		DISABLE_EXPIRED + " AND name = ?";
+	private static final String NEXT_EXPIRY =
+		"SELECT UNIX_TIMESTAMP(MIN(expires)) FROM records " +
+		"WHERE disabled = 0 AND name = ?";
+	private static final String NEXT_EXPIRIES =
+		"SELECT name, UNIX_TIMESTAMP(MIN(expires)) FROM records " +
+		"WHERE disabled = 0 AND expires IS NOT NULL GROUP BY name";
+
+	private static final String BIND_ACCOUNT =
+		"SELECT k.name_suffix, d.id, k.next_sequence_num FROM key_info k " +
+		"JOIN domains d ON d.name = k.name_suffix WHERE k.key_hash = ?";
+	private static final String GET_SEQUENCE_NUM =
+		"SELECT next_sequence_num FROM key_info WHERE key_hash = ?";
+	private static final String INCREMENT_SEQUENCE_NUM =
+		"UPDATE key_info SET next_sequence_num = next_sequence_num + 1 " +
+		"WHERE key_hash = ?";
+	private static final String ADVANCE_SEQUENCE_NUM =
+		"UPDATE key_info SET next_sequence_num = " +
+		"GREATEST(next_sequence_num, ?) WHERE key_hash = ?";
+	private static final String UPSERT_RECORD =
+		"INSERT INTO records (domain_id, name, content, type, ttl, prio, " +
+		"expires, disabled) VALUES (?, ?, ?, ?, ?, NULL, FROM_UNIXTIME(?), 0) " +
+		"ON DUPLICATE KEY UPDATE ttl = VALUES(ttl), " +
+		"expires = VALUES(expires), disabled = 0";
+	private static final String DELETE_NAME =
+		"DELETE FROM records WHERE name = ?";
+	private static final String DELETE_NAME_TYPE =
+		"DELETE FROM records WHERE name = ? AND type = ?";
+	private static final String DELETE_NAME_TYPE_CONTENT =
+		"DELETE FROM records WHERE name = ? AND type = ? AND content = ?";
 	
-	private Connection localdbConnection;
+	// Shared by every backend in the process, i.e. by all listeners
+	private static AccountCache accountCache;
+	private static ExpiryIndex expiries;
+
 	private ConnectionProvider cp;
-	private String acctKeyHash;
-	private String acctSequenceNum;
-	private String acctNameSuffix;
-	private int domainID; // MySQL domain record ID
+	private ThreadLocal<Binding> binding = new ThreadLocal<Binding>();
+
+	/*
+	 * What an update needs to know about an account. Entries are
+	 * replaced, never modified.
+	 */
+	private static class AccountMetadata {
+		final String nameSuffix;
+		final int domainID;
+		final long sequenceNum;
+		final long loadedAt;
+
+		AccountMetadata(String nameSuffix, int domainID, long sequenceNum) {
+			this(nameSuffix, domainID, sequenceNum, System.currentTimeMillis());
+		}
+
+		AccountMetadata(String nameSuffix, int domainID, long sequenceNum,
+				long loadedAt) {
+			this.nameSuffix = nameSuffix;
+			this.domainID = domainID;
+			this.sequenceNum = sequenceNum;
+			this.loadedAt = loadedAt;
+		}
+	}
+
+	/*
+	 * Bounded LRU map of keyHash to AccountMetadata. This process's own
+	 * updates are written through on commit. Entries also expire after
+	 * maxAge, so changes made by other update servers sharing the
+	 * database are picked up within that time.
+	 */
+	private static class AccountCache {
+		private LinkedHashMap<String, AccountMetadata> map;
+		private long maxAge;
+
+		AccountCache(final int capacity, long maxAge) {
+			this.maxAge = maxAge;
+			this.map = new LinkedHashMap<String, AccountMetadata>(16, 0.75f,
+					true) {
+				private static final long serialVersionUID = 1L;
+
+				protected boolean removeEldestEntry(
+						Map.Entry<String, AccountMetadata> eldest) {
+					return size() > capacity;
+				}
+			};
+		}
+
+		synchronized AccountMetadata get(String keyHash) {
+			AccountMetadata m = map.get(keyHash);
+			if (m != null &&
+					System.currentTimeMillis() - m.loadedAt > maxAge) {
+				map.remove(keyHash);
+				return null;
+			}
+			return m;
+		}
+
+		synchronized void put(String keyHash, AccountMetadata m) {
+			map.put(keyHash, m);
+		}
+
+		/*
+		 * Applies an update committed to the database, which began
+		 * committing at commitStart, to the cached entry. Concurrent
+		 * commits for one account each add their own increments. An entry
+		 * loaded once the commit had begun may already include it, so it
+		 * is dropped and reloaded on next use rather than counted twice.
+		 * newSuffix is null unless the update renamed the account.
+		 * Returns the account's sequence number if the entry was kept,
+		 * otherwise -1.
+		 */
+		synchronized long commit(String keyHash, String newSuffix,
+				int increments, long advancedTo, long commitStart) {
+			AccountMetadata m = map.get(keyHash);
+			if (m == null) {
+				return -1;
+			}
+			if (m.loadedAt >= commitStart) {
+				map.remove(keyHash);
+				return -1;
+			}
+			long sequenceNum = Math.max(m.sequenceNum + increments, advancedTo);
+			map.put(keyHash, new AccountMetadata(
+					newSuffix != null ? newSuffix : m.nameSuffix, m.domainID,
+					sequenceNum, m.loadedAt));
+			return sequenceNum;
+		}
+	}
+
+	/*
+	 * Per-thread state while an account is bound. Between beginUpdate and
+	 * commitUpdate the thread holds one write connection with autocommit
+	 * off; consecutive statements of the same kind are collected into a
+	 * JDBC batch, which is sent when a different statement is needed or
+	 * the update commits.
+	 */
+	private static class Binding {
+		String keyHash;
+		String nameSuffix;
+		int domainID; // MySQL domain record ID
+		long sequenceNum;
+		int increments; // Not yet committed
+		long advancedTo; // Highest advanceSequenceNum not yet committed
+		boolean suffixChanged; // By updateSuffix, not yet committed
+		Connection conn;
+		PreparedStatement batch;
+		String batchSql;
+	}
 	
 	public static void main(String[] args) {
 		try {
-			MySQLBackend test = new MySQLBackend();
+			MySQLBackend test = new MySQLBackend(
+					UpdateInfo.getDefaultConfiguration(), true);
 			test.answerQuery("foo.com", "IN", "A", "-1", "63.20.254.10");
 		}
 		catch (Exception e) {
@@ -67,51 +235,189 @@ public class MySQLBackend implements DONARBackend {
 		
 	}
 	
-	public MySQLBackend() throws IOException {
-		
+	/*
+	 * Writes go to MYSQL_WRITE_SERVER. Reads are spread over the servers
+	 * in MYSQL_READ_SERVERS, failing over to the write server when none
+	 * of them are reachable. Unless readOnly (e.g. for the resolver), the
+	 * first backend in the process also starts expiring records.
+	 */
+	public MySQLBackend(Properties config, boolean readOnly)
+		throws IOException {
+		String db = config.getProperty("MYSQL_DB");
+		String writeServer = config.getProperty("MYSQL_WRITE_SERVER");
+		List<String> readUrls = new LinkedList<String>();
+		for (String server : config.getProperty("MYSQL_READ_SERVERS", "")
+				.split(",")) {
+			if (!server.trim().equals("")) {
+				readUrls.add("jdbc:mysql://" + server.trim() + "/" + db +
+						JDBC_OPTIONS);
+			}
+		}
+		synchronized (MySQLBackend.class) {
+			if (accountCache == null) {
+				accountCache = new AccountCache(Integer.parseInt(
+						config.getProperty("MYSQL_ACCOUNT_CACHE_SIZE")),
+						Long.parseLong(config.getProperty(
+								"MYSQL_ACCOUNT_CACHE_TTL")) * 1000);
+			}
+		}
+		cp = new ConnectionProvider(JDBC_DRIVER,
+				"jdbc:mysql://" + writeServer + "/" + db + JDBC_OPTIONS,
+				readUrls, config.getProperty("MYSQL_USER"),
+				config.getProperty("MYSQL_PASS"), MAX_OPEN_STATEMENTS,
+				Long.parseLong(config.getProperty(
+						"MYSQL_HEALTH_CHECK_INTERVAL")) * 1000);
+
+		// Continue on if the write server is down, at least we can still
+		// read. Though write calls will fail until it comes back.
+		Connection test = cp.readConnection();
+		if (test == null) {
+			Syslog.fatal(this, "Could not connect to any MySQL server");
+			throw new IOException("Error initializing MySQL connection");
+		}
+		ConnectionProvider.close(test);
+		Syslog.info(this, "Created connection pools for MySQL on " +
+				writeServer + " (write) and " + readUrls.size() +
+				" read replicas");
 		
+		synchronized (MySQLBackend.class) {
+			if (!readOnly && expiries == null) {
+				checkSchema();
+				expiries = new ExpiryIndex("MySQLBackend",
+						new ExpirySweeper(cp));
+				catchUpExpiries();
+			}
+		}
+	}
+	
+	/*
+	 * Warns if the records table lacks what upserts and expiry need; see
+	 * mysql_upgrade.sql.
+	 */
+	private void checkSchema() {
+		Connection conn = cp.connection();
+		if (conn == null) {
+			Syslog.warning(this, "Write server down, skipping schema check");
+			return;
+		}
+		Statement stmt = null;
+		ResultSet rs = null;
 		try {
-		  Properties props = new Properties();
-		  cp = new ConnectionProvider("com.mysql.jdbc.Driver",
-		      "jdbc:mysql://" + MYSQL_WRITE_SERVER_ADDR + "/" + MYSQL_DB,
-		      MYSQL_USER, MYSQL_PASS);
-	  
-		  Syslog.info(this, "Created connection pool");
-			// The below function (getConnection) just hangs if mysql
-			// is down on the write server. So we need to induce an exception
-			// here if the server is down.
-			Socket test = new Socket();
-	        test.connect(new InetSocketAddress(
-	        		InetAddress.getByName(MYSQL_WRITE_SERVER_ADDR), 3306), 
-	        		10 * 1000);
-	        test.close();
-
-			Syslog.info(this, "Established connection to MYSQL on " +
-				MYSQL_WRITE_SERVER_ADDR);
+			stmt = conn.createStatement();
+			
+			// Columns of each unique key
+			Map<String, Set<String>> uniqueKeys =
+				new HashMap<String, Set<String>>();
+			rs = stmt.executeQuery("SHOW INDEX FROM records");
+			while (rs.next()) {
+				if (rs.getInt("Non_unique") != 0) continue;
+				String key = rs.getString("Key_name");
+				if (!uniqueKeys.containsKey(key)) {
+					uniqueKeys.put(key, new HashSet<String>());
+				}
+				uniqueKeys.get(key).add(rs.getString("Column_name"));
+			}
+			rs.close();
+			// Any unique key on name and content, within a domain and
+			// type, makes re-adding a record update it in place
+			Set<String> allowed = new HashSet<String>(Arrays.asList(
+					"domain_id", "name", "type", "content"));
+			boolean upsertKey = false;
+			for (Set<String> columns : uniqueKeys.values()) {
+				if (columns.contains("name") && columns.contains("content") &&
+						allowed.containsAll(columns)) {
+					upsertKey = true;
+				}
+			}
+			if (!upsertKey) {
+				Syslog.warning(this, "records has no unique key on " +
+						"(domain_id, name, content); re-added records will " +
+						"be duplicated. Apply mysql_upgrade.sql.");
+			}
 			
+			rs = stmt.executeQuery("SHOW COLUMNS FROM records LIKE 'disabled'");
+			if (!rs.next()) {
+				Syslog.warning(this, "records has no disabled column; " +
+						"queries and expiry will fail. Apply mysql_upgrade.sql.");
+			}
 		}
-		// Continue on if write server connection is broken, at least
-		// we can still read. Though write calls will all fail.
-		// TODO: Make prettier.
-		catch (Exception e) {
-			System.out.println(e);
-			Syslog.log(this, e, Syslog.ERROR);
+		catch (SQLException e) {
+			Syslog.log(this, e, Syslog.WARNING);
 		}
-		
+		finally {
+			ConnectionProvider.close(rs, stmt);
+			ConnectionProvider.close(conn);
+		}
+	}
+	
+	/*
+	 * Demotes records that expired while no update server was running
+	 * and schedules every name that has records still to expire.
+	 */
+	private void catchUpExpiries() {
+		Connection conn = cp.connection();
+		if (conn == null) {
+			Syslog.warning(this, "Write server down, skipping expiry catch-up");
+			return;
+		}
+		Statement stmt = null;
+		ResultSet rs = null;
 		try {
-			localdbConnection = DriverManager.getConnection("jdbc:mysql://" + 
-					MYSQL_READ_SERVER_ADDR + "/" + MYSQL_DB + "?user=" + 
-					MYSQL_USER + "&password=" + MYSQL_PASS);
-			
-			Syslog.info(this, "Established connections to MYSQL on " +
-				MYSQL_READ_SERVER_ADDR + " and " +
-				MYSQL_WRITE_SERVER_ADDR);
+			stmt = conn.createStatement();
+			int disabled = stmt.executeUpdate(DISABLE_EXPIRED);
+			rs = stmt.executeQuery(NEXT_EXPIRIES);
+			while (rs.next()) {
+				expiries.schedule(rs.getString(1), rs.getLong(2) * 1000);
+			}
+			Syslog.info(this, "Disabled " + disabled + " expired records, " +
+					expiries.size() + " names scheduled for expiry");
 		}
-		catch (Exception e) {
-			System.out.println(e);
-			Syslog.log(this, e, Syslog.FATAL);
-			throw new IOException("Error initializing MySQL connection:" +
-					e.getMessage());
+		catch (SQLException e) {
+			Syslog.log(this, e, Syslog.WARNING);
+		}
+		finally {
+			ConnectionProvider.close(rs, stmt);
+			ConnectionProvider.close(conn);
+		}
+	}
+	
+	/*
+	 * Disables a name's expired records when the expiry index says they
+	 * are due, so the query path only has to order by the disabled flag.
+	 */
+	private static class ExpirySweeper implements ExpiryIndex.Sweeper {
+		private ConnectionProvider cp;
+		
+		ExpirySweeper(ConnectionProvider cp) {
+			this.cp = cp;
+		}
+		
+		public long sweep(String name) throws IOException {
+			Connection conn = cp.connection();
+			if (conn == null) {
+				throw new IOException("Could not connect to MySQL write server");
+			}
+			PreparedStatement ps = null;
+			ResultSet rs = null;
+			try {
+				ps = conn.prepareStatement(DISABLE_EXPIRED_NAME);
+				ps.setString(1, name);
+				ps.executeUpdate();
+				ps.close();
+				
+				ps = conn.prepareStatement(NEXT_EXPIRY);
+				ps.setString(1, name);
+				rs = ps.executeQuery();
+				return rs.next() ? rs.getLong(1) * 1000 : 0;
+			}
+			catch (SQLException e) {
+				throw new IOException("Error sweeping expired records: " +
+						e.getMessage());
+			}
+			finally {
+				ConnectionProvider.close(rs, ps);
+				ConnectionProvider.close(conn);
+			}
 		}
 	}
 	
@@ -123,89 +429,38 @@ public class MySQLBackend implements DONARBackend {
 	public void addRecord(String subdomain, String type, String content, int ttl,
 			List<RecordAttribute> attributes)
 			throws IOException {
-		String fqdn;
-		if (subdomain.equals("")) {
-			fqdn = acctNameSuffix;
-		}
-		else {
-			fqdn = subdomain + "." + acctNameSuffix;
-		}
+		Binding b = bound();
+		String fqdn = fqdnFor(b, subdomain);
+		boolean implicit = b.conn == null;
+		if (implicit) beginUpdate();
 		
 		try {
-			 PreparedStatement ps = null;
-			 Connection dbConnection = cp.connection();
-			 Statement stmt = dbConnection.createStatement();
-			 String query = "SELECT * FROM records" + " WHERE domain_id=" + this.domainID + " AND" +
-					 " name='" + fqdn + "' AND content='" + content + "'";
-			 Syslog.debug(this, "Executing SQL statement: " + query);
-			 ResultSet rs = stmt.executeQuery(query);
-			 if (rs.next()) {
-				 // There is already a record
-				 int id = rs.getInt(1);
-				 ps = dbConnection.prepareStatement(
-		                 "UPDATE records set ttl=?, expires=FROM_UNIXTIME(?) where id=?");
-				 ps.setInt(1, ttl);
-				 ps.setInt(3, id);
-				 boolean setExpires = false;
-				 if (attributes == null) ps.setNull(2, java.sql.Types.INTEGER);
-				 else {
-					 for (RecordAttribute att: attributes) {
-						 if (att.typeID == UpdateInfo.EXPIRATION_TIME) {
-							 int stamp = ((IntegerRecordAttribute) att).data;
-							 ps.setInt(2, stamp);
-							 setExpires = true;
-						 }
-					 }
-				 }
-				 if (!setExpires) ps.setNull(2, java.sql.Types.INTEGER);
-				 Syslog.debug(this, "Executing SQL statement: " +
-		                 ps.toString());
-				 ps.executeUpdate();
-				 ps.close();
-				 rs.close();
-				 stmt.close();
-				 dbConnection.close();
-				 return;
-			 }
-			 rs.close();
-			 stmt.close();
-			 ps = dbConnection.prepareStatement(
-	                 "INSERT INTO records (domain_id, name, content, " +
-	                 "type, ttl, prio, expires) VALUES (?,?,?,?,?,?," +
-	                 "FROM_UNIXTIME(?))");
-			 ps.setInt(1, this.domainID);
-			 ps.setString(2, fqdn);
-			 ps.setString(3, content);
-			 ps.setString(4, type);
-			 ps.setInt(5, ttl); 
-			 ps.setNull(6, java.sql.Types.INTEGER); // TODO Fix
-			 //Integer prio = getPrio(re);
-			 //if (prio == null)
-			 //       ps.setNull(6, java.sql.Types.INTEGER);
-			 //else
-			 //        ps.setInt(6, getPrio(re));
-			 
-			 // Set expire time if specified
-			 boolean setExpires = false;
-			 if (attributes == null) ps.setNull(7, java.sql.Types.INTEGER);
-			 else {
-				 for (RecordAttribute att: attributes) {
-					 if (att.typeID == UpdateInfo.EXPIRATION_TIME) {
-						 int stamp = ((IntegerRecordAttribute) att).data;
-						 ps.setInt(7, stamp);
-						 setExpires = true;
-					 }
-				 }
-			 }
-			 if (!setExpires) ps.setNull(7, java.sql.Types.INTEGER);
-			 
-			 Syslog.debug(this, "Executing SQL statement: " +
-			                 ps.toString());
-			 ps.executeUpdate();
-			 ps.close();
-			 dbConnection.close();
+			PreparedStatement ps = batchStatement(b, UPSERT_RECORD);
+			ps.setInt(1, b.domainID);
+			ps.setString(2, fqdn);
+			ps.setString(3, content);
+			ps.setString(4, type);
+			ps.setInt(5, ttl);
+			
+			// Set expire time if specified
+			boolean setExpires = false;
+			if (attributes != null) {
+				for (RecordAttribute att: attributes) {
+					if (att.typeID == UpdateInfo.EXPIRATION_TIME) {
+						int stamp = ((IntegerRecordAttribute) att).data;
+						ps.setInt(6, stamp);
+						if (expiries != null)
+							expiries.schedule(fqdn, (stamp & 0xFFFFFFFFL) * 1000);
+						setExpires = true;
+					}
+				}
+			}
+			if (!setExpires) ps.setNull(6, Types.INTEGER);
+			ps.addBatch();
+			if (implicit) commitUpdate();
 		}
 		catch (SQLException e) {
+			if (implicit) abortUpdate();
 			Syslog.log(this, e, Syslog.WARNING);
 			throw new IOException("Error adding record to MySQL database: " +
 					e.getMessage());
@@ -216,61 +471,55 @@ public class MySQLBackend implements DONARBackend {
 	public List<DNSRecord> answerQuery(String qname, String qclass, String qtype,
 			String id, String remoteIPAddress) throws IOException {
 		List<DNSRecord> out = new LinkedList<DNSRecord>();
+		Connection conn = cp.readConnection();
+		if (conn == null) {
+			throw new IOException("Error talking to MySQL database");
+		}
+		PreparedStatement ps = null;
+		ResultSet rs = null;
 		try {
-			Statement st = localdbConnection.createStatement();
-		    String query = "";
-		    ResultSet rs;
+			// Live and expired records come back in one pass, live first.
+			// Expired (disabled) records are only served if nothing is
+			// live.
 			if (qtype.equals("ANY")) {
-				query = "SELECT * FROM records WHERE name='" + qname +
-						"' AND ((expires is NULL) OR " +
-						"(expires > (CONVERT_TZ(NOW(), @@global.time_zone, 'GMT'))))";
-				rs = st.executeQuery(query);
-				
-				// If there are no results fail over to expired records
-				if (!rs.next()){ 
-					query = "SELECT * FROM records WHERE name='" + qname + "'"; 
-					rs = st.executeQuery(query);
-				}
-				else {
-					rs.previous();
-				}
+				ps = conn.prepareStatement(QUERY_ANY);
 			}
 			else {
-				query = "SELECT * FROM records WHERE name='" + qname + 
-					"' AND type='" + qtype + 
-					"' AND ((expires is NULL) OR " +
-					"(expires > (CONVERT_TZ(NOW(), @@global.time_zone, 'GMT'))))";
-				rs = st.executeQuery(query);
-				
-				// If there are no results fail over to expired records
-				if (!rs.next()) {
-					query = "SELECT * FROM records WHERE name='" + qname + 
-					"' AND type='" + qtype + "'";
-					rs = st.executeQuery(query);					
-				}
-				else {
-					rs.previous();
-				}
+				ps = conn.prepareStatement(QUERY_TYPE);
+				ps.setString(2, qtype);
 			}
-			
+			ps.setString(1, qname);
+			rs = ps.executeQuery();
+
+			boolean haveLive = false;
 			while (rs.next()) {
-				DNSRecord toAdd = new DNSRecord(rs.getString("type"), 
-						rs.getString("content"), rs.getInt("ttl"), 
-						new LinkedList<RecordAttribute>());
-				out.add(toAdd);
+				boolean live = !rs.getBoolean(4);
+				if (live) {
+					haveLive = true;
+				}
+				else if (haveLive) {
+					break;
+				}
+				out.add(new DNSRecord(rs.getString(1), rs.getString(2),
+						rs.getInt(3), new LinkedList<RecordAttribute>()));
 			}
-			
-			rs.close();
-			st.close();
 		}
 		catch (SQLException e) {
 			throw new IOException("Error talking to MySQL database");
 		}
+		finally {
+			// Returns the statement to the connection's pool
+			ConnectionProvider.close(rs, ps);
+			ConnectionProvider.close(conn);
+		}
 		
 		return out;
 	}
 
 	public void assureKey(String keyHash) throws IOException {
+		if (accountCache.get(keyHash) != null) {
+			return;
+		}
         // See if this key is in our database, if not create it.
 		try {
 		  Connection dbConnection = cp.connection();
@@ -297,199 +546,377 @@ public class MySQLBackend implements DONARBackend {
 	}
 
 	public void bindAccount(String keyHash) throws IOException {
-		// First try to lookup domain name and sequence number
-		// in namecast table. Then lookup domain ID in domains table
-		// and store for future queries.
+		// Keep the account's suffix, domain ID and sequence number for
+		// the rest of the update.
+		AccountMetadata m = accountMetadata(keyHash);
+		if (m == null) {
+			throw new IOException("Error binding account: Could not find " +
+					"info for key " + keyHash + " in database");
+		}
+		Binding b = new Binding();
+		b.keyHash = keyHash;
+		b.nameSuffix = m.nameSuffix;
+		b.domainID = m.domainID;
+		b.sequenceNum = m.sequenceNum;
+		binding.set(b);
+	}
+
+	/*
+	 * Cached metadata for keyHash, loading it on a miss. Returns null if
+	 * the account or its domain does not exist.
+	 */
+	private AccountMetadata accountMetadata(String keyHash)
+			throws IOException {
+		AccountMetadata m = accountCache.get(keyHash);
+		if (m != null) {
+			return m;
+		}
+		Connection dbConnection = writeConnection();
+		PreparedStatement ps = null;
+		ResultSet rs = null;
 		try {
-		  Connection dbConnection = cp.connection();
-		  Statement stmt = dbConnection.createStatement();
-	      ResultSet rs = stmt.executeQuery("SELECT * FROM " +
-	                      "key_info WHERE key_hash = '" + keyHash + "'");
-	      if (rs.next()) {
-	              this.acctNameSuffix = rs.getString("name_suffix");
-	              this.acctKeyHash = rs.getString("key_hash");
-	              this.acctSequenceNum = rs.getString("next_sequence_num");
-	              
-	              ResultSet rs2 = stmt.executeQuery("SELECT * FROM " +
-	                      "domains WHERE name = '" + this.acctNameSuffix + "'");
-	              if (rs2.next()) {
-	            	  this.domainID = rs2.getInt("id");
-	            	  rs2.close();
-	              }
-	              else { // No domain
-	            	  rs2.close();
-	            	  throw new SQLException("Could not find info for domain " +
-		            		  this.acctNameSuffix + " in database");
-	              }
-	      } else { // No DONAR record
-	              throw new SQLException("Could not find info for key " +
-	            		  keyHash + " in database");
-	      }
-	      
-	      rs.close();
-	      stmt.close();
-	      dbConnection.close();
+			ps = dbConnection.prepareStatement(BIND_ACCOUNT);
+			ps.setString(1, keyHash);
+			rs = ps.executeQuery();
+			if (!rs.next()) {
+				return null;
+			}
+			m = new AccountMetadata(rs.getString(1), rs.getInt(2),
+					rs.getLong(3));
+			accountCache.put(keyHash, m);
+			return m;
 		}
 		catch(SQLException e) {
-			throw new IOException("Error binding account: " + e.getMessage());
+			throw new IOException("Error loading account: " + e.getMessage());
+		}
+		finally {
+			ConnectionProvider.close(rs, ps);
+			ConnectionProvider.close(dbConnection);
 		}
-
-
 	}
 
 	public void delRecords(String subdomain, String type, String content)
 			throws IOException {
-		// Get full domain name
-		String fqdn;
-		if (subdomain.equals("")) {
-			fqdn = acctNameSuffix;
-		}
-		else {
-			fqdn = subdomain + "." + acctNameSuffix;
-		}
+		Binding b = bound();
+		String fqdn = fqdnFor(b, subdomain);
+		boolean implicit = b.conn == null;
+		if (implicit) beginUpdate();
+		
 		// Delete subdomains from records table
-		PreparedStatement ps;
 		try {
-		  Connection dbConnection = cp.connection();
+			PreparedStatement ps;
 		    if (type.equals("")) {
 		            // Delete all records for subdomain
-		            ps = dbConnection.prepareStatement(
-		            		"DELETE FROM records WHERE name = ?");
+		            ps = batchStatement(b, DELETE_NAME);
 		            ps.setString(1, fqdn);
 		    } else if (content.equals("")) {
 		            // Delete all records of given type for subdomain
-		            ps = dbConnection.prepareStatement(
-		            		"DELETE FROM records WHERE " +
-		                    "name = ? AND type = ?");
+		            ps = batchStatement(b, DELETE_NAME_TYPE);
 		            ps.setString(1, fqdn);
 		            ps.setString(2, type);
 		    } else {
 		            // Delete all records of given type with given
 		            // data for subdomain
-		            ps = dbConnection.prepareStatement(
-		            		"DELETE FROM records WHERE " +
-		                    "name = ? AND type = ? AND content = ?");
+		            ps = batchStatement(b, DELETE_NAME_TYPE_CONTENT);
 		            ps.setString(1, fqdn);
 		            ps.setString(2, type);
 		            ps.setString(3, content);
 		    }
-		    Syslog.debug(this, "Executing SQL query: " + ps.toString());
-			ps.executeUpdate();
-			ps.close();
-			dbConnection.close();
+			ps.addBatch();
+			if (implicit) commitUpdate();
 		}
 		catch(SQLException e) {
+			if (implicit) abortUpdate();
 			throw new IOException("Error deleting records: " + e.getMessage());
 		}
 
 	}
 
 	public long getSequenceNum(String keyHash) throws IOException {
+		AccountMetadata m = accountCache.get(keyHash);
+		if (m != null) {
+			return m.sequenceNum;
+		}
+		
 		// Lookup sequence number in key_info table
+		Connection dbConnection = writeConnection();
+		PreparedStatement ps = null;
+		ResultSet rs = null;
 		try {
-		  Connection dbConnection = cp.connection();
-			Statement stmt = dbConnection.createStatement();
-		    ResultSet rs = stmt.executeQuery("SELECT * FROM " +
-		    	"key_info WHERE key_hash = '" + keyHash + "'");
-	    	if (rs.next()) {
-	    		long temp =  rs.getLong("next_sequence_num");
-		    	rs.close();
-		    	stmt.close();
-		    	dbConnection.close();
-	    		return temp;
-	    	}
-	    	rs.close();
-	    	stmt.close();
-	    	dbConnection.close();
+			ps = dbConnection.prepareStatement(GET_SEQUENCE_NUM);
+			ps.setString(1, keyHash);
+			rs = ps.executeQuery();
+			if (rs.next()) {
+				return rs.getLong(1);
+			}
 		}
 		catch(SQLException e) {	
 			throw new IOException("Error getting sequence number: "
 					+ e.getMessage());
 		}
+		finally {
+			ConnectionProvider.close(rs, ps);
+			ConnectionProvider.close(dbConnection);
+		}
 		
 		return -1; // Shouldn't ever get here
 	}
 
 	public void incrementSequenceNum() throws IOException {
-		// Get this record and update it
+		Binding b = bound();
+		boolean implicit = b.conn == null;
+		if (implicit) beginUpdate();
 		try {
-      Connection dbConnection = cp.connection();
-			Statement stmt = dbConnection.createStatement();
-	        ResultSet rs = stmt.executeQuery("SELECT next_sequence_num FROM " +
-	                        "key_info WHERE key_hash = '" +
-	                        this.acctKeyHash + "'");
-	        if (rs.next()) {
-	                stmt.executeUpdate("UPDATE key_info SET " +
-	                                "next_sequence_num=next_sequence_num+1 " +
-	                                "WHERE key_hash = '" +
-	                                this.acctKeyHash + "'");
-	        }
-	        rs.close();
-	        stmt.close();
-	        dbConnection.close();
+			PreparedStatement ps = batchStatement(b, INCREMENT_SEQUENCE_NUM);
+			ps.setString(1, b.keyHash);
+			ps.addBatch();
+			b.increments++;
+			if (implicit) commitUpdate();
 		}
-        catch(SQLException e) {
+		catch(SQLException e) {
+			if (implicit) abortUpdate();
 			throw new IOException("Error incrementing sequence number: "
 					+ e.getMessage());
 		}
 	}
 
+	public void advanceSequenceNum(long nextSequenceNum) throws IOException {
+		Binding b = bound();
+		boolean implicit = b.conn == null;
+		if (implicit) beginUpdate();
+		try {
+			PreparedStatement ps = batchStatement(b, ADVANCE_SEQUENCE_NUM);
+			ps.setLong(1, nextSequenceNum);
+			ps.setString(2, b.keyHash);
+			ps.addBatch();
+			b.advancedTo = Math.max(b.advancedTo, nextSequenceNum);
+			if (implicit) commitUpdate();
+		}
+		catch(SQLException e) {
+			if (implicit) abortUpdate();
+			throw new IOException("Error advancing sequence number: "
+					+ e.getMessage());
+		}
+	}
+
+	/*
+	 * Takes a write connection for the bound account and turns off
+	 * autocommit until commitUpdate or abortUpdate.
+	 */
+	public void beginUpdate() throws IOException {
+		Binding b = bound();
+		if (b.conn != null) {
+			throw new IOException("Update already in progress");
+		}
+		Connection conn = writeConnection();
+		try {
+			conn.setAutoCommit(false);
+		}
+		catch (SQLException e) {
+			ConnectionProvider.close(conn);
+			throw new IOException("Error starting update: " + e.getMessage());
+		}
+		b.conn = conn;
+	}
+
+	public boolean isTransactional() {
+		return true;
+	}
+
+	public void commitUpdate() throws IOException {
+		Binding b = bound();
+		if (b.conn == null) {
+			throw new IOException("commitUpdate called without beginUpdate");
+		}
+		long commitStart = System.currentTimeMillis();
+		try {
+			flushBatch(b);
+			b.conn.commit();
+		}
+		catch (SQLException e) {
+			rollback(b);
+			release(b);
+			// As in abortUpdate, drop any suffix change with the rest
+			bindAccount(b.keyHash);
+			throw new IOException("Error committing update: " + e.getMessage());
+		}
+		release(b);
+		
+		// Write through to the cache. Other threads may have committed
+		// for this account since it was bound, so apply the changes to
+		// the cached entry rather than to b's copy.
+		long sequenceNum = accountCache.commit(b.keyHash,
+				b.suffixChanged ? b.nameSuffix : null, b.increments,
+				b.advancedTo, commitStart);
+		b.sequenceNum = sequenceNum >= 0 ? sequenceNum :
+			Math.max(b.sequenceNum + b.increments, b.advancedTo);
+		b.increments = 0;
+		b.advancedTo = 0;
+		b.suffixChanged = false;
+	}
+
+	public void abortUpdate() throws IOException {
+		Binding b = bound();
+		if (b.conn == null) {
+			return;
+		}
+		rollback(b);
+		release(b);
+		
+		// The suffix may have been changed by the rolled back update;
+		// the cache still holds the committed state
+		bindAccount(b.keyHash);
+	}
+
 	public void unbindAccount(String keyHash) throws IOException {
-		this.acctKeyHash = null;
-		this.acctSequenceNum = null;
-		this.acctNameSuffix = null;
-		this.domainID = -1;
+		Binding b = binding.get();
+		if (b != null && b.conn != null) {
+			Syslog.warning(this, "Discarding uncommitted update for " +
+					b.keyHash);
+			rollback(b);
+			release(b);
+		}
+		binding.remove();
 	}
 
 	public void updateSuffix(String newSuffix) throws IOException {
+		Binding b = bound();
+		boolean implicit = b.conn == null;
+		if (implicit) beginUpdate();
+		
 		PreparedStatement ps;
+		String oldSuffix = b.nameSuffix;
 		// Update all three relevant tables to new domain suffix
 		try {
+			flushBatch(b);
+			
 			// key_info table
-      Connection dbConnection = cp.connection();
-			ps = dbConnection.prepareStatement(
+			ps = b.conn.prepareStatement(
 	        	"UPDATE key_info SET name_suffix = ? WHERE key_hash = ?");
 			ps.setString(1, newSuffix);
-			ps.setString(2, this.acctKeyHash);
+			ps.setString(2, b.keyHash);
 		    Syslog.debug(this, "Executing SQL query: " + ps.toString());
 			ps.executeUpdate();
 			ps.close();
 			
 			// records table
-			ps = dbConnection.prepareStatement(
+			ps = b.conn.prepareStatement(
         	"UPDATE records SET name = REPLACE(name, ?, ?)" +
         	" WHERE domain_id = ?");
-			ps.setString(1, this.acctNameSuffix);
+			ps.setString(1, oldSuffix);
 			ps.setString(2, newSuffix);
-			ps.setLong(3, this.domainID);
+			ps.setLong(3, b.domainID);
 		    Syslog.debug(this, "Executing SQL query: " + ps.toString());
 			ps.executeUpdate();
 			ps.close();
 			
 			// domains table
-			ps = dbConnection.prepareStatement(
+			ps = b.conn.prepareStatement(
         	"UPDATE domains SET name = ? WHERE id = ?");
 			ps.setString(1, newSuffix);
-			ps.setLong(2, this.domainID);
+			ps.setLong(2, b.domainID);
 		    Syslog.debug(this, "Executing SQL query: " + ps.toString());
 			ps.executeUpdate();
 			ps.close();
-			dbConnection.close();
 			
+			// Before committing, so the commit caches the new suffix
+			b.nameSuffix = newSuffix;
+			b.suffixChanged = true;
+			if (implicit) commitUpdate();
 		}
 		catch(SQLException e) {
-			System.out.println(e.getMessage());
+			if (implicit) abortUpdate();
 			throw new IOException("Error changing suffix number: "
 					+ e.getMessage());
 		}
-		
-		// Update cached suffix
-		this.acctNameSuffix = newSuffix;
 
 	}
 
 	@Override
 	public String getSuffix() {
-		return this.acctNameSuffix;
+		Binding b = binding.get();
+		return b == null ? null : b.nameSuffix;
+	}
+	
+	private Binding bound() throws IOException {
+		Binding b = binding.get();
+		if (b == null) {
+			throw new IOException("Tried to use backend with unbound account");
+		}
+		return b;
+	}
+	
+	private Connection writeConnection() throws IOException {
+		Connection conn = cp.connection();
+		if (conn == null) {
+			throw new IOException("Could not connect to MySQL write server");
+		}
+		return conn;
+	}
+	
+	private static String fqdnFor(Binding b, String subdomain) {
+		if (subdomain.equals("")) {
+			return b.nameSuffix;
+		}
+		return subdomain + "." + b.nameSuffix;
+	}
+	
+	/*
+	 * The statement collecting the current batch, if it is for sql;
+	 * otherwise sends the current batch and starts a new one. Keeping
+	 * statements in order preserves the order of the update.
+	 */
+	private PreparedStatement batchStatement(Binding b, String sql)
+			throws SQLException {
+		if (b.batch != null && !b.batchSql.equals(sql)) {
+			flushBatch(b);
+		}
+		if (b.batch == null) {
+			b.batch = b.conn.prepareStatement(sql);
+			b.batchSql = sql;
+		}
+		return b.batch;
+	}
+	
+	private void flushBatch(Binding b) throws SQLException {
+		if (b.batch == null) {
+			return;
+		}
+		PreparedStatement ps = b.batch;
+		b.batch = null;
+		b.batchSql = null;
+		try {
+			Syslog.debug(this, "Executing SQL batch: " + ps.toString());
+			ps.executeBatch();
+		}
+		finally {
+			ps.close();
+		}
+	}
+	
+	private void rollback(Binding b) {
+		try {
+			b.conn.rollback();
+		}
+		catch (SQLException e) {
+			Syslog.log(this, e, Syslog.WARNING);
+		}
+	}
+	
+	/*
+	 * Returns the update's connection to the pool.
+	 */
+	private void release(Binding b) {
+		ConnectionProvider.close(b.batch);
+		b.batch = null;
+		b.batchSql = null;
+		try {
+			b.conn.setAutoCommit(true);
+		}
+		catch (SQLException e) {
+			Syslog.log(this, e, Syslog.WARNING);
+		}
+		ConnectionProvider.close(b.conn);
+		b.conn = null;
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,209 @@
+package donar.update.util;
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only, memory-mapped log of keyed records. Each entry is
+ *
+ *   int length | int crc32 | byte kind | short keyLen | key | payload
+ *
+ * where length covers everything after the crc. The length is written
+ * last, so a reader never sees a half-written entry as valid; a zero
+ * length or a bad checksum marks the end of the log. The file is mapped
+ * in MAP_CHUNK sized windows and grows one window at a time.
+ *
+ * A log opened read-only can be replayed repeatedly to pick up entries
+ * appended since the last call by a writer in another process.
+ */
+public class RecordLog {
+
+	// Entry kinds
+	public static final byte ACCOUNT = 1;
+	public static final byte SUBDOMAIN = 2;
+	public static final byte REMOVE_SUBDOMAIN = 3;
+	public static final byte SEAL = 4; // Log continues in the next segment
+	public static final byte TRANSACTION = 5; // Entries applied together
+
+	private static final int HEADER_BYTES = 8;
+	private static final int MAP_CHUNK = 16 * 1024 * 1024;
+
+	/*
+	 * Receives entries in log order during replay.
+	 */
+	public interface Replayer {
+		void replay(byte kind, String key, byte[] payload) throws IOException;
+	}
+
+	private File file;
+	private RandomAccessFile raf;
+	private FileChannel channel;
+	private MappedByteBuffer map;
+	private long mapStart;
+	private long position;   // Offset of the next entry to read or write
+	private boolean readOnly;
+	private CRC32 crc;
+
+	public RecordLog(File file, boolean readOnly) throws IOException {
+		this.file = file;
+		this.readOnly = readOnly;
+		this.raf = new RandomAccessFile(file, readOnly ? "r" : "rw");
+		this.channel = raf.getChannel();
+		this.position = 0;
+		this.crc = new CRC32();
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/*
+	 * Offset just past the last valid entry seen so far.
+	 */
+	public synchronized long getPosition() {
+		return position;
+	}
+
+	/*
+	 * Replays all valid entries from the current position onwards and
+	 * leaves the position at the end of the log. Returns the number of
+	 * entries replayed.
+	 */
+	public synchronized int replay(Replayer replayer) throws IOException {
+		int count = 0;
+		while (true) {
+			if (!ensureMapped(position, HEADER_BYTES)) break;
+			int off = (int) (position - mapStart);
+			int length = map.getInt(off);
+			int storedCrc = map.getInt(off + 4);
+			if (length < 3) break;
+			if (!ensureMapped(position, HEADER_BYTES + length)) break;
+			off = (int) (position - mapStart);
+
+			byte[] body = new byte[length];
+			map.position(off + HEADER_BYTES);
+			map.get(body);
+			crc.reset();
+			crc.update(body, 0, length);
+			if ((int) crc.getValue() != storedCrc) break;
+
+			byte kind = body[0];
+			int keyLen = ((body[1] & 0xFF) << 8) | (body[2] & 0xFF);
+			if (3 + keyLen > length) break;
+			String key = new String(body, 3, keyLen, "ISO-8859-1");
+			byte[] payload = new byte[length - 3 - keyLen];
+			System.arraycopy(body, 3 + keyLen, payload, 0, payload.length);
+
+			replayer.replay(kind, key, payload);
+			position += HEADER_BYTES + length;
+			count++;
+		}
+
+		// Anything past here is a torn write from a crash; make sure
+		// it can never be mistaken for an entry again.
+		if (!readOnly && ensureMapped(position, HEADER_BYTES)) {
+			map.putInt((int) (position - mapStart), 0);
+		}
+		return count;
+	}
+
+	/*
+	 * Appends one entry to the end of the log.
+	 */
+	public synchronized void append(byte kind, String key, byte[] payload)
+		throws IOException {
+		if (readOnly) {
+			throw new IOException("Record log " + file + " is read-only");
+		}
+		byte[] keyBytes = key.getBytes("ISO-8859-1");
+		if (keyBytes.length > 0xFFFF) {
+			throw new IOException("Record key too long: " + key);
+		}
+		int length = 3 + keyBytes.length + payload.length;
+		// Leave room for the zero length that terminates the log
+		ensureMapped(position, HEADER_BYTES + length + 4);
+		int off = (int) (position - mapStart);
+
+		map.position(off + HEADER_BYTES);
+		map.put(kind);
+		map.putShort((short) keyBytes.length);
+		map.put(keyBytes);
+		map.put(payload);
+		map.putInt(off + HEADER_BYTES + length, 0);
+
+		crc.reset();
+		crc.update(kind);
+		crc.update((keyBytes.length >> 8) & 0xFF);
+		crc.update(keyBytes.length & 0xFF);
+		crc.update(keyBytes, 0, keyBytes.length);
+		crc.update(payload, 0, payload.length);
+		map.putInt(off + 4, (int) crc.getValue());
+		map.putInt(off, length); // Publishes the entry
+
+		position += HEADER_BYTES + length;
+	}
+
+	/*
+	 * Flushes appended entries to disk.
+	 */
+	public synchronized void force() {
+		if (map != null && !readOnly) {
+			map.force();
+		}
+	}
+
+	public synchronized void close() throws IOException {
+		force();
+		map = null;
+		channel.close();
+		raf.close();
+	}
+
+	/*
+	 * Makes sure [pos, pos + len) is covered by the current mapping,
+	 * remapping a window starting at pos if not. A writable log grows the
+	 * file as needed; a read-only log returns false if the file does not
+	 * (yet) contain the whole range.
+	 */
+	private boolean ensureMapped(long pos, int len) throws IOException {
+		if (map != null && pos >= mapStart &&
+				pos + len <= mapStart + map.capacity()) {
+			return true;
+		}
+		long size = Math.max(MAP_CHUNK, len);
+		if (readOnly) {
+			long available = channel.size() - pos;
+			if (available < len) return false;
+			size = Math.min(size, available);
+			map = channel.map(FileChannel.MapMode.READ_ONLY, pos, size);
+		} else {
+			if (map != null) map.force();
+			map = channel.map(FileChannel.MapMode.READ_WRITE, pos, size);
+		}
+		mapStart = pos;
+		return true;
+	}
+}
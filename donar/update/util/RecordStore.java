@@ -0,0 +1,333 @@
+package donar.update.util;
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.TreeMap;
+
+import com.protomatter.syslog.Syslog;
+
+/**
+ * A directory of RecordLog files making up one logical log:
+ *
+ *   snapshot-N.log   every live entry as of the end of segment N
+ *   records-M.log    entries appended after that, for M > N
+ *
+ * Writers append to the highest numbered segment. Rolling seals the
+ * active segment and starts the next one; a snapshot of the state at the
+ * roll point can then be written in the background, after which every
+ * segment it covers is deleted. Loading reads the newest snapshot plus
+ * the segments after it, so restart cost follows the amount of live data
+ * rather than the length of the update history.
+ */
+public class RecordStore {
+
+	private static final String SEGMENT_PREFIX = "records-";
+	private static final String SNAPSHOT_PREFIX = "snapshot-";
+	private static final String SUFFIX = ".log";
+	private static final String LEGACY_LOG = "records.log";
+
+	private File dir;
+	private boolean readOnly;
+	private RecordLog active;
+	private int activeGeneration;
+	private int snapshotGeneration;   // -1 if no snapshot yet
+	private long sealedBytes;         // Segment bytes since the snapshot
+	// Bytes written to each sealed segment since the snapshot. Segment
+	// files are pre-extended, so their length says nothing about this.
+	private TreeMap<Integer, Long> sealedSegmentBytes =
+		new TreeMap<Integer, Long>();
+	private long snapshotBytes;
+	private boolean sawSeal;
+
+	public RecordStore(File dir, boolean readOnly) throws IOException {
+		this.dir = dir;
+		this.readOnly = readOnly;
+		this.snapshotGeneration = -1;
+
+		// Logs written before segmenting become the first segment
+		File legacy = new File(dir, LEGACY_LOG);
+		if (!readOnly && legacy.exists() &&
+				listGenerations(SEGMENT_PREFIX).length == 0) {
+			if (!legacy.renameTo(segmentFile(0))) {
+				throw new IOException("Could not rename " + legacy);
+			}
+		}
+	}
+
+	/*
+	 * Replays the newest snapshot and every segment after it, leaving the
+	 * last segment open for appending (or following, if read-only).
+	 * Returns the number of entries replayed.
+	 */
+	public synchronized int load(RecordLog.Replayer replayer)
+		throws IOException {
+		if (active != null) {
+			active.close();
+			active = null;
+		}
+		int count = 0;
+		int[] snapshots = listGenerations(SNAPSHOT_PREFIX);
+		snapshotGeneration = snapshots.length > 0 ?
+				snapshots[snapshots.length - 1] : -1;
+		snapshotBytes = 0;
+		if (snapshotGeneration >= 0) {
+			RecordLog snapshot =
+				new RecordLog(snapshotFile(snapshotGeneration), true);
+			count += snapshot.replay(replayer);
+			snapshotBytes = snapshot.getPosition();
+			snapshot.close();
+		}
+
+		sealedBytes = 0;
+		sealedSegmentBytes.clear();
+		activeGeneration = snapshotGeneration + 1;
+		for (int gen : listGenerations(SEGMENT_PREFIX)) {
+			if (gen <= snapshotGeneration) continue;
+			if (active != null) {
+				seal();
+			}
+			activeGeneration = gen;
+			active = new RecordLog(segmentFile(gen), readOnly);
+			sawSeal = false;
+			count += replaySegment(replayer);
+		}
+
+		if (!readOnly) {
+			if (active == null) {
+				active = new RecordLog(segmentFile(activeGeneration), false);
+			} else if (sawSeal) {
+				// Crashed between sealing and starting the next segment
+				startNextSegment();
+			}
+			removeObsolete(snapshotGeneration);
+			removeAbandonedSnapshots();
+		} else if (active == null) {
+			throw new IOException("No record log found in " + dir);
+		}
+		return count;
+	}
+
+	/*
+	 * Read-only stores: replays entries appended since the last call,
+	 * moving on to the next segment when the writer seals one. Returns
+	 * false if the writer has compacted away segments we had not read
+	 * yet, in which case the caller must start over with load().
+	 */
+	public synchronized boolean follow(RecordLog.Replayer replayer)
+		throws IOException {
+		replaySegment(replayer);
+		while (sawSeal) {
+			File next = segmentFile(activeGeneration + 1);
+			if (!next.exists()) {
+				// Either the writer is about to create it, or a snapshot
+				// has already replaced it
+				int[] snapshots = listGenerations(SNAPSHOT_PREFIX);
+				return snapshots.length == 0 ||
+					snapshots[snapshots.length - 1] < activeGeneration;
+			}
+			active.close();
+			activeGeneration++;
+			active = new RecordLog(next, true);
+			sawSeal = false;
+			replaySegment(replayer);
+		}
+		return true;
+	}
+
+	public synchronized void append(byte kind, String key, byte[] payload)
+		throws IOException {
+		active.append(kind, key, payload);
+	}
+
+	public synchronized void force() {
+		active.force();
+	}
+
+	/*
+	 * Seals the active segment and starts a new one. Returns the
+	 * generation of the sealed segment; a snapshot of the state as of
+	 * this call should be written under that generation.
+	 */
+	public synchronized int roll() throws IOException {
+		int sealed = activeGeneration;
+		active.append(RecordLog.SEAL, "", new byte[0]);
+		startNextSegment();
+		return sealed;
+	}
+
+	/*
+	 * Opens a temporary file to write the snapshot for generation into.
+	 * Finish with commitSnapshot().
+	 */
+	public RecordLog createSnapshot(int generation) throws IOException {
+		File tmp = new File(dir, SNAPSHOT_PREFIX + generation + SUFFIX + ".tmp");
+		tmp.delete();
+		return new RecordLog(tmp, false);
+	}
+
+	/*
+	 * Makes a fully written snapshot visible and deletes the snapshots
+	 * and segments it supersedes.
+	 */
+	public synchronized void commitSnapshot(int generation, RecordLog snapshot)
+		throws IOException {
+		long bytes = snapshot.getPosition();
+		File tmp = snapshot.getFile();
+		snapshot.close();
+		// Drop the unused tail of the last mapped window
+		RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+		try {
+			raf.setLength(bytes);
+		} finally {
+			raf.close();
+		}
+		if (!tmp.renameTo(snapshotFile(generation))) {
+			throw new IOException("Could not rename " + tmp);
+		}
+
+		// Segments after the snapshot stay
+		sealedSegmentBytes.headMap(generation, true).clear();
+		long remaining = 0;
+		for (long segmentBytes : sealedSegmentBytes.values()) {
+			remaining += segmentBytes;
+		}
+		snapshotGeneration = generation;
+		snapshotBytes = bytes;
+		sealedBytes = remaining;
+		removeObsolete(generation);
+	}
+
+	/*
+	 * Bytes of log that a restart would replay on top of the snapshot.
+	 */
+	public synchronized long getBytesSinceSnapshot() {
+		return sealedBytes + active.getPosition();
+	}
+
+	public synchronized long getSnapshotBytes() {
+		return snapshotBytes;
+	}
+
+	public synchronized void close() throws IOException {
+		if (active != null) {
+			active.close();
+			active = null;
+		}
+	}
+
+	private int replaySegment(final RecordLog.Replayer replayer)
+		throws IOException {
+		return active.replay(new RecordLog.Replayer() {
+			public void replay(byte kind, String key, byte[] payload)
+				throws IOException {
+				if (kind == RecordLog.SEAL) {
+					sawSeal = true;
+				} else {
+					replayer.replay(kind, key, payload);
+				}
+			}
+		});
+	}
+
+	private void startNextSegment() throws IOException {
+		seal();
+		activeGeneration++;
+		active = new RecordLog(segmentFile(activeGeneration), false);
+		sawSeal = false;
+	}
+
+	/*
+	 * Closes the active segment, counting the bytes written to it.
+	 */
+	private void seal() throws IOException {
+		long bytes = active.getPosition();
+		sealedSegmentBytes.put(activeGeneration, bytes);
+		sealedBytes += bytes;
+		active.close();
+	}
+
+	/*
+	 * Deletes segments and snapshots covered by the snapshot for
+	 * generation.
+	 */
+	private void removeObsolete(int generation) {
+		if (readOnly) return;
+		for (int gen : listGenerations(SEGMENT_PREFIX)) {
+			if (gen <= generation) delete(segmentFile(gen));
+		}
+		for (int gen : listGenerations(SNAPSHOT_PREFIX)) {
+			if (gen < generation) delete(snapshotFile(gen));
+		}
+	}
+
+	/*
+	 * Deletes snapshots left half written by a crash.
+	 */
+	private void removeAbandonedSnapshots() {
+		String[] names = dir.list();
+		if (names == null) return;
+		for (String name : names) {
+			if (name.startsWith(SNAPSHOT_PREFIX) && name.endsWith(".tmp")) {
+				delete(new File(dir, name));
+			}
+		}
+	}
+
+	private void delete(File f) {
+		if (!f.delete()) {
+			Syslog.warning(this, "Could not delete obsolete log file " + f);
+		}
+	}
+
+	private File segmentFile(int gen) {
+		return new File(dir, SEGMENT_PREFIX + gen + SUFFIX);
+	}
+
+	private File snapshotFile(int gen) {
+		return new File(dir, SNAPSHOT_PREFIX + gen + SUFFIX);
+	}
+
+	/*
+	 * Sorted generation numbers of the files named prefix-N.log in dir.
+	 */
+	private int[] listGenerations(String prefix) {
+		String[] names = dir.list();
+		if (names == null) return new int[0];
+		int[] gens = new int[names.length];
+		int n = 0;
+		for (String name : names) {
+			if (!name.startsWith(prefix) || !name.endsWith(SUFFIX)) continue;
+			try {
+				gens[n] = Integer.parseInt(name.substring(prefix.length(),
+						name.length() - SUFFIX.length()));
+				n++;
+			} catch (NumberFormatException e) {
+				// Not one of ours
+			}
+		}
+		int[] out = Arrays.copyOf(gens, n);
+		Arrays.sort(out);
+		return out;
+	}
+}
@@ -0,0 +1,214 @@
+package donar.update.util;
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers, per account, which recent sequence numbers have been used,
+ * so replayed update packets are rejected without a storage lookup.
+ *
+ * Each account keeps the highest sequence number accepted so far and a
+ * 64 bit map of which of the 64 numbers up to and including it have
+ * been seen, as in IPsec anti-replay. A packet is accepted if its number
+ * is higher than any before, or falls inside the window and has not been
+ * seen; so packets may arrive out of order, but each number is used once.
+ *
+ * An account's window starts from the sequence number stored by the
+ * backend, treating every lower number as used. The highest accepted
+ * number is written back with the update it came with (see
+ * DONARBackend.advanceSequenceNum), so the window survives restarts
+ * without a write of its own. Windows are kept for the most recently
+ * active accounts only.
+ */
+public class ReplayWindow {
+
+	public static final int WINDOW_SIZE = 64;
+
+	private static class Window {
+		long highest;	// Highest accepted sequence number
+		long seen;		// Bit i set: highest - i was accepted
+
+		Window(long nextSequenceNum) {
+			this.highest = nextSequenceNum - 1;
+			this.seen = ~0L;
+		}
+
+		synchronized boolean accept(long sequenceNum) {
+			if (sequenceNum > highest) {
+				long shift = sequenceNum - highest;
+				seen = shift >= WINDOW_SIZE ? 0 : seen << shift;
+				seen |= 1;
+				highest = sequenceNum;
+				return true;
+			}
+			long age = highest - sequenceNum;
+			if (age >= WINDOW_SIZE || (seen & (1L << age)) != 0) {
+				return false;
+			}
+			seen |= 1L << age;
+			return true;
+		}
+
+		synchronized void release(long sequenceNum) {
+			long age = highest - sequenceNum;
+			if (age >= 0 && age < WINDOW_SIZE) {
+				seen &= ~(1L << age);
+			}
+		}
+
+		synchronized long next() {
+			return highest + 1;
+		}
+	}
+
+	private LinkedHashMap<String, Window> windows;
+
+	public ReplayWindow(final int capacity) {
+		this.windows = new LinkedHashMap<String, Window>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(
+					Map.Entry<String, Window> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+
+	/*
+	 * Marks sequenceNum used for the account keyHash. Returns false if
+	 * it was already used or is too old to tell.
+	 */
+	public boolean accept(String keyHash, long sequenceNum,
+			DONARBackend backend) throws IOException {
+		return window(keyHash, backend).accept(sequenceNum);
+	}
+
+	/*
+	 * Marks sequenceNum unused again, so a packet accepted but then not
+	 * applied (the server was too busy) can be resent with the same
+	 * number. The highest accepted number is not wound back.
+	 */
+	public void release(String keyHash, long sequenceNum) {
+		Window w;
+		synchronized (this) {
+			w = windows.get(keyHash);
+		}
+		if (w != null) {
+			w.release(sequenceNum);
+		}
+	}
+
+	/*
+	 * The sequence number the account keyHash should use next. Only
+	 * accept() keeps a window for the account, so answering this for an
+	 * account without one costs a backend read.
+	 */
+	public long next(String keyHash, DONARBackend backend)
+		throws IOException {
+		Window w = find(keyHash);
+		if (w != null) {
+			return w.next();
+		}
+		return Math.max(0, backend.getSequenceNum(keyHash));
+	}
+
+	/*
+	 * As next(), but -1 unless the account already has a window. For
+	 * replies to packets not known to come from the account, which must
+	 * cost neither a backend read nor another account's window.
+	 */
+	public long peek(String keyHash) {
+		Window w = find(keyHash);
+		return w == null ? -1 : w.next();
+	}
+
+	public synchronized int size() {
+		return windows.size();
+	}
+
+	private synchronized Window find(String keyHash) {
+		return windows.get(keyHash);
+	}
+
+	private Window window(String keyHash, DONARBackend backend)
+		throws IOException {
+		Window w = find(keyHash);
+		if (w != null) {
+			return w;
+		}
+
+		// Read outside the lock; if another thread got there first, use
+		// its window
+		Window loaded = new Window(Math.max(0,
+				backend.getSequenceNum(keyHash)));
+		synchronized (this) {
+			w = windows.get(keyHash);
+			if (w == null) {
+				windows.put(keyHash, loaded);
+				w = loaded;
+			}
+			return w;
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		// Informal test: a packet accepted, then turned away busy, must be
+		// accepted again when the client resends it, and only once.
+		java.util.Properties config =
+			donar.update.UpdateInfo.getDefaultConfiguration();
+		config.setProperty("LOG_STORE_DIR",
+				args.length > 0 ? args[0] : "/tmp/donar-replay-test");
+		config.setProperty("LOG_STORE_SYNC", "false");
+		String keyHash = "6768033e216468247bd031a0a2d9876d79818f8f";
+		LogBackend backend = LogBackend.open(config, false);
+		backend.assureKey(keyHash);
+		ReplayWindow replay = new ReplayWindow(16);
+		long seq = replay.next(keyHash, backend);
+
+		System.out.println("First send accepted: " +
+				replay.accept(keyHash, seq, backend));
+		replay.release(keyHash, seq);
+		System.out.println("Retry after busy accepted: " +
+				replay.accept(keyHash, seq, backend));
+		System.out.println("Replay accepted: " +
+				replay.accept(keyHash, seq, backend));
+
+		// Same for a number below the highest, sent out of order
+		replay.accept(keyHash, seq + 2, backend);
+		replay.accept(keyHash, seq + 1, backend);
+		replay.release(keyHash, seq + 1);
+		System.out.println("Out of order retry accepted: " +
+				replay.accept(keyHash, seq + 1, backend));
+		System.out.println("Next sequence number: " +
+				(replay.next(keyHash, backend) - seq));
+
+		// Replies to packets that failed verification must not load or
+		// evict windows
+		String stranger = "0000000000000000000000000000000000000000";
+		System.out.println("Unknown account peek: " + replay.peek(stranger) +
+				", next: " + replay.next(stranger, backend) +
+				", windows: " + replay.size());
+		backend.close();
+	}
+}
@@ -19,40 +19,61 @@ package donar.update.util;
  * under the License.
  */
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.net.Socket;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.ListIterator;
 
 import com.protomatter.syslog.Syslog;
 
-import donar.dns.attrs.DoubleRecordAttribute;
 import donar.dns.attrs.IntegerRecordAttribute;
 import donar.dns.attrs.RecordAttribute;
-import donar.dns.attrs.ShortRecordAttribute;
+import donar.update.UpdateInfo;
 
 public class SubdomainInfo implements Serializable{
 	
 	// Version of class for serialization
-	private static final long serialVersionUID = 2L;
+	private static final long serialVersionUID = 4L;
 	
-	private List<DNSRecord> records;
+	/*
+	 * XDR format. Version 0 has no header and starts with the length of
+	 * the fqdn. Later versions start with FORMAT_MAGIC | version, which is
+	 * negative and so can never be mistaken for a length. Version 1 tags
+	 * each attribute with its kind (type, kind, length, data) so that
+	 * attributes of any size survive a round trip.
+	 */
+	static final int FORMAT_MAGIC = 0xD0A50000;
+	public static final int FORMAT_VERSION = 1;
+	
+	// A records are kept as columns, the rest grouped by type, each group
+	// in insertion order
+	private ARecordSet aRecords;
+	private LinkedHashMap<String, List<DNSRecord>> recordsByType;
+	private transient HashMap<String, DNSRecord> recordsByKey; // type, content
+	private int numRecords;
 	private String fqdn;         // Fully qualified domain name
 	private String accountHash;  // Account this record belongs to
 	private long sequenceNum;
+	private long earliestExpiry; // Seconds; Long.MAX_VALUE if none expire
 	
 	public SubdomainInfo(String fqdn, String accountHash) {
-		this.records = new ArrayList<DNSRecord>();
+		this.aRecords = new ARecordSet();
+		this.recordsByType = new LinkedHashMap<String, List<DNSRecord>>();
+		this.recordsByKey = new HashMap<String, DNSRecord>();
 		this.fqdn = fqdn;
 		this.accountHash = accountHash;
+		this.earliestExpiry = Long.MAX_VALUE;
 	}
 	
 	public void replaceSuffix(String newSuffix) throws IOException {
@@ -84,56 +105,365 @@ public class SubdomainInfo implements Serializable{
 		return this.accountHash;
 	}
 	
+	/*
+	 * Read-only copy of every record, grouped by type.
+	 */
 	public List<DNSRecord> getRecords() {
-		return this.records;
+		List<DNSRecord> all = new ArrayList<DNSRecord>(numRecords);
+		aRecords.toRecords(all);
+		for (List<DNSRecord> bucket: recordsByType.values()) {
+			all.addAll(bucket);
+		}
+		return Collections.unmodifiableList(all);
+	}
+	
+	/*
+	 * Read-only view of the records of one type. A records are built from
+	 * their columns on each call.
+	 */
+	public List<DNSRecord> getRecords(String type) {
+		if (type.equals("A")) {
+			List<DNSRecord> out = new ArrayList<DNSRecord>(aRecords.size());
+			aRecords.toRecords(out);
+			return Collections.unmodifiableList(out);
+		}
+		List<DNSRecord> bucket = recordsByType.get(type);
+		if (bucket == null) {
+			return Collections.emptyList();
+		}
+		return Collections.unmodifiableList(bucket);
+	}
+	
+	public int getNumRecords() {
+		return numRecords;
+	}
+	
+	/*
+	 * The A records, as columns.
+	 */
+	public ARecordSet getARecords() {
+		return aRecords;
+	}
+	
+	private static String recordKey(String type, String content) {
+		return type + '\0' + content;
 	}
 	
 	public void addRecord(String type, String content, int ttl, List<RecordAttribute> attributes) {
+		if (type.equals("A")) {
+			int address = ARecordSet.parseAddress(content);
+			if (aRecords.put(address, ttl, attributes)) {
+				this.incrementSequenceNumber();
+				numRecords++;
+			}
+			updateEarliestExpiry();
+			return;
+		}
 		DNSRecord newRecord = new DNSRecord(type, content, ttl, attributes);
 		// If record with this type and content exists, just update TTL and attributes
-		for (DNSRecord r: this.records) {
-			// System.out.println("Existing record: " + r.type + " " + r.content);
-			if (r.type.equals(type) && r.content.equals(content)) {
-				r.ttl = ttl;
-				r.attributes = attributes;
-				return;
-			}
+		DNSRecord r = recordsByKey.get(recordKey(type, content));
+		if (r != null) {
+			r.ttl = ttl;
+			r.attributes = attributes;
+			updateEarliestExpiry();
+			return;
 		}
 		this.incrementSequenceNumber();
-		this.records.add(newRecord);
+		index(newRecord);
+		long expires = expirationOf(newRecord);
+		if (expires != 0 && expires < earliestExpiry) {
+			earliestExpiry = expires;
+		}
+	}
+	
+	private void index(DNSRecord r) {
+		List<DNSRecord> bucket = recordsByType.get(r.type);
+		if (bucket == null) {
+			bucket = new ArrayList<DNSRecord>();
+			recordsByType.put(r.type, bucket);
+		}
+		bucket.add(r);
+		recordsByKey.put(recordKey(r.type, r.content), r);
+		numRecords++;
+	}
+	
+	private void unindex(DNSRecord r) {
+		recordsByKey.remove(recordKey(r.type, r.content));
+		numRecords--;
+	}
+	
+	private void updateEarliestExpiry() {
+		long earliest = Long.MAX_VALUE;
+		for (int i = 0; i < aRecords.size(); i++) {
+			long expires = aRecords.expirationOf(i);
+			if (expires != 0 && expires < earliest) {
+				earliest = expires;
+			}
+		}
+		for (List<DNSRecord> bucket: recordsByType.values()) {
+			for (DNSRecord r: bucket) {
+				long expires = expirationOf(r);
+				if (expires != 0 && expires < earliest) {
+					earliest = expires;
+				}
+			}
+		}
+		this.earliestExpiry = earliest;
+	}
+	
+	/*
+	 * Records of type qtype ("ANY" for every type) to answer a query with
+	 * at now (seconds): the live ones, or the expired ones if none are
+	 * live. The returned list is read-only. Unless a record has expired,
+	 * which the earliest expiry tells us without looking at any
+	 * attributes, this is just the bucket for qtype.
+	 */
+	public List<DNSRecord> answerRecords(String qtype, long now) {
+		boolean any = qtype.equals("ANY");
+		if (earliestExpiry > now) {
+			return any ? getRecords() : getRecords(qtype);
+		}
+		
+		List<DNSRecord> live = new ArrayList<DNSRecord>();
+		List<DNSRecord> expired = new ArrayList<DNSRecord>();
+		if (any || qtype.equals("A")) {
+			// Decide from the columns; only build the records returned
+			int numLive = 0;
+			for (int i = 0; i < aRecords.size(); i++) {
+				if (isLive(aRecords.expirationOf(i), now)) numLive++;
+			}
+			for (int i = 0; i < aRecords.size(); i++) {
+				if (isLive(aRecords.expirationOf(i), now) == (numLive > 0)) {
+					(numLive > 0 ? live : expired).add(aRecords.toRecord(i));
+				}
+			}
+			if (!any) {
+				return Collections.unmodifiableList(
+						live.isEmpty() ? expired : live);
+			}
+		}
+		for (List<DNSRecord> bucket: recordsByType.values()) {
+			if (!any && !bucket.get(0).type.equals(qtype)) {
+				continue;
+			}
+			for (DNSRecord r: bucket) {
+				if (isLive(expirationOf(r), now)) {
+					live.add(r);
+				} else {
+					expired.add(r);
+				}
+			}
+		}
+		return Collections.unmodifiableList(live.isEmpty() ? expired : live);
+	}
+	
+	/*
+	 * Expiration time of r in seconds since the epoch, or 0 if it never
+	 * expires.
+	 */
+	public static long expirationOf(DNSRecord r) {
+		if (r.attributes == null) {
+			return 0;
+		}
+		for (RecordAttribute a: r.attributes) {
+			if (a.typeID == UpdateInfo.EXPIRATION_TIME &&
+					a instanceof IntegerRecordAttribute) {
+				return ((IntegerRecordAttribute) a).data & 0xFFFFFFFFL;
+			}
+		}
+		return 0;
+	}
+	
+	private static boolean isLive(long expires, long now) {
+		return expires == 0 || expires > now;
+	}
+	
+	/*
+	 * True if bucket has at least one record not expired at now (seconds).
+	 */
+	private static boolean hasLive(List<DNSRecord> bucket, long now) {
+		for (DNSRecord r: bucket) {
+			if (isLive(expirationOf(r), now)) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	private boolean hasLiveA(long now) {
+		for (int i = 0; i < aRecords.size(); i++) {
+			if (isLive(aRecords.expirationOf(i), now)) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/*
+	 * Removes records expired at now (seconds). Expired records are kept
+	 * while nothing live of the same type replaces them, since answers
+	 * fall back to expired records rather than returning nothing. Returns
+	 * true if any record was removed.
+	 */
+	public boolean pruneExpired(long now) {
+		if (earliestExpiry > now) {
+			return false;
+		}
+		boolean removed = false;
+		if (hasLiveA(now)) {
+			for (int i = aRecords.size() - 1; i >= 0; i--) {
+				if (!isLive(aRecords.expirationOf(i), now)) {
+					aRecords.remove(i);
+					numRecords--;
+					removed = true;
+				}
+			}
+		}
+		for (List<DNSRecord> bucket: recordsByType.values()) {
+			if (!hasLive(bucket, now)) {
+				continue;
+			}
+			Iterator<DNSRecord> iter = bucket.iterator();
+			while (iter.hasNext()) {
+				DNSRecord r = iter.next();
+				long expires = expirationOf(r);
+				if (expires != 0 && expires <= now) {
+					iter.remove();
+					unindex(r);
+					removed = true;
+				}
+			}
+		}
+		if (removed) {
+			this.incrementSequenceNumber();
+			updateEarliestExpiry();
+		}
+		return removed;
 	}
 	
+	/*
+	 * When pruneExpired next has work to do: now if it already has,
+	 * otherwise the earliest future expiration (seconds), or 0 if no
+	 * record expires.
+	 */
+	public long nextPrune(long now) {
+		if (earliestExpiry == Long.MAX_VALUE) {
+			return 0;
+		}
+		long next = 0;
+		boolean liveA = hasLiveA(now);
+		for (int i = 0; i < aRecords.size(); i++) {
+			long expires = aRecords.expirationOf(i);
+			if (expires == 0) {
+				continue;
+			}
+			if (expires <= now) {
+				if (liveA) {
+					return now;
+				}
+			} else if (next == 0 || expires < next) {
+				next = expires;
+			}
+		}
+		for (List<DNSRecord> bucket: recordsByType.values()) {
+			boolean live = hasLive(bucket, now);
+			for (DNSRecord r: bucket) {
+				long expires = expirationOf(r);
+				if (expires == 0) {
+					continue;
+				}
+				if (expires <= now) {
+					if (live) {
+						return now;
+					}
+				} else if (next == 0 || expires < next) {
+					next = expires;
+				}
+			}
+		}
+		return next;
+	}
+	
+	/*
+	 * Removes the records matching type and content; an empty string
+	 * matches anything.
+	 */
 	public void delRecord(String type, String content) {
 		Syslog.debug(this, "Record deletion requested for subdomain " + this.getFqdn());
 		Syslog.debug(this, "type: " + type + " content: " + content);
-		if (records != null) {
-			ListIterator<DNSRecord> recordIter = records.listIterator();
-			while(recordIter.hasNext()) {
-				DNSRecord nextRecord = recordIter.next();
-				if (type.equals("") && content.equals("")) {
-					Syslog.debug(this, "Removing record: " + nextRecord);
-					recordIter.remove();
+		if (type.equals("") || type.equals("A")) {
+			delARecords(content);
+		}
+		if (type.equals("A")) {
+			// Done above
+		} else if (!type.equals("") && !content.equals("")) {
+			DNSRecord r = recordsByKey.get(recordKey(type, content));
+			if (r != null) {
+				Syslog.debug(this, "Removing record: " + r);
+				List<DNSRecord> bucket = recordsByType.get(type);
+				bucket.remove(r);
+				if (bucket.isEmpty()) {
+					recordsByType.remove(type);
 				}
-				
-				else if (type.equals("") &&
-						nextRecord.content.equals(content)) {
-					Syslog.debug(this, "Removing record: " + nextRecord);
-					recordIter.remove();
+				unindex(r);
+			}
+		} else {
+			Iterator<List<DNSRecord>> buckets = recordsByType.values().iterator();
+			while (buckets.hasNext()) {
+				List<DNSRecord> bucket = buckets.next();
+				if (!type.equals("") && !bucket.get(0).type.equals(type)) {
+					continue;
 				}
-				
-				else if (content.equals("") &&
-						nextRecord.type.equals(type)) {
-					Syslog.debug(this, "Removing record: " + nextRecord);
-					recordIter.remove();
+				Iterator<DNSRecord> recordIter = bucket.iterator();
+				while (recordIter.hasNext()) {
+					DNSRecord nextRecord = recordIter.next();
+					if (content.equals("") ||
+							nextRecord.content.equals(content)) {
+						Syslog.debug(this, "Removing record: " + nextRecord);
+						recordIter.remove();
+						unindex(nextRecord);
+					}
 				}
-				
-				else if (nextRecord.type.equals(type) &&
-						 nextRecord.content.equals(content)) {
-					Syslog.debug(this, "Removing record: " + nextRecord);
-					recordIter.remove();
+				if (bucket.isEmpty()) {
+					buckets.remove();
 				}
 			}
 		}
+		updateEarliestExpiry();
+	}
+	
+	private void delARecords(String content) {
+		if (content.equals("")) {
+			numRecords -= aRecords.size();
+			aRecords.clear();
+			return;
+		}
+		int address;
+		try {
+			address = ARecordSet.parseAddress(content);
+		} catch (NumberFormatException e) {
+			return; // Cannot match any A record
+		}
+		int i = aRecords.indexOf(address);
+		if (i >= 0) {
+			Syslog.debug(this, "Removing record: A " + content);
+			aRecords.remove(i);
+			numRecords--;
+		}
+	}
+	
+	/*
+	 * Rebuilds the (type, content) index, which is not serialized.
+	 */
+	private void readObject(ObjectInputStream in)
+		throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		recordsByKey = new HashMap<String, DNSRecord>();
+		for (List<DNSRecord> bucket: recordsByType.values()) {
+			for (DNSRecord r: bucket) {
+				recordsByKey.put(recordKey(r.type, r.content), r);
+			}
+		}
 	}
 	
 	/*
@@ -172,7 +502,41 @@ public class SubdomainInfo implements Serializable{
 	}
 	
 	/*
-	 * Saves this account record in CRAQ according to the XDR format.
+	 * Encodes this subdomain record according to the XDR format.
+	 */
+	public byte[] toXDR() {
+		return writeXDR().toByteArray();
+	}
+	
+	private XDRWriter writeXDR() {
+		XDRWriter out = new XDRWriter();
+		
+		out.writeInt(FORMAT_MAGIC | FORMAT_VERSION);
+		out.writeString(this.fqdn);
+		out.writeLong(sequenceNum);
+		
+		// Records
+		out.writeInt(this.numRecords);
+		for (int i = 0; i < aRecords.size(); i++) {
+			aRecords.writeXDR(i, out);
+		}
+		for (List<DNSRecord> bucket: recordsByType.values()) {
+			for (DNSRecord r: bucket) {
+				out.writeString(r.type);
+				out.writeString(r.content);
+				out.writeInt(r.ttl);
+				out.writeInt(r.attributes.size());
+				for (RecordAttribute a: r.attributes) {
+					a.writeTaggedXDR(out);
+				}
+			}
+		}
+		out.writeBytes(AccountInfo.hex2Bytes(this.accountHash));
+		return out;
+	}
+	
+	/*
+	 * Saves this subdomain record in CRAQ according to the XDR format.
 	 */
 	public void saveXDR(Socket craqSocket) throws IOException {
 		// Get socket
@@ -182,34 +546,14 @@ public class SubdomainInfo implements Serializable{
 			new DataOutputStream(craqSocket.getOutputStream());
 		
 	    // Serialize
-		ByteArrayOutputStream objByteStream = new ByteArrayOutputStream();
-		DataOutputStream out = new DataOutputStream(objByteStream);
-		
-		XDRUtil.writeString(this.fqdn, out);
-		out.writeLong(sequenceNum);
-		
-		// Records
-		out.writeInt(this.records.size());
-		for (DNSRecord r: records) {
-			XDRUtil.writeString(r.type, out);
-			XDRUtil.writeString(r.content, out);
-			out.writeInt(r.ttl);
-			out.writeInt(r.attributes.size());
-			for (RecordAttribute a: r.attributes) {
-				a.writeXDR(out);
-			}
-		}
-		out.write(AccountInfo.hex2Bytes(this.accountHash));
+		XDRWriter xdr = writeXDR();
 		
-		objByteStream.flush();
-		out.flush();
 		// Send info to CRAQ
-		
 		String craqRequest = "SET " + fqdn.trim() + " " + 
-			(objByteStream.toByteArray().length) + "\r\n";
+			xdr.size() + "\r\n";
 		dataOut.writeBytes(craqRequest);
 		dataOut.flush();
-		dataOut.write(objByteStream.toByteArray());
+		xdr.writeTo(dataOut);
 		dataOut.writeBytes("\r\n");
 		dataOut.flush();
 		
@@ -220,49 +564,75 @@ public class SubdomainInfo implements Serializable{
 		} else {
 			throw new IOException(
 				"CRAQ reported error storing SubdomainInfo: " + craqRequest + "\n" + 
-				 objByteStream.toString() + "\n" + craqReply);
+				 new String(xdr.toByteArray(), XDRReader.LATIN1) + "\n" +
+				 craqReply);
 		}	
 	}
 	
 	public static SubdomainInfo fromXDR(byte[] inData) throws IOException {
-		ByteArrayInputStream is = new ByteArrayInputStream(inData);
-		DataInputStream dis = new DataInputStream(is);
-		
-		String fqdn = XDRUtil.readString(dis);
-		long sequenceNumber = dis.readLong();
-		int numRecords = dis.readInt();
-		LinkedList<DNSRecord> recs = new LinkedList<DNSRecord>();
+		return fromXDR(new XDRReader(inData));
+	}
+	
+	/*
+	 * Reads the format header, if any, and returns the format version.
+	 */
+	static int readFormatVersion(XDRReader in) throws IOException {
+		int start = in.position();
+		int first = in.readInt();
+		if ((first & 0xFFFF0000) != FORMAT_MAGIC) {
+			in.position(start); // Version 0: this was the fqdn's length
+			return 0;
+		}
+		int version = first & 0xFFFF;
+		if (version > FORMAT_VERSION) {
+			throw new IOException("Unsupported SubdomainInfo format version " +
+					version);
+		}
+		return version;
+	}
+	
+	public static SubdomainInfo fromXDR(XDRReader in) throws IOException {
+		boolean tagged = readFormatVersion(in) >= 1;
+		String fqdn = in.readString();
+		long sequenceNumber = in.readLong();
+		int numRecords = in.readInt();
+		byte[] accountHash = new byte[20];
+		List<DNSRecord> recs = new ArrayList<DNSRecord>();
+		ARecordSet aRecs = new ARecordSet(numRecords);
 		for (int i = 0; i < numRecords; i++) {
-			String type = XDRUtil.readString(dis);
-			String content = XDRUtil.readString(dis);
-			int ttl = dis.readInt();
-			int numAttrs = dis.readInt();
+			String type = in.readString();
+			String content = in.readString();
+			int ttl = in.readInt();
+			int numAttrs = in.readInt();
+			
+			// A records go straight into columns
+			if (type.equals("A")) {
+				int slot = aRecs.put(ARecordSet.parseAddress(content), ttl);
+				for (int j = 0; j < numAttrs; j++) {
+					aRecs.readAttribute(slot, in, tagged);
+				}
+				continue;
+			}
+			
 			LinkedList<RecordAttribute> attrs = new LinkedList<RecordAttribute>();
 			for (int j = 0; j < numAttrs; j++) {
-				int attType = dis.readInt();
-				int attLength = dis.readInt();
-				byte[] attData = new byte[attLength];
-				dis.readFully(attData);
-				RecordAttribute newAtt = null;
-				switch (attLength) {
-					case 2: newAtt = new ShortRecordAttribute(); break;
-					case 4: newAtt = new IntegerRecordAttribute(); break;
-					case 8: newAtt = new DoubleRecordAttribute(); break;
-					default: continue;
+				RecordAttribute newAtt = RecordAttribute.readXDR(in, tagged);
+				if (newAtt != null) {
+					attrs.add(newAtt);
 				}
-
-				newAtt.typeID = (short) attType;
-				newAtt.setData(attData);
-				attrs.add(newAtt);
 			}
 			recs.add(new DNSRecord(type, content, ttl, attrs));
 		}
-		byte[] accountHash = new byte[20];
-		dis.readFully(accountHash);
+		in.readFully(accountHash);
 		String accountHashStr = AccountInfo.bytes2Hex(accountHash);
 		SubdomainInfo out = new SubdomainInfo(fqdn, accountHashStr);
-		out.records = recs;
+		out.aRecords = aRecs;
+		out.numRecords = aRecs.size();
+		for (DNSRecord r: recs) {
+			out.index(r);
+		}
 		out.sequenceNum = sequenceNumber;
+		out.updateEarliestExpiry();
 		return out;
 	}
 	
@@ -271,7 +641,8 @@ public class SubdomainInfo implements Serializable{
 				"6768033e216468247bd031a0a2d9876d79818f8f");
 		Socket s = null;
 		try {
-			s = new Socket("localhost", 2182);
+			LocalCraqServer craq = LocalCraqServer.start(0);
+			s = new Socket("localhost", craq.getPort());
 			ai.saveXDR(s);
 		}
 		catch (Exception e) {
@@ -0,0 +1,138 @@
+package donar.update.util;
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import donar.dns.attrs.RecordAttribute;
+
+/**
+ * Read-only view over a SubdomainInfo in XDR form, for the query path.
+ * Only the header is read up front. Answering a query walks the records
+ * in place, comparing each type against the query without building a
+ * String, and skips over records of other types without decoding their
+ * content or attributes; only the records that match become DNSRecords.
+ */
+public class SubdomainView {
+
+	private byte[] data;
+	private String fqdn;
+	private long sequenceNum;
+	private int numRecords;
+	private int recordsStart;
+	private boolean tagged;
+
+	public SubdomainView(byte[] data) throws IOException {
+		this.data = data;
+		XDRReader in = new XDRReader(data);
+		this.tagged = SubdomainInfo.readFormatVersion(in) >= 1;
+		this.fqdn = in.readString();
+		this.sequenceNum = in.readLong();
+		this.numRecords = in.readInt();
+		this.recordsStart = in.position();
+	}
+
+	public String getFqdn() {
+		return fqdn;
+	}
+
+	public long getSequenceNum() {
+		return sequenceNum;
+	}
+
+	public int getNumRecords() {
+		return numRecords;
+	}
+
+	/*
+	 * Decodes the whole subdomain.
+	 */
+	public SubdomainInfo decode() throws IOException {
+		return SubdomainInfo.fromXDR(data);
+	}
+
+	/*
+	 * Same answer as SubdomainInfo.answerRecords(qtype, now): records of
+	 * type qtype ("ANY" for every type), live ones first, falling back to
+	 * expired ones if none are live. The returned list is a new one.
+	 */
+	public List<DNSRecord> answerRecords(String qtype, long now)
+		throws IOException {
+		boolean any = qtype.equals("ANY");
+		byte[] wanted = qtype.getBytes(XDRReader.LATIN1);
+		List<DNSRecord> live = new ArrayList<DNSRecord>();
+		List<DNSRecord> expired = null;
+
+		XDRReader in = new XDRReader(data);
+		in.position(recordsStart);
+		for (int i = 0; i < numRecords; i++) {
+			String type;
+			if (any) {
+				type = in.readString();
+			} else if (in.readStringEquals(wanted)) {
+				type = qtype;
+			} else {
+				skipRecord(in, tagged);
+				continue;
+			}
+			String content = in.readString();
+			int ttl = in.readInt();
+			int numAttrs = in.readInt();
+			LinkedList<RecordAttribute> attrs = new LinkedList<RecordAttribute>();
+			for (int j = 0; j < numAttrs; j++) {
+				RecordAttribute att = RecordAttribute.readXDR(in, tagged);
+				if (att != null) {
+					attrs.add(att);
+				}
+			}
+			DNSRecord r = new DNSRecord(type, content, ttl, attrs);
+			long expires = SubdomainInfo.expirationOf(r);
+			if (expires == 0 || expires > now) {
+				live.add(r);
+			} else {
+				if (expired == null) {
+					expired = new ArrayList<DNSRecord>();
+				}
+				expired.add(r);
+			}
+		}
+		return live.isEmpty() && expired != null ? expired : live;
+	}
+
+	/*
+	 * Skips the rest of a record whose type has been read.
+	 */
+	private static void skipRecord(XDRReader in, boolean tagged)
+		throws IOException {
+		in.skipString();
+		in.readInt(); // ttl
+		int numAttrs = in.readInt();
+		for (int j = 0; j < numAttrs; j++) {
+			in.readInt(); // type
+			if (tagged) {
+				in.readInt(); // kind
+			}
+			in.skip(in.readInt());
+		}
+	}
+}
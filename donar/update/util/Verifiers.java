@@ -62,14 +62,17 @@ public class Verifiers {
 		return true;		
 	}
 	
+	// Record types clients may update
+	public static final String[] RR_TYPES =
+		{"A", "CNAME", "MX", "A+", "TXT", "HTTP"};
+	
 	public static boolean isValidRRType(String rrtype)
 	{
-		return rrtype.equals("A") ||
-			   rrtype.equals("CNAME") ||
-			   rrtype.equals("MX") ||
-			   rrtype.equals("A+") ||
-			   rrtype.equals("TXT") ||
-			   rrtype.equals("HTTP");
+		for (String type : RR_TYPES) {
+			if (rrtype.equals(type))
+				return true;
+		}
+		return false;
 	}
 	
 	public static boolean isValidRRData(
@@ -0,0 +1,134 @@
+package donar.update.util;
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.EOFException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Decodes XDR written by XDRWriter (or the DataOutputStream code before
+ * it) from a ByteBuffer, without copying the input. Running off the end
+ * throws EOFException like DataInputStream does.
+ */
+public class XDRReader {
+
+	public static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+
+	private ByteBuffer buf;
+
+	public XDRReader(ByteBuffer buf) {
+		this.buf = buf;
+	}
+
+	public XDRReader(byte[] data) {
+		this(ByteBuffer.wrap(data));
+	}
+
+	private void need(int bytes) throws EOFException {
+		if (bytes < 0 || buf.remaining() < bytes) {
+			throw new EOFException("XDR data ends after " + buf.position() +
+					" bytes, wanted " + bytes + " more");
+		}
+	}
+
+	public short readShort() throws EOFException {
+		need(2);
+		return buf.getShort();
+	}
+
+	public int readInt() throws EOFException {
+		need(4);
+		return buf.getInt();
+	}
+
+	public long readLong() throws EOFException {
+		need(8);
+		return buf.getLong();
+	}
+
+	public double readDouble() throws EOFException {
+		need(8);
+		return buf.getDouble();
+	}
+
+	public void readFully(byte[] b) throws EOFException {
+		need(b.length);
+		buf.get(b);
+	}
+
+	public void skip(int bytes) throws EOFException {
+		need(bytes);
+		buf.position(buf.position() + bytes);
+	}
+
+	/*
+	 * Reads a length-prefixed ISO-8859-1 string and skips its padding.
+	 */
+	public String readString() throws EOFException {
+		int length = readInt();
+		int padded = (length + 3) & ~3;
+		need(padded);
+		String s;
+		if (buf.hasArray()) {
+			s = new String(buf.array(), buf.arrayOffset() + buf.position(),
+					length, LATIN1);
+		} else {
+			byte[] b = new byte[length];
+			buf.duplicate().get(b);
+			s = new String(b, LATIN1);
+		}
+		buf.position(buf.position() + padded);
+		return s;
+	}
+
+	public void skipString() throws EOFException {
+		skip((readInt() + 3) & ~3);
+	}
+
+	/*
+	 * Reads a string, returning whether it equals expected (ISO-8859-1
+	 * bytes) without building it.
+	 */
+	public boolean readStringEquals(byte[] expected) throws EOFException {
+		int length = readInt();
+		int padded = (length + 3) & ~3;
+		need(padded);
+		boolean equal = length == expected.length;
+		int start = buf.position();
+		for (int i = 0; equal && i < length; i++) {
+			equal = buf.get(start + i) == expected[i];
+		}
+		buf.position(start + padded);
+		return equal;
+	}
+
+	public int position() {
+		return buf.position();
+	}
+
+	public void position(int position) {
+		buf.position(position);
+	}
+
+	public int remaining() {
+		return buf.remaining();
+	}
+}
@@ -1,48 +0,0 @@
-package donar.update.util;
-
-/**
- * Licensed to the Apache Software Foundation (ASF) under one
- * or more contributor license agreements.  See the NOTICE file
- * distributed with this work for additional information
- * regarding copyright ownership.  The ASF licenses this file
- * to you under the Apache License, Version 2.0 (the
- * "License"); you may not use this file except in compliance
- * with the License.  You may obtain a copy of the License at
-
- * http://www.apache.org/licenses/LICENSE-2.0
-
- * Unless required by applicable law or agreed to in writing,
- * software distributed under the License is distributed on an
- * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
- * KIND, either express or implied.  See the License for the
- * specific language governing permissions and limitations
- * under the License.
- */
-
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
-import java.io.IOException;
-
-public class XDRUtil {
-
-	/*
-	 * Writes a string to out pefroming XDR padding correctly.
-	 */
-	static void writeString(String toWrite, DataOutputStream out) throws IOException {
-		int toPad = toWrite.length() % 4;
-		if (toPad != 0) toPad = (4 - toPad);
-		out.writeInt(toWrite.length());
-		out.writeBytes(toWrite);
-		for (int i = 0; i < toPad; i++) {
-			out.writeByte(0);
-		}
-	}
-	
-	static String readString(DataInputStream in) throws IOException {
-		int length = in.readInt();
-		if (length % 4 != 0) length = length + 4 - (length % 4);
-		byte[] buf = new byte[length];
-		in.readFully(buf);
-		return new String(buf).trim();
-	}
-}
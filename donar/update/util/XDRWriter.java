@@ -0,0 +1,111 @@
+package donar.update.util;
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes XDR into a growable heap ByteBuffer. Strings are written one
+ * byte per char (ISO-8859-1), padded to a multiple of four bytes. The
+ * encoding can be sent with writeTo() without copying it out first.
+ */
+public class XDRWriter {
+
+	private ByteBuffer buf;
+
+	public XDRWriter() {
+		this(256);
+	}
+
+	public XDRWriter(int capacity) {
+		this.buf = ByteBuffer.allocate(capacity);
+	}
+
+	private void ensure(int bytes) {
+		if (buf.remaining() >= bytes) {
+			return;
+		}
+		int capacity = Math.max(buf.capacity() * 2, buf.position() + bytes);
+		ByteBuffer bigger = ByteBuffer.allocate(capacity);
+		buf.flip();
+		bigger.put(buf);
+		buf = bigger;
+	}
+
+	public void writeShort(short v) {
+		ensure(2);
+		buf.putShort(v);
+	}
+
+	public void writeInt(int v) {
+		ensure(4);
+		buf.putInt(v);
+	}
+
+	public void writeLong(long v) {
+		ensure(8);
+		buf.putLong(v);
+	}
+
+	public void writeDouble(double v) {
+		ensure(8);
+		buf.putDouble(v);
+	}
+
+	public void writeBytes(byte[] b) {
+		ensure(b.length);
+		buf.put(b);
+	}
+
+	/*
+	 * Writes length, then the string as ISO-8859-1, then zero padding.
+	 */
+	public void writeString(String s) {
+		int length = s.length();
+		int padded = (length + 3) & ~3;
+		ensure(4 + padded);
+		buf.putInt(length);
+		for (int i = 0; i < length; i++) {
+			buf.put((byte) s.charAt(i));
+		}
+		for (int i = length; i < padded; i++) {
+			buf.put((byte) 0);
+		}
+	}
+
+	/*
+	 * Bytes written so far.
+	 */
+	public int size() {
+		return buf.position();
+	}
+
+	public void writeTo(OutputStream out) throws IOException {
+		out.write(buf.array(), 0, buf.position());
+	}
+
+	public byte[] toByteArray() {
+		byte[] out = new byte[buf.position()];
+		System.arraycopy(buf.array(), 0, out, 0, out.length);
+		return out;
+	}
+}
@@ -0,0 +1,37 @@
+-- Brings a PowerDNS MySQL schema up to what MySQLBackend expects.
+-- Run once against the DONAR database before starting update servers
+-- with BACKEND=MYSQL, or with BackupStorage writing to it (step 4).
+-- Each step can be skipped if already applied.
+
+-- 1. The disabled column, standard from PowerDNS 3.4 on. Expired
+--    records are demoted to disabled rather than deleted.
+ALTER TABLE records ADD COLUMN disabled TINYINT(1) NOT NULL DEFAULT 0;
+
+-- 2. Unique key for record upserts (INSERT ... ON DUPLICATE KEY UPDATE).
+--    Without it, re-adding a record inserts a duplicate row. Existing
+--    duplicates must go first; the newest row of each is kept.
+DELETE older FROM records older
+  JOIN records newer
+    ON newer.domain_id = older.domain_id
+   AND newer.name = older.name
+   AND newer.content = older.content
+   AND newer.id > older.id;
+
+-- content is too long to index whole (VARCHAR(64000) in PowerDNS 3.4),
+-- so the key covers its first 255 characters. Records of one name whose
+-- contents only differ after that are treated as the same record.
+CREATE UNIQUE INDEX records_name_content
+  ON records (domain_id, name, content(255));
+
+-- 3. Optional: lets the expiry sweeper find due records without a scan.
+CREATE INDEX records_expires ON records (disabled, expires);
+
+-- 4. Unique key for BackupStorage's account upserts. Without it, each
+--    server restart adds another row per active account. Duplicates are
+--    dropped by copying into a keyed table; which of them survives is
+--    arbitrary, but they hold the same suffix unless an old write failed.
+CREATE TABLE backup_keyed LIKE backup;
+CREATE UNIQUE INDEX backup_key_hash ON backup_keyed (key_hash);
+INSERT IGNORE INTO backup_keyed SELECT * FROM backup;
+RENAME TABLE backup TO backup_unkeyed, backup_keyed TO backup;
+DROP TABLE backup_unkeyed;